@@ -32,7 +32,19 @@ public abstract class AbstractSceneObject implements SceneObject {
 		return bb.intersects(getBounds());
 	}
 
-	public abstract Intersection intersectsRay(Ray ray);
+	public Intersection intersectsRay(Ray ray) {
+		Intersection hit = new Intersection();
+		hit.reset();
+		return intersectsRay(ray, hit) ? hit : null;
+	}
+
+	public abstract boolean intersectsRay(Ray ray, Intersection hit);
+
+	public boolean occludes(Ray ray, double tMax) {
+		Intersection hit = new Intersection();
+		hit.distance = tMax;
+		return intersectsRay(ray, hit);
+	}
 
 	public Collection<? extends SceneObject> getChildren() {
 		return null;
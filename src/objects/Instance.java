@@ -0,0 +1,177 @@
+package objects;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+
+import raytracer.Ray;
+import scene.BoundingBox;
+import scene.Intersection;
+import scene.Transformation;
+
+/**
+ * Instancia de un objeto compartido. En lugar de copiar y transformar la
+ * geometría, guarda una matriz de transformación (del espacio del objeto al
+ * de la escena) y su inversa, y lleva cada rayo al espacio del objeto para
+ * intersectarlo. Muchas instancias pueden compartir el mismo objeto, por lo
+ * que la memoria depende de la geometría distinta y no de cuántas veces se
+ * la ubica en la escena.
+ *
+ * Para las estructuras de aceleración de la escena una instancia es un único
+ * objeto (no tiene hijos); dentro de ella se usa la estructura propia del
+ * objeto compartido (e.g. la jerarquía de una TriangleMesh).
+ *
+ * El objeto compartido no debe ser a su vez una instancia.
+ */
+public class Instance extends AbstractSceneObject {
+
+	private final SceneObject object;
+
+	/** Transformación del espacio del objeto al de la escena, y su inversa. */
+	private final Matrix4d toWorld, toObject;
+
+	private volatile BoundingBox bb;
+
+	/** Rayo e intersección en el espacio del objeto, de cada thread. */
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * @param object Objeto compartido, en su propio espacio. La instancia no
+	 *            lo modifica.
+	 */
+	public Instance(SceneObject object) {
+		this.object = object;
+		toWorld = new Matrix4d();
+		toWorld.setIdentity();
+		toObject = new Matrix4d();
+		toObject.setIdentity();
+	}
+
+	/**
+	 * @param object Objeto compartido, en su propio espacio.
+	 * @param toWorld Transformación del espacio del objeto al de la escena.
+	 */
+	public Instance(SceneObject object, Matrix4d toWorld) {
+		this(object);
+		this.toWorld.set(toWorld);
+		toObject.invert(toWorld);
+	}
+
+	public SceneObject getObject() {
+		return object;
+	}
+
+	/** @return Transformación del espacio del objeto al de la escena. */
+	public Matrix4d getTransformationMatrix() {
+		return new Matrix4d(toWorld);
+	}
+
+	/**
+	 * Compone la transformación con la que ya tenía la instancia (la nueva se
+	 * aplica después). No modifica el objeto compartido.
+	 */
+	@Override
+	public void transform(Transformation t) {
+		Matrix4d m = t.getTransformationMatrix(true);
+		m.mul(toWorld);
+		toWorld.set(m);
+		toObject.invert(toWorld);
+		bb = null;
+	}
+
+	@Override
+	public boolean intersectsRay(Ray ray, Intersection hit) {
+		Scratch s = scratch.get();
+		double scale = toObjectSpace(ray, s.ray);
+		s.hit.distance = hit.distance == Double.MAX_VALUE ? Double.MAX_VALUE
+				: hit.distance * scale;
+		if (!object.intersectsRay(s.ray, s.hit)) {
+			return false;
+		}
+		hit.distance = s.hit.distance / scale;
+		hit.point.scaleAdd(hit.distance, ray.direction, ray.position);
+		normalToWorld(s.hit.normal, hit.normal);
+		hit.u = s.hit.u;
+		hit.v = s.hit.v;
+		hit.primitive = s.hit.primitive;
+		return true;
+	}
+
+	@Override
+	public boolean occludes(Ray ray, double tMax) {
+		Scratch s = scratch.get();
+		double scale = toObjectSpace(ray, s.ray);
+		return object.occludes(s.ray, tMax == Double.MAX_VALUE ? tMax : tMax
+				* scale);
+	}
+
+	/**
+	 * Lleva un rayo al espacio del objeto. Como la dirección se normaliza, las
+	 * distancias en el espacio del objeto son las de la escena multiplicadas
+	 * por un factor, que se retorna.
+	 */
+	private double toObjectSpace(Ray ray, Ray result) {
+		Vector3d o = ray.position, d = ray.direction;
+		Matrix4d m = toObject;
+		result.position.set(m.m00 * o.x + m.m01 * o.y + m.m02 * o.z + m.m03,
+				m.m10 * o.x + m.m11 * o.y + m.m12 * o.z + m.m13, m.m20 * o.x
+						+ m.m21 * o.y + m.m22 * o.z + m.m23);
+		result.direction.set(m.m00 * d.x + m.m01 * d.y + m.m02 * d.z, m.m10
+				* d.x + m.m11 * d.y + m.m12 * d.z, m.m20 * d.x + m.m21 * d.y
+				+ m.m22 * d.z);
+		double scale = result.direction.length();
+		result.direction.scale(1.0 / scale);
+		return scale;
+	}
+
+	/**
+	 * Lleva una normal del espacio del objeto al de la escena (con la
+	 * transpuesta de la inversa) y la normaliza.
+	 */
+	private void normalToWorld(Vector3d n, Vector3d result) {
+		Matrix4d m = toObject;
+		result.set(m.m00 * n.x + m.m10 * n.y + m.m20 * n.z, m.m01 * n.x + m.m11
+				* n.y + m.m21 * n.z, m.m02 * n.x + m.m12 * n.y + m.m22 * n.z);
+		result.normalize();
+	}
+
+	@Override
+	public Vector3d getNormalAt(Vector3d point) {
+		Matrix4d m = toObject;
+		Vector3d p = new Vector3d(m.m00 * point.x + m.m01 * point.y + m.m02
+				* point.z + m.m03, m.m10 * point.x + m.m11 * point.y + m.m12
+				* point.z + m.m13, m.m20 * point.x + m.m21 * point.y + m.m22
+				* point.z + m.m23);
+		Vector3d n = object.getNormalAt(p);
+		if (n == null) {
+			return null;
+		}
+		Vector3d ret = new Vector3d();
+		normalToWorld(n, ret);
+		return ret;
+	}
+
+	@Override
+	public BoundingBox getBounds() {
+		if (bb == null) {
+			bb = object.getBounds().transformAndOutset(toWorld);
+		}
+		return bb;
+	}
+
+	@Override
+	public String toString() {
+		return "Instance(" + object + ", " + toWorld + ")";
+	}
+
+	/** Vectores auxiliares de un thread. */
+	private static class Scratch {
+		final Ray ray = new Ray();
+		final Intersection hit = new Intersection();
+	}
+
+}
@@ -0,0 +1,110 @@
+package objects;
+
+import java.util.Collection;
+
+import javax.vecmath.Vector3d;
+
+import raytracer.Ray;
+import scene.BoundingBox;
+import scene.Intersection;
+import scene.Transformation;
+
+/**
+ * Un triángulo de una TriangleMesh. Sólo guarda la malla y el índice del
+ * triángulo: los vértices, los lados y el material son los de la malla. Dos
+ * MeshTriangles son iguales si representan el mismo triángulo de la misma
+ * malla.
+ */
+public class MeshTriangle implements SceneObject {
+
+	private final TriangleMesh mesh;
+	private final int index;
+
+	public MeshTriangle(TriangleMesh mesh, int index) {
+		this.mesh = mesh;
+		this.index = index;
+	}
+
+	public TriangleMesh getMesh() {
+		return mesh;
+	}
+
+	public int getIndex() {
+		return index;
+	}
+
+	public Material getMaterial() {
+		return mesh.getMaterial();
+	}
+
+	public Intersection intersectsRay(Ray ray) {
+		Intersection hit = new Intersection();
+		hit.reset();
+		return intersectsRay(ray, hit) ? hit : null;
+	}
+
+	public boolean intersectsRay(Ray ray, Intersection hit) {
+		return mesh.intersectsRay(ray, hit, index);
+	}
+
+	public boolean occludes(Ray ray, double tMax) {
+		return mesh.occludes(ray, tMax, index);
+	}
+
+	public Vector3d getNormalAt(Vector3d point) {
+		return toTriangle().getNormal();
+	}
+
+	/**
+	 * Los triángulos de una malla no se transforman por separado: sus
+	 * vértices son los de la malla, compartidos con los triángulos vecinos,
+	 * así que hay que transformar la TriangleMesh entera (ver
+	 * TriangleMesh.getChildren).
+	 *
+	 * @throws UnsupportedOperationException Siempre.
+	 */
+	public void transform(Transformation t) {
+		throw new UnsupportedOperationException(
+				"A MeshTriangle cannot be transformed on its own; transform its TriangleMesh");
+	}
+
+	public boolean intersectsBox(BoundingBox bb) {
+		return mesh.intersectsBox(bb, index);
+	}
+
+	public BoundingBox getBounds() {
+		return mesh.getBounds(index, index + 1);
+	}
+
+	public Collection<? extends SceneObject> getChildren() {
+		return null;
+	}
+
+	/** @return Un Triangle independiente con los mismos vértices. */
+	public Triangle toTriangle() {
+		Vector3d p1 = new Vector3d(), p2 = new Vector3d(), p3 = new Vector3d();
+		mesh.getVertex(index, 0, p1);
+		mesh.getVertex(index, 1, p2);
+		mesh.getVertex(index, 2, p3);
+		return new Triangle(p1, p2, p3);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof MeshTriangle))
+			return false;
+		MeshTriangle t = (MeshTriangle) obj;
+		return t.mesh == mesh && t.index == index;
+	}
+
+	@Override
+	public int hashCode() {
+		return System.identityHashCode(mesh) * 31 + index;
+	}
+
+	@Override
+	public String toString() {
+		return "MeshTriangle(" + index + ", " + toTriangle() + ")";
+	}
+
+}
@@ -0,0 +1,114 @@
+package objects;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caché de las páginas de triángulos de las mallas paginadas
+ * (PagedTriangleMesh). Limita la memoria que ocupan las páginas cargadas:
+ * al superar la capacidad, descarta las páginas que no se usaron desde la
+ * última vez que se las consideró (algoritmo del reloj, o "segunda
+ * oportunidad"). Las mallas vuelven a leer del archivo las páginas
+ * descartadas la próxima vez que las necesitan.
+ *
+ * Un thread que ya obtuvo una página la puede seguir usando aunque se la
+ * descarte, así que la memoria ocupada puede superar la capacidad en a lo
+ * sumo una página por thread.
+ */
+public class PageCache {
+
+	/** Capacidad por defecto, en bytes. */
+	public static final long DEFAULT_CAPACITY = 256L << 20;
+
+	private final long capacity;
+
+	/** Páginas cargadas, en el orden en que las recorre el reloj. */
+	private final ArrayDeque<Page> clock = new ArrayDeque<Page>();
+
+	private long size, peakSize, bytesRead, evictions;
+
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+	/** @param capacity Máxima cantidad de bytes de páginas cargadas. */
+	public PageCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/** @return Cantidad de accesos a páginas que ya estaban cargadas. */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/** @return Cantidad de páginas que hubo que leer del archivo. */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/** @return Cantidad de páginas descartadas para liberar memoria. */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/** @return Bytes leídos de los archivos. */
+	public synchronized long getBytesRead() {
+		return bytesRead;
+	}
+
+	/** @return Máxima cantidad de bytes que ocuparon las páginas cargadas. */
+	public synchronized long getPeakSize() {
+		return peakSize;
+	}
+
+	void hit() {
+		hits.increment();
+	}
+
+	/**
+	 * Registra una página recién leída, y descarta páginas hasta volver a la
+	 * capacidad.
+	 */
+	synchronized void add(PagedTriangleMesh mesh, int page, long bytes) {
+		misses.increment();
+		bytesRead += bytes;
+		size += bytes;
+		clock.add(new Page(mesh, page, bytes));
+		while (size > capacity && clock.size() > 1) {
+			Page p = clock.poll();
+			if (p.mesh.clearReferenced(p.page)) {
+				clock.add(p);
+			} else {
+				p.mesh.evict(p.page);
+				size -= p.bytes;
+				evictions++;
+			}
+		}
+		peakSize = Math.max(peakSize, size);
+	}
+
+	@Override
+	public String toString() {
+		long h = getHits(), m = getMisses();
+		return String.format(
+				"%d/%d (%.2f%% hits), %d evictions, %.1f MB read, peak %.1f MB",
+				h, m, h + m == 0 ? 0.0 : 100.0 * h / (h + m), getEvictions(),
+				getBytesRead() / 1048576.0, getPeakSize() / 1048576.0);
+	}
+
+	/** Página cargada. */
+	private static class Page {
+		final PagedTriangleMesh mesh;
+		final int page;
+		final long bytes;
+
+		Page(PagedTriangleMesh mesh, int page, long bytes) {
+			this.mesh = mesh;
+			this.page = page;
+			this.bytes = bytes;
+		}
+	}
+
+}
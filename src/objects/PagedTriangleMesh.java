@@ -0,0 +1,538 @@
+package objects;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.vecmath.Vector3d;
+
+import raytracer.Ray;
+import raytracer.RenderStatistics;
+import scene.BoundingBox;
+import scene.Bvh;
+import scene.Intersection;
+import scene.Transformation;
+
+/**
+ * Malla de triángulos que no se carga entera en memoria, para escenas más
+ * grandes que el heap. Se lee de un archivo de escena binario (ver
+ * BinaryScene) en el que la malla se guardó junto con su jerarquía de
+ * volúmenes envolventes:
+ * <ul>
+ * <li>Los nodos de la jerarquía (con la misma organización que Bvh) quedan
+ * mapeados en memoria, fuera del heap.</li>
+ * <li>Los triángulos se guardan en el orden de las hojas, como el primer
+ * vértice y los lados e1 y e2 (9 floats), agrupados en páginas de hojas
+ * completas de hasta PAGE_TRIANGLES triángulos. Las páginas se leen del
+ * archivo cuando el recorrido llega a una de sus hojas, y quedan en una
+ * PageCache de tamaño acotado que descarta las que no se usan.</li>
+ * </ul>
+ *
+ * Para las estructuras de aceleración de la escena la malla es un único
+ * objeto (no tiene hijos). Los triángulos se intersectan igual que en
+ * TriangleMesh. La malla no se puede transformar; para ubicarla en la
+ * escena se usa una Instance.
+ */
+public class PagedTriangleMesh extends AbstractSceneObject {
+
+	/** Máxima cantidad de triángulos por página (salvo hojas más grandes). */
+	public static final int PAGE_TRIANGLES = 4096;
+
+	/** Bytes de cada triángulo en el archivo. */
+	public static final int TRIANGLE_SIZE = 36;
+
+	/** Límites de cada nodo: xmin, xmax, ymin, ymax, zmin, zmax. */
+	private final DoubleBuffer bounds;
+
+	/** Dos enteros por nodo, como en Bvh. */
+	private final IntBuffer nodes;
+
+	private final int nodeCount, depth, triangleCount;
+
+	/** Posición del primer triángulo de cada página, y al final la cantidad de triángulos. */
+	private final int[] pageStart;
+
+	private final FileChannel channel;
+
+	/** Posición en el archivo del primer triángulo. */
+	private final long dataOffset;
+
+	private final PageCache cache;
+
+	/** Páginas cargadas (null las que no están en memoria). */
+	private final AtomicReferenceArray<float[]> pages;
+
+	/**
+	 * Bit de uso del reloj de PageCache: 1 en las páginas usadas desde la
+	 * última vez que las consideró la caché. Lo escriben los threads del
+	 * rendering sin lock y lo borra la caché con su propio lock, por lo que
+	 * es un arreglo atómico: la escritura es lazySet (sólo ordenada, sin
+	 * barrera completa) y el borrado, getAndSet.
+	 */
+	private final AtomicIntegerArray referenced;
+
+	/** Buffer para leer páginas (se usa con el lock de la malla). */
+	private ByteBuffer readBuffer;
+
+	private final BoundingBox bb;
+
+	/** Pila de nodos a visitar de cada thread, con sus distancias de entrada. */
+	private final ThreadLocal<TraversalStack> stacks = new ThreadLocal<TraversalStack>() {
+		@Override
+		protected TraversalStack initialValue() {
+			return new TraversalStack(depth + 1);
+		}
+	};
+
+	/**
+	 * @param bounds Límites de los nodos (6 por nodo).
+	 * @param nodes Nodos (2 enteros por nodo).
+	 * @param pageStart Posición del primer triángulo de cada página, y al
+	 *            final la cantidad de triángulos.
+	 * @param channel Archivo del que se leen las páginas. Debe quedar abierto
+	 *            mientras se use la malla.
+	 * @param dataOffset Posición en el archivo del primer triángulo.
+	 * @param cache Caché en la que se cargan las páginas.
+	 * @throws IllegalArgumentException Si los nodos o las páginas no son
+	 *             válidos.
+	 */
+	public PagedTriangleMesh(DoubleBuffer bounds, IntBuffer nodes,
+			int[] pageStart, FileChannel channel, long dataOffset,
+			PageCache cache) {
+		this.bounds = bounds;
+		this.nodes = nodes;
+		this.pageStart = pageStart;
+		this.channel = channel;
+		this.dataOffset = dataOffset;
+		this.cache = cache;
+		nodeCount = nodes.limit() / 2;
+		if (bounds.limit() != 6 * nodeCount || pageStart.length == 0
+				|| pageStart[0] != 0) {
+			throw new IllegalArgumentException("Invalid paged mesh");
+		}
+		triangleCount = pageStart[pageStart.length - 1];
+		for (int p = 1; p < pageStart.length; p++) {
+			if (pageStart[p] <= pageStart[p - 1]) {
+				throw new IllegalArgumentException("Invalid mesh page " + p);
+			}
+		}
+		depth = checkNodes();
+		pages = new AtomicReferenceArray<float[]>(pageStart.length - 1);
+		referenced = new AtomicIntegerArray(pageStart.length - 1);
+		bb = nodeCount == 0 ? new BoundingBox(0, 0, 0, 0, 0, 0)
+				: new BoundingBox(bounds.get(0), bounds.get(1), bounds.get(2),
+						bounds.get(3), bounds.get(4), bounds.get(5));
+	}
+
+	/**
+	 * Verifica que los nodos no salgan de los arreglos y que ninguna hoja
+	 * ocupe más de una página (ver el constructor de Bvh que lee un BVH).
+	 *
+	 * @return Profundidad del árbol.
+	 */
+	private int checkNodes() {
+		int depth = 0;
+		int[] level = new int[nodeCount];
+		for (int n = 0; n < nodeCount; n++) {
+			int first = nodes.get(2 * n), count = nodes.get(2 * n + 1);
+			boolean valid = count == -1 ? first > n + 1 && first < nodeCount
+					: count > 0 && first >= 0 && first <= triangleCount - count
+							&& first + count <= pageStart[findPage(first) + 1];
+			if (!valid) {
+				throw new IllegalArgumentException("Invalid paged mesh node " + n);
+			}
+			depth = Math.max(depth, level[n]);
+			if (count == -1) {
+				level[n + 1] = Math.max(level[n + 1], level[n] + 1);
+				level[first] = Math.max(level[first], level[n] + 1);
+			}
+		}
+		return depth;
+	}
+
+	/** @return Cantidad de triángulos de la malla. */
+	public int getTriangleCount() {
+		return triangleCount;
+	}
+
+	/** @return Cantidad de páginas de la malla. */
+	public int getPageCount() {
+		return pageStart.length - 1;
+	}
+
+	/** @return La página que contiene al triángulo (en el orden de las hojas). */
+	private int findPage(int triangle) {
+		int p = Arrays.binarySearch(pageStart, 0, pageStart.length - 1, triangle);
+		return p >= 0 ? p : -p - 2;
+	}
+
+	/**
+	 * @return Los triángulos de una página (9 floats por triángulo). Si no
+	 *         está cargada, se la lee del archivo.
+	 */
+	private float[] getPage(int page) {
+		float[] data = pages.get(page);
+		if (data == null) {
+			synchronized (this) {
+				data = pages.get(page);
+				if (data == null) {
+					data = read(page);
+					pages.set(page, data);
+					referenced.lazySet(page, 1);
+					cache.add(this, page, 4L * data.length);
+					return data;
+				}
+			}
+		}
+		referenced.lazySet(page, 1);
+		cache.hit();
+		return data;
+	}
+
+	private float[] read(int page) {
+		int first = pageStart[page], count = pageStart[page + 1] - first;
+		int size = TRIANGLE_SIZE * count;
+		if (readBuffer == null || readBuffer.capacity() < size) {
+			readBuffer = ByteBuffer.allocateDirect(Math.max(size, TRIANGLE_SIZE
+					* PAGE_TRIANGLES)).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		ByteBuffer buf = readBuffer;
+		buf.clear();
+		buf.limit(size);
+		long position = dataOffset + (long) TRIANGLE_SIZE * first;
+		try {
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, position + buf.position()) < 0) {
+					throw new EOFException("Truncated paged mesh");
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Error reading mesh page " + page, e);
+		}
+		buf.flip();
+		float[] data = new float[9 * count];
+		buf.asFloatBuffer().get(data);
+		return data;
+	}
+
+	/** Descarta una página (la llama la caché). */
+	void evict(int page) {
+		pages.set(page, null);
+	}
+
+	/**
+	 * Borra la marca de uso de una página (la llama la caché).
+	 *
+	 * @return Si la página estaba marcada.
+	 */
+	boolean clearReferenced(int page) {
+		return referenced.getAndSet(page, 0) != 0;
+	}
+
+	@Override
+	public boolean intersectsRay(Ray ray, Intersection hit) {
+		if (nodeCount == 0) {
+			return false;
+		}
+		double ox = ray.position.x, oy = ray.position.y, oz = ray.position.z;
+		double ix = 1.0 / ray.direction.x, iy = 1.0 / ray.direction.y, iz = 1.0 / ray.direction.z;
+		boolean found = false;
+		TraversalStack stack = stacks.get();
+		int sp = 0, node = 0;
+		if (entryDistance(0, ox, oy, oz, ix, iy, iz, hit.distance) == Double.MAX_VALUE) {
+			return false;
+		}
+		while (true) {
+			int first = nodes.get(2 * node), count = nodes.get(2 * node + 1);
+			if (count >= 0) {
+				int page = findPage(first);
+				float[] t = getPage(page);
+				int k = 9 * (first - pageStart[page]);
+				for (int i = 0; i < count; i++, k += 9) {
+					if (intersectsRay(ray, hit, t, k)) {
+						hit.primitive = first + i;
+						found = true;
+					}
+				}
+			} else {
+				int left = node + 1, right = first;
+				double dl = entryDistance(left, ox, oy, oz, ix, iy, iz, hit.distance);
+				double dr = entryDistance(right, ox, oy, oz, ix, iy, iz, hit.distance);
+				if (dl != Double.MAX_VALUE) {
+					if (dr != Double.MAX_VALUE) {
+						// Visitar primero el más cercano y dejar el otro para después
+						if (dr < dl) {
+							stack.nodes[sp] = left;
+							stack.distances[sp++] = dl;
+							node = right;
+						} else {
+							stack.nodes[sp] = right;
+							stack.distances[sp++] = dr;
+							node = left;
+						}
+					} else {
+						node = left;
+					}
+					continue;
+				} else if (dr != Double.MAX_VALUE) {
+					node = right;
+					continue;
+				}
+			}
+			// Tomar el próximo nodo pendiente que todavía pueda tener algo más cercano
+			do {
+				if (sp == 0) {
+					return found;
+				}
+				node = stack.nodes[--sp];
+			} while (stack.distances[sp] >= hit.distance);
+		}
+	}
+
+	/**
+	 * Intersecta el rayo con el triángulo que empieza en la posición k de una
+	 * página, como TriangleMesh.
+	 */
+	private boolean intersectsRay(Ray ray, Intersection hit, float[] t, int k) {
+		if (RenderStatistics.enabled)
+			RenderStatistics.intersectionTests.increment();
+		double d = TriangleIntersector.intersect(ray.position, ray.direction,
+				t[k], t[k + 1], t[k + 2], t[k + 3], t[k + 4], t[k + 5],
+				t[k + 6], t[k + 7], t[k + 8], hit.distance, hit);
+		if (d < 0) {
+			return false;
+		}
+		hit.distance = d;
+		hit.point.scaleAdd(d, ray.direction, ray.position);
+		setNormal(t, k, hit.normal);
+		if (hit.normal.dot(ray.direction) < 0) {
+			hit.normal.negate();
+		}
+		return true;
+	}
+
+	/** Escribe en n la normal (e1 x e2 normalizada) de un triángulo. */
+	private static void setNormal(float[] t, int k, Vector3d n) {
+		n.set((double) t[k + 4] * t[k + 8] - (double) t[k + 5] * t[k + 7],
+				(double) t[k + 5] * t[k + 6] - (double) t[k + 3] * t[k + 8],
+				(double) t[k + 3] * t[k + 7] - (double) t[k + 4] * t[k + 6]);
+		n.normalize();
+	}
+
+	@Override
+	public boolean occludes(Ray ray, double tMax) {
+		if (nodeCount == 0) {
+			return false;
+		}
+		double ox = ray.position.x, oy = ray.position.y, oz = ray.position.z;
+		double ix = 1.0 / ray.direction.x, iy = 1.0 / ray.direction.y, iz = 1.0 / ray.direction.z;
+		TraversalStack stack = stacks.get();
+		int sp = 0, node = 0;
+		if (entryDistance(0, ox, oy, oz, ix, iy, iz, tMax) == Double.MAX_VALUE) {
+			return false;
+		}
+		while (true) {
+			int first = nodes.get(2 * node), count = nodes.get(2 * node + 1);
+			if (count >= 0) {
+				int page = findPage(first);
+				float[] t = getPage(page);
+				int k = 9 * (first - pageStart[page]);
+				for (int i = 0; i < count; i++, k += 9) {
+					if (RenderStatistics.enabled)
+						RenderStatistics.intersectionTests.increment();
+					if (TriangleIntersector.intersect(ray.position,
+							ray.direction, t[k], t[k + 1], t[k + 2], t[k + 3],
+							t[k + 4], t[k + 5], t[k + 6], t[k + 7], t[k + 8],
+							tMax, null) >= 0) {
+						return true;
+					}
+				}
+			} else {
+				int left = node + 1, right = first;
+				boolean hitl = entryDistance(left, ox, oy, oz, ix, iy, iz, tMax) != Double.MAX_VALUE;
+				boolean hitr = entryDistance(right, ox, oy, oz, ix, iy, iz, tMax) != Double.MAX_VALUE;
+				if (hitl) {
+					if (hitr) {
+						stack.nodes[sp++] = right;
+					}
+					node = left;
+					continue;
+				} else if (hitr) {
+					node = right;
+					continue;
+				}
+			}
+			if (sp == 0) {
+				return false;
+			}
+			node = stack.nodes[--sp];
+		}
+	}
+
+	/**
+	 * Calcula la distancia a la que el rayo entra en la caja de un nodo (ver
+	 * Bvh).
+	 *
+	 * @return La distancia de entrada (0 si el origen está dentro), o
+	 *         Double.MAX_VALUE si el rayo no entra a la caja antes de tMax.
+	 */
+	private double entryDistance(int node, double ox, double oy, double oz,
+			double ix, double iy, double iz, double tMax) {
+		int b = 6 * node;
+		double tmin = 0, tmax = tMax, t1, t2;
+
+		t1 = (bounds.get(b) - ox) * ix;
+		t2 = (bounds.get(b + 1) - ox) * ix;
+		if (t1 > t2) {
+			double tmp = t1;
+			t1 = t2;
+			t2 = tmp;
+		}
+		if (t1 > tmin)
+			tmin = t1;
+		if (t2 < tmax)
+			tmax = t2;
+
+		t1 = (bounds.get(b + 2) - oy) * iy;
+		t2 = (bounds.get(b + 3) - oy) * iy;
+		if (t1 > t2) {
+			double tmp = t1;
+			t1 = t2;
+			t2 = tmp;
+		}
+		if (t1 > tmin)
+			tmin = t1;
+		if (t2 < tmax)
+			tmax = t2;
+
+		t1 = (bounds.get(b + 4) - oz) * iz;
+		t2 = (bounds.get(b + 5) - oz) * iz;
+		if (t1 > t2) {
+			double tmp = t1;
+			t1 = t2;
+			t2 = tmp;
+		}
+		if (t1 > tmin)
+			tmin = t1;
+		if (t2 < tmax)
+			tmax = t2;
+
+		return tmin <= tmax ? tmin : Double.MAX_VALUE;
+	}
+
+	/** Recorre todas las páginas buscando un triángulo que contenga al punto. */
+	@Override
+	public Vector3d getNormalAt(Vector3d point) {
+		Vector3d n = new Vector3d();
+		for (int page = 0; page < getPageCount(); page++) {
+			float[] t = getPage(page);
+			for (int k = 0; k < t.length; k += 9) {
+				setNormal(t, k, n);
+				if (TriangleIntersector.contains(point.x, point.y, point.z,
+						t[k], t[k + 1], t[k + 2], t[k + 3], t[k + 4], t[k + 5],
+						t[k + 6], t[k + 7], t[k + 8], n)) {
+					return n;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Nunca se invoca: la única que construye PagedTriangleMeshes es
+	 * BinaryScene.read, que las lee ya ubicadas (o dentro de una Instance) y
+	 * no transforma los objetos que lee. Los triángulos están en el archivo,
+	 * así que no se podrían transformar sin reescribirlo.
+	 *
+	 * @throws IllegalStateException Siempre.
+	 */
+	@Override
+	public void transform(Transformation t) {
+		throw new IllegalStateException("Paged meshes are never transformed");
+	}
+
+	@Override
+	public BoundingBox getBounds() {
+		return bb;
+	}
+
+	@Override
+	public String toString() {
+		return "PagedTriangleMesh(triangles=" + triangleCount + ", pages="
+				+ getPageCount() + ")";
+	}
+
+	/**
+	 * Organiza una malla para guardarla paginada: construye su jerarquía y
+	 * ordena los triángulos según las hojas.
+	 */
+	public static Layout layout(TriangleMesh mesh) {
+		int n = mesh.getTriangleCount();
+		SceneObject[] triangles = new SceneObject[n];
+		for (int i = 0; i < n; i++) {
+			triangles[i] = new MeshTriangle(mesh, i);
+		}
+		Bvh bvh = new Bvh(triangles);
+		Layout layout = new Layout();
+		layout.bounds = bvh.getNodeBounds();
+		layout.nodes = bvh.getNodes();
+		int[] order = bvh.getIndices();
+		layout.triangles = new float[9 * n];
+		for (int k = 0; k < n; k++) {
+			mesh.getTriangle(order[k], layout.triangles, 9 * k);
+		}
+		// Las hojas aparecen en el orden de sus triángulos: se las agrupa en
+		// páginas sin partir ninguna
+		int[] starts = new int[n + 1];
+		int pages = 0, start = 0;
+		starts[0] = 0;
+		for (int node = 0; 2 * node < layout.nodes.length; node++) {
+			int first = layout.nodes[2 * node], count = layout.nodes[2 * node + 1];
+			if (count > 0 && first > start
+					&& first + count - start > PAGE_TRIANGLES) {
+				starts[++pages] = start = first;
+			}
+		}
+		if (n > 0) {
+			starts[++pages] = n;
+		}
+		layout.pageStart = Arrays.copyOf(starts, pages + 1);
+		return layout;
+	}
+
+	/** Datos de una malla paginada, como se guardan en el archivo. */
+	public static class Layout {
+
+		/** Límites de cada nodo (6 por nodo). */
+		public double[] bounds;
+
+		/** Nodos (2 enteros por nodo, ver Bvh). */
+		public int[] nodes;
+
+		/** Posición del primer triángulo de cada página, y al final la cantidad de triángulos. */
+		public int[] pageStart;
+
+		/** Primer vértice y lados e1 y e2 de cada triángulo, en el orden de las hojas. */
+		public float[] triangles;
+	}
+
+	/** Pila de recorrido de un thread. */
+	private static class TraversalStack {
+
+		final int[] nodes;
+		final double[] distances;
+
+		TraversalStack(int size) {
+			nodes = new int[size];
+			distances = new double[size];
+		}
+	}
+
+}
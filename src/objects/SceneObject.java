@@ -27,6 +27,30 @@ public interface SceneObject {
 	 */
 	public Intersection intersectsRay(Ray ray);
 
+	/**
+	 * Intersecta el rayo con el objeto sin alocar memoria. Sólo se consideran
+	 * las intersecciones más cercanas que <code>hit.distance</code>; si se
+	 * encuentra una, se escribe en <code>hit</code> (punto, normal, distancia
+	 * y primitiva) y se retorna true. Si no, <code>hit</code> no se modifica.
+	 * 
+	 * @param ray Rayo que se está disparando.
+	 * @param hit Intersección más cercana encontrada hasta el momento.
+	 * @return Si se encontró una intersección más cercana.
+	 */
+	public boolean intersectsRay(Ray ray, Intersection hit);
+
+	/**
+	 * Determina si el objeto se interpone en el rayo antes de una distancia
+	 * dada. A diferencia de intersectsRay, no busca la intersección más
+	 * cercana: termina en cuanto encuentra una cualquiera. Se usa para los
+	 * rayos de sombra.
+	 * 
+	 * @param ray Rayo que se está disparando.
+	 * @param tMax Distancia máxima (excluida) a considerar.
+	 * @return Si existe una intersección a una distancia en [0, tMax).
+	 */
+	public boolean occludes(Ray ray, double tMax);
+
 	/**
 	 * Retorna la normal en un punto de la superficie de este objeto. Es
 	 * responsabilidad del usuario que el punto proporcionado pertenezca a la
@@ -3,7 +3,7 @@ package objects;
 import javax.vecmath.Vector3d;
 
 import raytracer.Ray;
-import raytracer.Util;
+import raytracer.RenderStatistics;
 import scene.BoundingBox;
 import scene.Intersection;
 import scene.Transformation;
@@ -28,42 +28,56 @@ public class Sphere extends AbstractSceneObject {
 	}
 
 	@Override
-	public Intersection intersectsRay(Ray ray) {
-		Vector3d aux = new Vector3d(ray.position);
-		aux.sub(position);
+	public boolean intersectsRay(Ray ray, Intersection hit) {
+		double t = nearestDistance(ray);
+		if (t < 0 || t >= hit.distance) {
+			return false;
+		}
+
+		hit.point.scaleAdd(t, ray.direction, ray.position);
+		hit.normal.sub(position, hit.point);
+		hit.normal.normalize();
+		hit.distance = t;
+		hit.primitive = -1;
+		return true;
+	}
+
+	@Override
+	public boolean occludes(Ray ray, double tMax) {
+		double t = nearestDistance(ray);
+		return t >= 0 && t < tMax;
+	}
+
+	/**
+	 * @return Distancia a la intersección más cercana delante del origen del
+	 *         rayo, o -1 si no lo intersecta.
+	 */
+	private double nearestDistance(Ray ray) {
+		if (RenderStatistics.enabled)
+			RenderStatistics.intersectionTests.increment();
+		double auxx = ray.position.x - position.x;
+		double auxy = ray.position.y - position.y;
+		double auxz = ray.position.z - position.z;
 		double a = 1.0; // == ray.direction.dot(ray.direction);
-		double b = 2 * ray.direction.dot(aux);
-		double c = Math.pow(Util.Norm(aux), 2) - Math.pow(radius, 2);
+		double b = 2 * (ray.direction.x * auxx + ray.direction.y * auxy + ray.direction.z
+				* auxz);
+		double c = auxx * auxx + auxy * auxy + auxz * auxz - radius * radius;
 
-		double discriminant = Math.pow(b, 2) - 4 * a * c;
+		double discriminant = b * b - 4 * a * c;
 		if (discriminant < 0) {
-			return null;
+			return -1;
 		}
 
-		/* Determinar punto de interseccion */
+		/* Determinar punto de interseccion (el más cercano delante del origen) */
 		double t1 = (-b + Math.sqrt(discriminant)) / (2 * a);
 		double t2 = (-b - Math.sqrt(discriminant)) / (2 * a);
-		double t;
 
-		if (t1 < 0 && t2 < 0) {
-			return null;
-		} else if (t1 < 0) {
-			t = t2;
-		} else if (t2 < 0) {
-			t = t1;
-		} else if (Math.abs(t1) < Math.abs(t2)) {
-			t = t1;
-		} else {
-			t = t2;
+		if (t2 >= 0) {
+			return t2;
+		} else if (t1 >= 0) {
+			return t1;
 		}
-
-		Intersection x = new Intersection();
-		x.point = new Vector3d(ray.direction);
-		x.point.scale(t);
-		x.point.add(ray.position);
-		x.normal = getNormalAt(x.point);
-		x.distance = t;
-		return x;
+		return -1;
 	}
 
 	@Override
@@ -0,0 +1,200 @@
+package objects;
+
+import javax.vecmath.Vector3d;
+
+import scene.Intersection;
+import scene.OctreeScene;
+
+/**
+ * Test de intersección entre un rayo y un triángulo con el algoritmo de
+ * Möller y Trumbore ("Fast, Minimum Storage Ray/Triangle Intersection",
+ * 1997). El triángulo se describe por un vértice p1 y los lados e1 = p2 - p1
+ * y e2 = p3 - p1; la intersección se obtiene resolviendo directamente
+ * o + t d = p1 + u e1 + v e2 con la regla de Cramer, sin calcular el plano
+ * del triángulo ni alocar memoria.
+ *
+ * También incluye el test de superposición entre un triángulo y una caja
+ * que se usa al construir el octree.
+ *
+ * Lo usan Triangle y TriangleMesh.
+ */
+public final class TriangleIntersector {
+
+	private TriangleIntersector() {
+	}
+
+	/**
+	 * Intersecta un rayo con un triángulo.
+	 *
+	 * @param orig Origen del rayo.
+	 * @param dir Dirección del rayo.
+	 * @param tMax Distancia máxima (excluida) a considerar.
+	 * @param uv Si no es null y hay intersección, se escriben en uv.u y uv.v
+	 *            las coordenadas baricéntricas del punto (el punto es
+	 *            p1 + u e1 + v e2).
+	 * @return Distancia a la intersección, o -1 si no hay intersección en
+	 *         [0, tMax).
+	 */
+	public static double intersect(Vector3d orig, Vector3d dir, double p1x,
+			double p1y, double p1z, double e1x, double e1y, double e1z,
+			double e2x, double e2y, double e2z, double tMax, Intersection uv) {
+		// p = dir x e2; det = e1 . p
+		double px = dir.y * e2z - dir.z * e2y;
+		double py = dir.z * e2x - dir.x * e2z;
+		double pz = dir.x * e2y - dir.y * e2x;
+		double det = e1x * px + e1y * py + e1z * pz;
+		// det = dir . (e1 x e2): el rayo es paralelo al plano si el coseno
+		// entre dir y la normal, det / |e1 x e2|, es menor que TOLERANCE. Se
+		// comparan los cuadrados, con |e1 x e2|^2 = |e1|^2 |e2|^2 - (e1.e2)^2,
+		// para que el corte no dependa del tamaño del triángulo
+		double e11 = e1x * e1x + e1y * e1y + e1z * e1z;
+		double e22 = e2x * e2x + e2y * e2y + e2z * e2z;
+		double e12 = e1x * e2x + e1y * e2y + e1z * e2z;
+		if (det * det <= OctreeScene.TOLERANCE * OctreeScene.TOLERANCE
+				* (e11 * e22 - e12 * e12)) {
+			return -1; // El rayo es paralelo al plano del triángulo
+		}
+		double inv = 1.0 / det;
+
+		double sx = orig.x - p1x, sy = orig.y - p1y, sz = orig.z - p1z;
+		double u = (sx * px + sy * py + sz * pz) * inv;
+		if (u < 0 || u > 1) {
+			return -1;
+		}
+
+		// q = s x e1
+		double qx = sy * e1z - sz * e1y;
+		double qy = sz * e1x - sx * e1z;
+		double qz = sx * e1y - sy * e1x;
+		double v = (dir.x * qx + dir.y * qy + dir.z * qz) * inv;
+		if (v < 0 || u + v > 1) {
+			return -1;
+		}
+
+		double t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+		if (!(t >= 0 && t < tMax)) {
+			return -1;
+		}
+		if (uv != null) {
+			uv.u = u;
+			uv.v = v;
+		}
+		return t;
+	}
+
+	/**
+	 * Determina si un punto pertenece a un triángulo (a menos de
+	 * OctreeScene.TOLERANCE de su plano y dentro de sus lados).
+	 *
+	 * @param n Normal (normalizada) del triángulo.
+	 */
+	public static boolean contains(double x, double y, double z, double p1x,
+			double p1y, double p1z, double e1x, double e1y, double e1z,
+			double e2x, double e2y, double e2z, Vector3d n) {
+		double sx = x - p1x, sy = y - p1y, sz = z - p1z;
+		if (Math.abs(sx * n.x + sy * n.y + sz * n.z) > OctreeScene.TOLERANCE) {
+			return false;
+		}
+		// Coordenadas baricéntricas del punto
+		double d11 = e1x * e1x + e1y * e1y + e1z * e1z;
+		double d12 = e1x * e2x + e1y * e2y + e1z * e2z;
+		double d22 = e2x * e2x + e2y * e2y + e2z * e2z;
+		double s1 = sx * e1x + sy * e1y + sz * e1z;
+		double s2 = sx * e2x + sy * e2y + sz * e2z;
+		double den = d11 * d22 - d12 * d12;
+		double u = (d22 * s1 - d12 * s2) / den;
+		double v = (d11 * s2 - d12 * s1) / den;
+		return u >= 0 && v >= 0 && u + v <= 1;
+	}
+
+	/**
+	 * Determina si un triángulo se superpone con una caja alineada con los
+	 * ejes, con el test de ejes separadores de Akenine-Möller ("Fast 3D
+	 * Triangle-Box Overlap Testing", 2001). Con el centro de la caja como
+	 * origen, el triángulo y la caja son disjuntos si y sólo si sus
+	 * proyecciones son disjuntas sobre alguno de estos 13 ejes: los 9
+	 * productos vectoriales entre los ejes coordenados y los lados del
+	 * triángulo, los 3 ejes coordenados y la normal del triángulo. Los
+	 * contactos en un borde cuentan como superposición: la caja se agranda
+	 * en OctreeScene.TOLERANCE (como la caja raíz del octree) para que el
+	 * redondeo no descarte triángulos que sólo tocan una cara, como los que
+	 * tienen un vértice o un lado sobre un plano de división.
+	 *
+	 * @return Si el triángulo p1, p1 + e1, p1 + e2 y la caja tienen algún
+	 *         punto en común.
+	 */
+	public static boolean overlapsBox(double p1x, double p1y, double p1z,
+			double e1x, double e1y, double e1z, double e2x, double e2y,
+			double e2z, double xmin, double xmax, double ymin, double ymax,
+			double zmin, double zmax) {
+		double hx = (xmax - xmin) * 0.5 + OctreeScene.TOLERANCE;
+		double hy = (ymax - ymin) * 0.5 + OctreeScene.TOLERANCE;
+		double hz = (zmax - zmin) * 0.5 + OctreeScene.TOLERANCE;
+		// Vértices relativos al centro de la caja
+		double v0x = p1x - (xmin + xmax) * 0.5;
+		double v0y = p1y - (ymin + ymax) * 0.5;
+		double v0z = p1z - (zmin + zmax) * 0.5;
+		double v1x = v0x + e1x, v1y = v0y + e1y, v1z = v0z + e1z;
+		double v2x = v0x + e2x, v2y = v0y + e2y, v2z = v0z + e2z;
+
+		// Ejes coordenados: las BoundingBoxes del triángulo y de la caja
+		if (min(v0x, v1x, v2x) > hx || max(v0x, v1x, v2x) < -hx
+				|| min(v0y, v1y, v2y) > hy || max(v0y, v1y, v2y) < -hy
+				|| min(v0z, v1z, v2z) > hz || max(v0z, v1z, v2z) < -hz) {
+			return false;
+		}
+
+		// Productos vectoriales entre los ejes y los lados f0 = v1 - v0,
+		// f1 = v2 - v1 y f2 = v0 - v2
+		double fx = e1x, fy = e1y, fz = e1z;
+		for (int i = 0; i < 3; i++) {
+			if (i == 1) {
+				fx = e2x - e1x;
+				fy = e2y - e1y;
+				fz = e2z - e1z;
+			} else if (i == 2) {
+				fx = -e2x;
+				fy = -e2y;
+				fz = -e2z;
+			}
+			double ax = Math.abs(fx), ay = Math.abs(fy), az = Math.abs(fz);
+			// x × f = (0, -fz, fy)
+			if (separated(fy * v0z - fz * v0y, fy * v1z - fz * v1y, fy * v2z
+					- fz * v2y, hy * az + hz * ay))
+				return false;
+			// y × f = (fz, 0, -fx)
+			if (separated(fz * v0x - fx * v0z, fz * v1x - fx * v1z, fz * v2x
+					- fx * v2z, hx * az + hz * ax))
+				return false;
+			// z × f = (-fy, fx, 0)
+			if (separated(fx * v0y - fy * v0x, fx * v1y - fy * v1x, fx * v2y
+					- fy * v2x, hx * ay + hy * ax))
+				return false;
+		}
+
+		// Normal del triángulo: el plano debe cortar la caja
+		double nx = e1y * e2z - e1z * e2y;
+		double ny = e1z * e2x - e1x * e2z;
+		double nz = e1x * e2y - e1y * e2x;
+		double d = nx * v0x + ny * v0y + nz * v0z;
+		return Math.abs(d) <= hx * Math.abs(nx) + hy * Math.abs(ny) + hz
+				* Math.abs(nz);
+	}
+
+	/**
+	 * @return Si las proyecciones p0, p1, p2 de los vértices quedan fuera del
+	 *         intervalo [-r, r] que ocupa la proyección de la caja.
+	 */
+	private static boolean separated(double p0, double p1, double p2, double r) {
+		return min(p0, p1, p2) > r || max(p0, p1, p2) < -r;
+	}
+
+	private static double min(double a, double b, double c) {
+		return a < b ? (a < c ? a : c) : (b < c ? b : c);
+	}
+
+	private static double max(double a, double b, double c) {
+		return a > b ? (a > c ? a : c) : (b > c ? b : c);
+	}
+
+}
@@ -0,0 +1,356 @@
+package objects;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+import java.util.Collection;
+
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+
+import raytracer.Ray;
+import raytracer.RenderStatistics;
+import scene.BoundingBox;
+import scene.Bvh;
+import scene.Intersection;
+import scene.Transformation;
+
+/**
+ * Malla de triángulos con vértices compartidos. A diferencia de TriangleSet,
+ * no crea un objeto por triángulo: los vértices se guardan en un único
+ * buffer de floats (x, y, z por vértice), los triángulos como ternas de
+ * índices a esos vértices, y los lados de cada triángulo (p2 - p1 y p3 - p1)
+ * se mantienen precalculados en un arreglo por componente.
+ *
+ * Los buffers de vértices e índices pueden ser arreglos (ver
+ * FloatBuffer.wrap) o estar mapeados desde un archivo (ver BinaryScene), en
+ * cuyo caso la malla los usa sin copiarlos a memoria.
+ *
+ * Para que las estructuras de aceleración puedan organizar los triángulos por
+ * separado, getChildren devuelve una vista con un MeshTriangle (un objeto
+ * liviano que sólo guarda la malla y el índice) por triángulo. Esos mismos
+ * objetos forman la jerarquía de volúmenes envolventes propia de la malla,
+ * que se construye la primera vez que se intersecta la malla entera.
+ */
+public class TriangleMesh extends AbstractSceneObject {
+
+	/** Coordenadas de los vértices: x, y, z por vértice. */
+	private FloatBuffer vertices;
+
+	/** Índices de los vértices de cada triángulo, de a tres. */
+	private final IntBuffer indices;
+
+	/** Componentes de los lados p2 - p1 (e1) y p3 - p1 (e2) de cada triángulo. */
+	private final float[] e1x, e1y, e1z, e2x, e2y, e2z;
+
+	private volatile BoundingBox bb;
+	private volatile Bvh bvh;
+
+	/**
+	 * @param vertices Coordenadas de los vértices (x, y, z por vértice). La
+	 *            malla usa el arreglo sin copiarlo.
+	 * @param indices Índices de los vértices de cada triángulo, de a tres.
+	 * @throws IllegalArgumentException Si algún índice no corresponde a un
+	 *             vértice.
+	 */
+	public TriangleMesh(float[] vertices, int[] indices) {
+		this(FloatBuffer.wrap(vertices), IntBuffer.wrap(indices));
+	}
+
+	/**
+	 * @param vertices Coordenadas de los vértices (x, y, z por vértice), desde
+	 *            el comienzo del buffer hasta su límite. La malla usa el
+	 *            buffer sin copiarlo; si es de sólo lectura, se copia recién
+	 *            al transformar la malla.
+	 * @param indices Índices de los vértices de cada triángulo, de a tres.
+	 * @throws IllegalArgumentException Si algún índice no corresponde a un
+	 *             vértice.
+	 */
+	public TriangleMesh(FloatBuffer vertices, IntBuffer indices) {
+		int vertexCount = vertices.limit() / 3;
+		for (int i = 0; i < indices.limit(); i++) {
+			int index = indices.get(i);
+			if (index < 0 || index >= vertexCount) {
+				throw new IllegalArgumentException("Invalid vertex index "
+						+ index + " in triangle " + i / 3);
+			}
+		}
+		this.vertices = vertices;
+		this.indices = indices;
+		int n = indices.limit() / 3;
+		e1x = new float[n];
+		e1y = new float[n];
+		e1z = new float[n];
+		e2x = new float[n];
+		e2y = new float[n];
+		e2z = new float[n];
+		setEdges();
+	}
+
+	/** @return Cantidad de triángulos de la malla. */
+	public int getTriangleCount() {
+		return e1x.length;
+	}
+
+	/** @return Cantidad de vértices de la malla. */
+	public int getVertexCount() {
+		return vertices.limit() / 3;
+	}
+
+	/**
+	 * @return Las coordenadas de los vértices (x, y, z por vértice), como un
+	 *         buffer de sólo lectura.
+	 */
+	public FloatBuffer getVertices() {
+		return vertices.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return Los índices de los vértices de cada triángulo, como un buffer de
+	 *         sólo lectura.
+	 */
+	public IntBuffer getIndices() {
+		return indices.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Calcula los lados de todos los triángulos y descarta los límites y la
+	 * jerarquía.
+	 */
+	private void setEdges() {
+		FloatBuffer v = vertices;
+		for (int i = 0; i < e1x.length; i++) {
+			int a = 3 * indices.get(3 * i), b = 3 * indices.get(3 * i + 1), c = 3 * indices
+					.get(3 * i + 2);
+			float ax = v.get(a), ay = v.get(a + 1), az = v.get(a + 2);
+			e1x[i] = v.get(b) - ax;
+			e1y[i] = v.get(b + 1) - ay;
+			e1z[i] = v.get(b + 2) - az;
+			e2x[i] = v.get(c) - ax;
+			e2y[i] = v.get(c + 1) - ay;
+			e2z[i] = v.get(c + 2) - az;
+		}
+		bb = null;
+		bvh = null;
+	}
+
+	/**
+	 * @return La jerarquía de los triángulos de la malla. Se construye la
+	 *         primera vez que se la pide.
+	 */
+	private Bvh getBvh() {
+		Bvh b = bvh;
+		if (b == null) {
+			synchronized (this) {
+				b = bvh;
+				if (b == null) {
+					SceneObject[] children = new SceneObject[e1x.length];
+					for (int i = 0; i < children.length; i++) {
+						children[i] = new MeshTriangle(this, i);
+					}
+					b = new Bvh(children);
+					bvh = b;
+				}
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * Escribe el triángulo i como lo usa el test de intersección: el primer
+	 * vértice y los lados e1 y e2 (9 floats a partir de offset).
+	 */
+	void getTriangle(int i, float[] out, int offset) {
+		int v = 3 * indices.get(3 * i);
+		out[offset] = vertices.get(v);
+		out[offset + 1] = vertices.get(v + 1);
+		out[offset + 2] = vertices.get(v + 2);
+		out[offset + 3] = e1x[i];
+		out[offset + 4] = e1y[i];
+		out[offset + 5] = e1z[i];
+		out[offset + 6] = e2x[i];
+		out[offset + 7] = e2y[i];
+		out[offset + 8] = e2z[i];
+	}
+
+	/** Escribe en p el vértice j (0, 1 o 2) del triángulo i. */
+	public void getVertex(int i, int j, Vector3d p) {
+		int v = 3 * indices.get(3 * i + j);
+		p.set(vertices.get(v), vertices.get(v + 1), vertices.get(v + 2));
+	}
+
+	@Override
+	public boolean intersectsRay(Ray ray, Intersection hit) {
+		return getBvh().intersect(ray, hit) != null;
+	}
+
+	@Override
+	public boolean occludes(Ray ray, double tMax) {
+		return getBvh().occludes(ray, tMax);
+	}
+
+	/** Versión de intersectsRay que considera sólo el triángulo i. */
+	boolean intersectsRay(Ray ray, Intersection hit, int i) {
+		double t = checkIntersection(ray, i, hit.distance, hit);
+		if (t < 0) {
+			return false;
+		}
+		hit.distance = t;
+		hit.primitive = i;
+		setHit(ray, i, hit);
+		return true;
+	}
+
+	/** Versión de occludes que considera sólo el triángulo i. */
+	boolean occludes(Ray ray, double tMax, int i) {
+		return checkIntersection(ray, i, tMax, null) >= 0;
+	}
+
+	/**
+	 * Completa el punto y la normal de una intersección con el triángulo i a
+	 * la distancia hit.distance. Como en Triangle, la normal se orienta en el
+	 * sentido del rayo.
+	 */
+	private void setHit(Ray ray, int i, Intersection hit) {
+		hit.point.scaleAdd(hit.distance, ray.direction, ray.position);
+		setNormal(i, hit.normal);
+		if (hit.normal.dot(ray.direction) < 0) {
+			hit.normal.negate();
+		}
+	}
+
+	/** Escribe en n la normal (e1 x e2 normalizada) del triángulo i. */
+	private void setNormal(int i, Vector3d n) {
+		n.set((double) e1y[i] * e2z[i] - (double) e1z[i] * e2y[i],
+				(double) e1z[i] * e2x[i] - (double) e1x[i] * e2z[i],
+				(double) e1x[i] * e2y[i] - (double) e1y[i] * e2x[i]);
+		n.normalize();
+	}
+
+	/**
+	 * Intersecta el rayo con el triángulo i sin alocar memoria (ver
+	 * TriangleIntersector).
+	 *
+	 * @param uv Si no es null, recibe las coordenadas baricéntricas.
+	 * @return Distancia a la intersección, o -1 si no hay intersección a
+	 *         menos de withinDistance.
+	 */
+	private double checkIntersection(Ray r, int i, double withinDistance,
+			Intersection uv) {
+		if (RenderStatistics.enabled)
+			RenderStatistics.intersectionTests.increment();
+		int v = 3 * indices.get(3 * i);
+		return TriangleIntersector.intersect(r.position, r.direction,
+				vertices.get(v), vertices.get(v + 1), vertices.get(v + 2), e1x[i], e1y[i],
+				e1z[i], e2x[i], e2y[i], e2z[i], withinDistance, uv);
+	}
+
+	/** Versión de intersectsBox que considera sólo el triángulo i. */
+	boolean intersectsBox(BoundingBox bb, int i) {
+		int v = 3 * indices.get(3 * i);
+		return TriangleIntersector.overlapsBox(vertices.get(v), vertices.get(v + 1),
+				vertices.get(v + 2), e1x[i], e1y[i], e1z[i], e2x[i], e2y[i],
+				e2z[i], bb.xmin, bb.xmax, bb.ymin, bb.ymax, bb.zmin, bb.zmax);
+	}
+
+	@Override
+	public Vector3d getNormalAt(Vector3d point) {
+		Vector3d p = new Vector3d();
+		for (int i = 0; i < e1x.length; i++) {
+			if (pointBelongs(i, point)) {
+				setNormal(i, p);
+				return p;
+			}
+		}
+		return null;
+	}
+
+	/** @return Si el punto pertenece al triángulo i. */
+	boolean pointBelongs(int i, Vector3d point) {
+		Vector3d n = new Vector3d();
+		setNormal(i, n);
+		int v = 3 * indices.get(3 * i);
+		return TriangleIntersector.contains(point.x, point.y, point.z,
+				vertices.get(v), vertices.get(v + 1), vertices.get(v + 2), e1x[i], e1y[i],
+				e1z[i], e2x[i], e2y[i], e2z[i], n);
+	}
+
+	/**
+	 * Transforma los vértices. Si el buffer de vértices es de sólo lectura
+	 * (e.g. mapeado de un archivo), primero se lo copia a un arreglo.
+	 */
+	@Override
+	public void transform(Transformation t) {
+		Matrix4d m = t.getTransformationMatrix(true);
+		if (vertices.isReadOnly()) {
+			float[] copy = new float[vertices.limit()];
+			vertices.duplicate().get(copy);
+			vertices = FloatBuffer.wrap(copy);
+		}
+		FloatBuffer vs = vertices;
+		for (int v = 0; v + 2 < vs.limit(); v += 3) {
+			double x = vs.get(v), y = vs.get(v + 1), z = vs.get(v + 2);
+			vs.put(v, (float) (m.m00 * x + m.m01 * y + m.m02 * z + m.m03));
+			vs.put(v + 1, (float) (m.m10 * x + m.m11 * y + m.m12 * z + m.m13));
+			vs.put(v + 2, (float) (m.m20 * x + m.m21 * y + m.m22 * z + m.m23));
+		}
+		setEdges();
+	}
+
+	@Override
+	public BoundingBox getBounds() {
+		if (bb == null) {
+			bb = getBounds(0, e1x.length);
+		}
+		return bb;
+	}
+
+	/** @return BoundingBox de los triángulos first a last - 1. */
+	BoundingBox getBounds(int first, int last) {
+		if (first >= last) {
+			return new BoundingBox(0, 0, 0, 0, 0, 0);
+		}
+		double xmin, xmax, ymin, ymax, zmin, zmax;
+		xmin = ymin = zmin = Double.MAX_VALUE;
+		xmax = ymax = zmax = -Double.MAX_VALUE;
+		for (int k = 3 * first; k < 3 * last; k++) {
+			int v = 3 * indices.get(k);
+			float x = vertices.get(v), y = vertices.get(v + 1), z = vertices.get(v + 2);
+			xmin = Math.min(xmin, x);
+			xmax = Math.max(xmax, x);
+			ymin = Math.min(ymin, y);
+			ymax = Math.max(ymax, y);
+			zmin = Math.min(zmin, z);
+			zmax = Math.max(zmax, z);
+		}
+		return new BoundingBox(xmin, xmax, ymin, ymax, zmin, zmax);
+	}
+
+	/**
+	 * @return Vista con un MeshTriangle por triángulo. Los MeshTriangles son
+	 *         de sólo lectura: comparten los vértices de la malla, y su
+	 *         método transform lanza UnsupportedOperationException. Para
+	 *         transformarlos hay que transformar la malla.
+	 */
+	@Override
+	public Collection<? extends SceneObject> getChildren() {
+		return new AbstractList<MeshTriangle>() {
+			@Override
+			public MeshTriangle get(int index) {
+				return new MeshTriangle(TriangleMesh.this, index);
+			}
+
+			@Override
+			public int size() {
+				return e1x.length;
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "TriangleMesh(vertices=" + getVertexCount() + ", triangles="
+				+ getTriangleCount() + ")";
+	}
+
+}
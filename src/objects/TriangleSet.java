@@ -1,25 +1,33 @@
 package objects;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.vecmath.Vector3d;
 
 import raytracer.Ray;
-import raytracer.Util;
 import scene.BoundingBox;
+import scene.Bvh;
 import scene.Intersection;
 import scene.Transformation;
 
+/**
+ * Conjunto de triángulos independientes. Para intersectarlo sin recorrer
+ * todos sus triángulos, construye (la primera vez que se lo necesita) una
+ * jerarquía de volúmenes envolventes propia, cuya caja raíz descarta de
+ * entrada los rayos que no pasan cerca del conjunto. Así un conjunto grande
+ * es barato aun si la escena no usa una estructura de aceleración global.
+ */
 public class TriangleSet extends AbstractSceneObject {
 
-	private Set<Triangle> triangles;
-	private BoundingBox bb;
+	private List<Triangle> triangles;
+	private volatile BoundingBox bb;
+	private volatile Bvh bvh;
 
 	public TriangleSet() {
-		triangles = new HashSet<Triangle>();
+		triangles = new ArrayList<Triangle>();
 		bb = null;
 	}
 
@@ -34,40 +42,51 @@ public class TriangleSet extends AbstractSceneObject {
 	}
 
 	private void setBounds() {
+		BoundingBox bounds;
 		if (triangles.size() == 0) {
-			bb = new BoundingBox(0, 0, 0, 0, 0, 0);
+			bounds = new BoundingBox(0, 0, 0, 0, 0, 0);
 		} else {
 			Iterator<Triangle> it = triangles.iterator();
-			bb = it.next().getBounds();
+			bounds = it.next().getBounds();
 			while (it.hasNext()) {
-				bb = bb.merge(it.next().getBounds());
+				bounds = bounds.merge(it.next().getBounds());
 			}
 		}
+		bb = bounds;
 	}
 
-	@Override
-	public Intersection intersectsRay(Ray ray) {
-		double currentDistance, nearestDistance = Double.MAX_VALUE;
-		Intersection nearestIntersection = null;
-
-		for (Triangle t : triangles) {
-			Intersection currentIntersection = t.intersectsRay(ray);
-			if (currentIntersection == null) {
-				continue;
+	/**
+	 * @return La jerarquía de los triángulos del conjunto. Se construye la
+	 *         primera vez que se la pide, y se descarta si el conjunto cambia.
+	 */
+	private Bvh getBvh() {
+		Bvh b = bvh;
+		if (b == null) {
+			synchronized (this) {
+				b = bvh;
+				if (b == null) {
+					b = new Bvh(triangles.toArray(new SceneObject[triangles
+							.size()]));
+					bvh = b;
+				}
 			}
+		}
+		return b;
+	}
 
-			Vector3d aux = new Vector3d(currentIntersection.point);
-			aux.sub(ray.position);
-			currentDistance = Util.Norm(aux);
-
-			if (nearestIntersection == null
-					|| currentDistance < nearestDistance) {
-				nearestIntersection = currentIntersection;
-				nearestDistance = currentDistance;
-			}
+	@Override
+	public boolean intersectsRay(Ray ray, Intersection hit) {
+		int i = getBvh().intersectIndex(ray, hit);
+		if (i < 0) {
+			return false;
 		}
+		hit.primitive = i;
+		return true;
+	}
 
-		return nearestIntersection;
+	@Override
+	public boolean occludes(Ray ray, double tMax) {
+		return getBvh().occludes(ray, tMax);
 	}
 
 	@Override
@@ -75,6 +94,8 @@ public class TriangleSet extends AbstractSceneObject {
 		for (Triangle tri : triangles) {
 			tri.transform(t);
 		}
+		bb = null;
+		bvh = null;
 	}
 
 	public void addTriangle(Vector3d p1, Vector3d p2, Vector3d p3) {
@@ -83,6 +104,7 @@ public class TriangleSet extends AbstractSceneObject {
 		t.material = this.material;
 		triangles.add(t);
 		bb = null;
+		bvh = null;
 	}
 
 	@Override
@@ -0,0 +1,594 @@
+package raytracer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.AxisAngle4d;
+import javax.vecmath.Matrix4d;
+import javax.vecmath.Vector3d;
+
+import objects.Instance;
+import objects.Material;
+import objects.PageCache;
+import objects.PagedTriangleMesh;
+import objects.SceneObject;
+import objects.Sphere;
+import objects.Triangle;
+import objects.TriangleMesh;
+import objects.TriangleSet;
+import scene.PointLight;
+import scene.Scene;
+
+/**
+ * Formato binario de escenas. Guarda una escena ya construida (con las
+ * transformaciones aplicadas), de modo que cargarla no requiere parsear
+ * texto ni transformar vértices: los vértices y los índices de cada
+ * TriangleMesh se mapean en memoria y la malla usa esos buffers sin copiarlos.
+ *
+ * Todos los valores son little-endian. El archivo contiene, en orden:
+ * <ul>
+ * <li>MAGIC y VERSION (int).</li>
+ * <li>La cámara: posición (3 doubles), orientación (4), campo visual (1),
+ * matriz de rotación (16) y matriz de transformación (16).</li>
+ * <li>La cantidad de luces (int) y cada luz: posición (3 doubles), color (3),
+ * radio (1) y atenuación (4 floats, el último sin usar).</li>
+ * <li>La geometría compartida por instancias: cantidad (int) y registros.</li>
+ * <li>Los objetos de la escena: cantidad (int) y registros.</li>
+ * </ul>
+ * Cada registro tiene el tipo (int), el material (13 doubles) y los datos del
+ * tipo: esfera (posición y radio), conjunto de triángulos (cantidad y 9
+ * doubles por triángulo), malla (cantidad de floats de vértices y de índices,
+ * y los bloques de vértices e índices, alineados a 8 bytes) o instancia
+ * (índice de la geometría compartida y matriz de 16 doubles).
+ *
+ * Una malla también se puede guardar paginada (ver PagedTriangleMesh):
+ * cantidad de triángulos, de nodos y de páginas (int), y los bloques de
+ * límites de los nodos (doubles), nodos (ints), comienzos de las páginas
+ * (ints) y triángulos (9 floats cada uno), alineados a 8 bytes. Al cargarla
+ * sólo se mapean los nodos; los triángulos se leen por páginas a medida que
+ * se los necesita, por lo que el archivo queda abierto.
+ */
+public class BinaryScene {
+
+	/** Extensión de los archivos de escena binarios. */
+	public static final String EXTENSION = ".rtb";
+
+	/** "RTSB" */
+	private static final int MAGIC = 0x52545342;
+
+	private static final int VERSION = 1;
+
+	private static final int SPHERE = 1;
+	private static final int TRIANGLE_SET = 2;
+	private static final int TRIANGLE_MESH = 3;
+	private static final int INSTANCE = 4;
+	private static final int PAGED_MESH = 5;
+
+	private BinaryScene() {
+	}
+
+	/**
+	 * Guarda una escena.
+	 *
+	 * @throws IOException Si hay errores al escribir el archivo, o si la
+	 *             escena tiene objetos que el formato no soporta.
+	 */
+	public static void write(Scene scene, File file) throws IOException {
+		write(scene, file, false);
+	}
+
+	/**
+	 * Guarda una escena.
+	 *
+	 * @param paged Si las mallas se guardan paginadas, para cargarlas como
+	 *            PagedTriangleMesh.
+	 * @throws IOException Si hay errores al escribir el archivo, o si la
+	 *             escena tiene objetos que el formato no soporta.
+	 */
+	public static void write(Scene scene, File file, boolean paged)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			Output out = new Output(raf.getChannel());
+			out.putInt(MAGIC);
+			out.putInt(VERSION);
+
+			Camera camera = scene.getCamera();
+			out.putVector(camera.position);
+			AxisAngle4d o = camera.orientation;
+			out.putDoubles(o.x, o.y, o.z, o.angle, camera.fieldOfView);
+			out.putMatrix(camera.rotationMatrix);
+			out.putMatrix(camera.transformationMatrix);
+
+			out.putInt(scene.getLights().size());
+			for (PointLight light : scene.getLights()) {
+				out.putVector(light.getPosition());
+				out.putVector(light.getColor());
+				out.putDoubles(light.getRadio());
+				float[] a = light.getAttenuation();
+				out.putFloats(a[0], a[1], a[2], 0);
+			}
+
+			Map<SceneObject, Integer> shared = new IdentityHashMap<SceneObject, Integer>();
+			List<SceneObject> geometry = new ArrayList<SceneObject>();
+			for (SceneObject object : scene.getObjects()) {
+				if (object instanceof Instance) {
+					SceneObject g = ((Instance) object).getObject();
+					if (!shared.containsKey(g)) {
+						shared.put(g, geometry.size());
+						geometry.add(g);
+					}
+				}
+			}
+			out.putInt(geometry.size());
+			for (SceneObject g : geometry) {
+				if (g instanceof Instance) {
+					throw new IOException("Nested instances are not supported");
+				}
+				writeObject(out, g, shared, paged);
+			}
+			out.putInt(scene.getObjects().size());
+			for (SceneObject object : scene.getObjects()) {
+				writeObject(out, object, shared, paged);
+			}
+			out.flush();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void writeObject(Output out, SceneObject object,
+			Map<SceneObject, Integer> shared, boolean paged) throws IOException {
+		Material m = object.getMaterial();
+		if (object instanceof Sphere) {
+			out.putInt(SPHERE);
+		} else if (object instanceof TriangleSet) {
+			out.putInt(TRIANGLE_SET);
+		} else if (object instanceof TriangleMesh) {
+			out.putInt(paged ? PAGED_MESH : TRIANGLE_MESH);
+		} else if (object instanceof Instance) {
+			out.putInt(INSTANCE);
+		} else {
+			throw new IOException("Unsupported object: " + object);
+		}
+		out.putVector(m.diffuseColor);
+		out.putVector(m.specularColor);
+		out.putDoubles(m.diffuseIndex, m.specularIndex, m.ambientIntensity,
+				m.transparency, m.refractionIndex, m.reflectionIndex,
+				m.shininess);
+
+		if (object instanceof Sphere) {
+			Sphere sphere = (Sphere) object;
+			out.putVector(sphere.position);
+			out.putDoubles(sphere.radius);
+		} else if (object instanceof TriangleSet) {
+			out.putInt(object.getChildren().size());
+			for (SceneObject child : object.getChildren()) {
+				Triangle t = (Triangle) child;
+				out.putVector(t.p1);
+				out.putVector(t.p2);
+				out.putVector(t.p3);
+			}
+		} else if (object instanceof TriangleMesh && paged) {
+			PagedTriangleMesh.Layout layout = PagedTriangleMesh
+					.layout((TriangleMesh) object);
+			out.putInt(layout.triangles.length / 9);
+			out.putInt(layout.nodes.length / 2);
+			out.putInt(layout.pageStart.length - 1);
+			out.align();
+			out.put(DoubleBuffer.wrap(layout.bounds));
+			out.put(IntBuffer.wrap(layout.nodes));
+			out.put(IntBuffer.wrap(layout.pageStart));
+			out.align();
+			out.put(FloatBuffer.wrap(layout.triangles));
+			out.align();
+		} else if (object instanceof TriangleMesh) {
+			TriangleMesh mesh = (TriangleMesh) object;
+			FloatBuffer vertices = mesh.getVertices();
+			IntBuffer indices = mesh.getIndices();
+			out.putInt(vertices.limit());
+			out.putInt(indices.limit());
+			out.align();
+			out.put(vertices);
+			out.align();
+			out.put(indices);
+			out.align();
+		} else {
+			Instance instance = (Instance) object;
+			out.putInt(shared.get(instance.getObject()));
+			out.putMatrix(instance.getTransformationMatrix());
+		}
+	}
+
+	/**
+	 * Carga una escena, con una caché de capacidad
+	 * PageCache.DEFAULT_CAPACITY para las mallas paginadas.
+	 *
+	 * @throws IOException Si hay errores al leer el archivo o si no es un
+	 *             archivo de escena válido.
+	 */
+	public static Scene read(File file) throws IOException {
+		return read(file, new PageCache(PageCache.DEFAULT_CAPACITY));
+	}
+
+	/**
+	 * Carga una escena. Los buffers de las mallas quedan mapeados aunque el
+	 * archivo se cierre.
+	 *
+	 * @param cache Caché para las páginas de las mallas paginadas.
+	 * @throws IOException Si hay errores al leer el archivo o si no es un
+	 *             archivo de escena válido.
+	 */
+	public static Scene read(File file, PageCache cache) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		boolean close = true;
+		try {
+			Input in = new Input(raf.getChannel(), cache);
+			if (in.getInt() != MAGIC) {
+				throw new IOException(file + ": not a binary scene file");
+			}
+			int version = in.getInt();
+			if (version != VERSION) {
+				throw new IOException(file + ": unsupported binary scene version "
+						+ version);
+			}
+			Scene scene = new Scene();
+
+			Vector3d position = in.getVector();
+			AxisAngle4d orientation = new AxisAngle4d(in.getDouble(), in
+					.getDouble(), in.getDouble(), in.getDouble());
+			Camera camera = new Camera(position, orientation, in.getDouble());
+			camera.rotationMatrix = in.getMatrix();
+			camera.transformationMatrix = in.getMatrix();
+			scene.setCamera(camera);
+
+			int lights = in.getCount();
+			for (int i = 0; i < lights; i++) {
+				PointLight light = new PointLight();
+				light.setPosition(in.getVector());
+				light.setColor(in.getVector());
+				light.setRadio(in.getDouble());
+				light.setAttenuation(new float[] { in.getFloat(),
+						in.getFloat(), in.getFloat() });
+				in.getFloat();
+				scene.addLight(light);
+			}
+
+			SceneObject[] geometry = new SceneObject[in.getCount()];
+			for (int i = 0; i < geometry.length; i++) {
+				geometry[i] = readObject(in, null);
+			}
+			int objects = in.getCount();
+			for (int i = 0; i < objects; i++) {
+				scene.addSceneObject(readObject(in, geometry));
+			}
+			// Las mallas paginadas siguen leyendo del archivo
+			close = !in.paged;
+			return scene;
+		} catch (IllegalArgumentException e) {
+			throw new IOException(file + ": " + e.getMessage());
+		} finally {
+			if (close) {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * @param geometry Geometría compartida, o null si no se admiten
+	 *            instancias.
+	 */
+	private static SceneObject readObject(Input in, SceneObject[] geometry)
+			throws IOException {
+		int type = in.getInt();
+		Material m = new Material();
+		m.diffuseColor = in.getVector();
+		m.specularColor = in.getVector();
+		m.diffuseIndex = in.getDouble();
+		m.specularIndex = in.getDouble();
+		m.ambientIntensity = in.getDouble();
+		m.transparency = in.getDouble();
+		m.refractionIndex = in.getDouble();
+		m.reflectionIndex = in.getDouble();
+		m.shininess = in.getDouble();
+
+		SceneObject object;
+		if (type == SPHERE) {
+			Sphere sphere = new Sphere();
+			sphere.position = in.getVector();
+			sphere.radius = in.getDouble();
+			object = sphere;
+		} else if (type == TRIANGLE_SET) {
+			TriangleSet triangleSet = new TriangleSet();
+			int n = in.getCount();
+			for (int i = 0; i < n; i++) {
+				triangleSet.addTriangle(in.getVector(), in.getVector(), in
+						.getVector());
+			}
+			object = triangleSet;
+		} else if (type == TRIANGLE_MESH) {
+			int vertexCount = in.getCount();
+			int indexCount = in.getCount();
+			in.align();
+			FloatBuffer vertices = in.map(4L * vertexCount).asFloatBuffer();
+			in.align();
+			IntBuffer indices = in.map(4L * indexCount).asIntBuffer();
+			in.align();
+			object = new TriangleMesh(vertices, indices);
+		} else if (type == PAGED_MESH) {
+			int triangleCount = in.getCount();
+			int nodeCount = in.getCount();
+			int pageCount = in.getCount();
+			in.align();
+			DoubleBuffer bounds = in.map(48L * nodeCount).asDoubleBuffer();
+			IntBuffer nodes = in.map(8L * nodeCount).asIntBuffer();
+			int[] pageStart = new int[pageCount + 1];
+			in.map(4L * pageStart.length).asIntBuffer().get(pageStart);
+			in.align();
+			long dataOffset = in.position();
+			in.skip((long) PagedTriangleMesh.TRIANGLE_SIZE * triangleCount);
+			in.align();
+			if (pageStart[pageCount] != triangleCount) {
+				throw new IOException("Invalid paged mesh");
+			}
+			object = new PagedTriangleMesh(bounds, nodes, pageStart,
+					in.channel, dataOffset, in.cache);
+			in.paged = true;
+		} else if (type == INSTANCE && geometry != null) {
+			int index = in.getInt();
+			if (index < 0 || index >= geometry.length) {
+				throw new IOException("Invalid instance geometry " + index);
+			}
+			object = new Instance(geometry[index], in.getMatrix());
+		} else {
+			throw new IOException("Invalid object type " + type);
+		}
+		object.getMaterial().set(m);
+		return object;
+	}
+
+	/** Escritura secuencial a través de un buffer. */
+	private static class Output {
+		private final FileChannel channel;
+		private final ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(
+				ByteOrder.LITTLE_ENDIAN);
+		private long written;
+
+		Output(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		private void require(int n) throws IOException {
+			if (buf.remaining() < n) {
+				flush();
+			}
+		}
+
+		void flush() throws IOException {
+			buf.flip();
+			while (buf.hasRemaining()) {
+				written += channel.write(buf);
+			}
+			buf.clear();
+		}
+
+		/** Completa con ceros hasta una posición múltiplo de 8. */
+		void align() throws IOException {
+			require(8);
+			while ((written + buf.position()) % 8 != 0) {
+				buf.put((byte) 0);
+			}
+		}
+
+		void putInt(int value) throws IOException {
+			require(4);
+			buf.putInt(value);
+		}
+
+		void putDoubles(double... values) throws IOException {
+			for (double v : values) {
+				require(8);
+				buf.putDouble(v);
+			}
+		}
+
+		void putFloats(float... values) throws IOException {
+			for (float v : values) {
+				require(4);
+				buf.putFloat(v);
+			}
+		}
+
+		void putVector(Vector3d v) throws IOException {
+			putDoubles(v.x, v.y, v.z);
+		}
+
+		void putMatrix(Matrix4d m) throws IOException {
+			for (int i = 0; i < 4; i++) {
+				for (int j = 0; j < 4; j++) {
+					putDoubles(m.getElement(i, j));
+				}
+			}
+		}
+
+		void put(FloatBuffer src) throws IOException {
+			src = src.duplicate();
+			src.rewind();
+			while (src.hasRemaining()) {
+				require(4);
+				int n = Math.min(src.remaining(), buf.remaining() / 4);
+				FloatBuffer chunk = src.duplicate();
+				chunk.limit(chunk.position() + n);
+				buf.asFloatBuffer().put(chunk);
+				buf.position(buf.position() + 4 * n);
+				src.position(src.position() + n);
+			}
+		}
+
+		void put(DoubleBuffer src) throws IOException {
+			src = src.duplicate();
+			src.rewind();
+			while (src.hasRemaining()) {
+				require(8);
+				int n = Math.min(src.remaining(), buf.remaining() / 8);
+				DoubleBuffer chunk = src.duplicate();
+				chunk.limit(chunk.position() + n);
+				buf.asDoubleBuffer().put(chunk);
+				buf.position(buf.position() + 8 * n);
+				src.position(src.position() + n);
+			}
+		}
+
+		void put(IntBuffer src) throws IOException {
+			src = src.duplicate();
+			src.rewind();
+			while (src.hasRemaining()) {
+				require(4);
+				int n = Math.min(src.remaining(), buf.remaining() / 4);
+				IntBuffer chunk = src.duplicate();
+				chunk.limit(chunk.position() + n);
+				buf.asIntBuffer().put(chunk);
+				buf.position(buf.position() + 4 * n);
+				src.position(src.position() + n);
+			}
+		}
+	}
+
+	/**
+	 * Lectura secuencial a través de un buffer; los bloques grandes se mapean
+	 * en memoria.
+	 */
+	private static class Input {
+		final FileChannel channel;
+
+		/** Caché de las mallas paginadas. */
+		final PageCache cache;
+
+		/** Si se leyó alguna malla paginada. */
+		boolean paged;
+
+		private final ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(
+				ByteOrder.LITTLE_ENDIAN);
+
+		/** Posición en el archivo del byte siguiente al buffer. */
+		private long next;
+
+		Input(FileChannel channel, PageCache cache) {
+			this.channel = channel;
+			this.cache = cache;
+			buf.limit(0);
+		}
+
+		long position() {
+			return next - buf.remaining();
+		}
+
+		private void require(int n) throws IOException {
+			if (buf.remaining() >= n) {
+				return;
+			}
+			buf.compact();
+			while (buf.position() < n) {
+				int read = channel.read(buf, next);
+				if (read < 0) {
+					throw new EOFException("Truncated binary scene file");
+				}
+				next += read;
+			}
+			buf.flip();
+		}
+
+		int getInt() throws IOException {
+			require(4);
+			return buf.getInt();
+		}
+
+		/** @return Un entero no negativo. */
+		int getCount() throws IOException {
+			int n = getInt();
+			if (n < 0) {
+				throw new IOException("Invalid count " + n);
+			}
+			return n;
+		}
+
+		float getFloat() throws IOException {
+			require(4);
+			return buf.getFloat();
+		}
+
+		double getDouble() throws IOException {
+			require(8);
+			return buf.getDouble();
+		}
+
+		Vector3d getVector() throws IOException {
+			return new Vector3d(getDouble(), getDouble(), getDouble());
+		}
+
+		Matrix4d getMatrix() throws IOException {
+			Matrix4d m = new Matrix4d();
+			for (int i = 0; i < 4; i++) {
+				for (int j = 0; j < 4; j++) {
+					m.setElement(i, j, getDouble());
+				}
+			}
+			return m;
+		}
+
+		/** Avanza hasta una posición múltiplo de 8. */
+		void align() throws IOException {
+			long position = position();
+			long aligned = (position + 7) & ~7L;
+			seek(aligned);
+		}
+
+		/**
+		 * Mapea en memoria (sólo lectura) los próximos size bytes y avanza
+		 * sobre ellos.
+		 */
+		ByteBuffer map(long size) throws IOException {
+			long position = position();
+			if (position + size > channel.size()) {
+				throw new EOFException("Truncated binary scene file");
+			}
+			ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+					position, size).order(ByteOrder.LITTLE_ENDIAN);
+			seek(position + size);
+			return mapped;
+		}
+
+		/** Avanza size bytes, que deben estar en el archivo. */
+		void skip(long size) throws IOException {
+			long position = position();
+			if (position + size > channel.size()) {
+				throw new EOFException("Truncated binary scene file");
+			}
+			seek(position + size);
+		}
+
+		private void seek(long position) {
+			long start = next - buf.limit();
+			if (position >= start && position <= next) {
+				buf.position((int) (position - start));
+			} else {
+				buf.limit(0);
+				next = position;
+			}
+		}
+	}
+
+}
@@ -1,13 +1,15 @@
 package raytracer;
 
 import java.awt.Dimension;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
-
+import objects.PageCache;
+import scene.AccelerationCache;
+import scene.BvhScene;
 import scene.OctreeScene;
 import scene.Scene;
 
@@ -25,6 +27,23 @@ public class CgTpe2 {
 	private int optionHeight = 300;
 	private boolean optionShow;
 	private int optionShadow = 1;
+	private int optionThreads = 1;
+	private long optionSeed = 0;
+	private String optionAccel = "octree";
+	private boolean optionStats = false;
+	private String optionCache;
+	private String optionLoader = "stax";
+	private String optionConvert;
+	private boolean optionPaged = false;
+	private long optionPageCache = PageCache.DEFAULT_CAPACITY;
+	private boolean optionPageCacheSet = false;
+	private boolean optionStream = false;
+	private boolean optionAdaptive = false;
+	private boolean optionAdaptivePenumbra = false;
+	private String optionSampler = "stratified";
+	private double optionContrast = RayTracer.DEFAULT_CONTRAST;
+	private double optionCutoff = RayTracer.DEFAULT_CUTOFF;
+	private boolean optionRoulette = false;
 
 	public static void main(String[] args) {
 		CgTpe2 cgtpe2 = new CgTpe2();
@@ -64,6 +83,17 @@ public class CgTpe2 {
 		for (int i = 0; i < args.length; i++) {
 			if (args[i].equals("-progress")) {
 				optionProgress = true;
+			} else if (args[i].equals("-accel")) {
+				optionAccel = (i + 1 < args.length ? args[++i] : "");
+				if (!optionAccel.equals("octree") && !optionAccel.equals("bvh")
+						&& !optionAccel.equals("none")) {
+					throw new IllegalArgumentException("Invalid acceleration structure: "
+							+ optionAccel);
+				}
+			} else if (args[i].equals("-adaptive")) {
+				optionAdaptive = true;
+			} else if (args[i].equals("-adaptive-penumbra")) {
+				optionAdaptivePenumbra = true;
 			} else if (args[i].startsWith("-a")) {
 				if (args[i].length() > 2 && args[i].charAt(2) != 's') {
 					throw new IllegalArgumentException("Unsupported antialiasing flag: "
@@ -106,6 +136,18 @@ public class CgTpe2 {
 				}
 			} else if (args[i].equals("-show")) {
 				optionShow = true;
+			} else if (args[i].equals("-paged")) {
+				optionPaged = true;
+			} else if (args[i].equals("-pagecache")) {
+				try {
+					optionPageCache = Long.parseLong(i + 1 < args.length ? args[++i] : "") << 20;
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid page cache size.");
+				}
+				if (optionPageCache <= 0) {
+					throw new IllegalArgumentException("Invalid page cache size.");
+				}
+				optionPageCacheSet = true;
 			} else if (args[i].startsWith("-p")) {
 				try {
 					String s = args[i].substring(2);
@@ -115,6 +157,67 @@ public class CgTpe2 {
 				} catch (NumberFormatException e) {
 					throw new IllegalArgumentException("Invalid shadow parameter: " + args[i]);
 				}
+			} else if (args[i].equals("-threads")) {
+				try {
+					optionThreads = Integer.parseInt(i + 1 < args.length ? args[++i] : "");
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid number of threads: " + args[i]);
+				}
+				if (optionThreads < 1) {
+					throw new IllegalArgumentException("Invalid number of threads: " + args[i]);
+				}
+			} else if (args[i].equals("-seed")) {
+				try {
+					optionSeed = Long.parseLong(i + 1 < args.length ? args[++i] : "");
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid seed: " + args[i]);
+				}
+			} else if (args[i].equals("-contrast")) {
+				try {
+					optionContrast = Double.parseDouble(i + 1 < args.length ? args[++i] : "");
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid contrast threshold: " + args[i]);
+				}
+				if (!(optionContrast >= 0)) {
+					throw new IllegalArgumentException("Invalid contrast threshold: " + args[i]);
+				}
+			} else if (args[i].equals("-cutoff")) {
+				try {
+					optionCutoff = Double.parseDouble(i + 1 < args.length ? args[++i] : "");
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid cutoff: " + args[i]);
+				}
+				if (!(optionCutoff >= 0 && optionCutoff < 1)) {
+					throw new IllegalArgumentException("Invalid cutoff: " + args[i]);
+				}
+			} else if (args[i].equals("-roulette")) {
+				optionRoulette = true;
+			} else if (args[i].equals("-sampler")) {
+				optionSampler = (i + 1 < args.length ? args[++i] : "");
+				if (!Arrays.asList(Sampler.NAMES).contains(optionSampler)) {
+					throw new IllegalArgumentException("Invalid sampler: " + optionSampler);
+				}
+			} else if (args[i].equals("-stream")) {
+				optionStream = true;
+			} else if (args[i].equals("-stats")) {
+				optionStats = true;
+			} else if (args[i].equals("-cache")) {
+				optionCache = (i + 1 < args.length ? args[++i] : "");
+				if (optionCache.length() == 0) {
+					throw new IllegalArgumentException("No cache directory supplied.");
+				}
+			} else if (args[i].equals("-loader")) {
+				optionLoader = (i + 1 < args.length ? args[++i] : "");
+				if (!optionLoader.equals("stax") && !optionLoader.equals("xj3d")) {
+					throw new IllegalArgumentException("Invalid scene loader: "
+							+ optionLoader);
+				}
+			} else if (args[i].equals("-convert")) {
+				optionConvert = (i + 1 < args.length ? args[++i] : "");
+				if (!optionConvert.endsWith(BinaryScene.EXTENSION)) {
+					throw new IllegalArgumentException("Converted scene file must have "
+							+ BinaryScene.EXTENSION + " extension.");
+				}
 			} else {
 				throw new IllegalArgumentException("Invalid option: " + args[i]);
 			}
@@ -122,12 +225,23 @@ public class CgTpe2 {
 		if (optionInputFile == null) {
 			throw new IllegalArgumentException("No input file supplied.");
 		}
-		String[] inputFileParts = optionInputFile.split("\\.");
-		if (!inputFileParts[inputFileParts.length - 1].equals("x3d")) {
-			throw new IllegalArgumentException("Input file must have .x3d extension.");
+		if (!optionInputFile.endsWith(".x3d")
+				&& !optionInputFile.endsWith(BinaryScene.EXTENSION)) {
+			throw new IllegalArgumentException("Input file must have .x3d or "
+					+ BinaryScene.EXTENSION + " extension.");
 		}
 		if (optionOutputFile == null) {
-			optionOutputFile = optionInputFile.replaceAll("\\.x3d", ".png");
+			optionOutputFile = optionInputFile.replaceAll("\\.[^.]*$", ".png");
+		}
+		if (optionStream && (optionShow || !optionOutputFile.toLowerCase().endsWith(".png"))) {
+			throw new IllegalArgumentException("-stream requires a PNG output file and cannot be used with -show.");
+		}
+		if (optionPaged && optionConvert == null) {
+			throw new IllegalArgumentException("-paged can only be used with -convert.");
+		}
+		if (optionPageCacheSet && !optionInputFile.endsWith(BinaryScene.EXTENSION)) {
+			throw new IllegalArgumentException("-pagecache requires a "
+					+ BinaryScene.EXTENSION + " input file.");
 		}
 		return;
 	}
@@ -140,18 +254,77 @@ public class CgTpe2 {
 	 */
 	public void renderScene() throws IOException {
 		SceneLoader sceneLoader = new SceneLoader();
+		sceneLoader.setStreaming(optionLoader.equals("stax"));
+		PageCache pageCache = new PageCache(optionPageCache);
+		sceneLoader.setPageCache(pageCache);
+		long loadStart = System.nanoTime();
 		Scene scene = sceneLoader.loadScene(optionInputFile);
+		long loadEnd = System.nanoTime();
 		//scene.dumpScene();
+		if (optionConvert != null) {
+			BinaryScene.write(scene, new File(optionConvert), optionPaged);
+			return;
+		}
 		Dimension imageSize = new Dimension(optionWidth, optionHeight);
-		RayTracer rayTracer = new RayTracer(new OctreeScene(scene), imageSize, optionAntialiasing, optionShadow);
-		//RayTracer rayTracer = new RayTracer(scene, imageSize, optionAntialiasing, optionShadow);
-		BufferedImage result = rayTracer.render(optionProgress);
-		if (optionShow) {
-			new RenderViewer(result);
+		RenderStatistics.enabled = optionStats;
+		AccelerationCache cache = null;
+		if (optionCache != null) {
+			cache = new AccelerationCache(new File(optionCache));
+		}
+		long buildStart = System.nanoTime();
+		if (optionAccel.equals("octree")) {
+			scene = new OctreeScene(scene, optionThreads, cache);
+		} else if (optionAccel.equals("bvh")) {
+			scene = new BvhScene(scene, cache);
+		}
+		long renderStart = System.nanoTime();
+		RayTracer rayTracer = new RayTracer(scene, imageSize, optionAntialiasing, optionShadow);
+		rayTracer.setThreads(optionThreads);
+		rayTracer.setSeed(optionSeed);
+		rayTracer.setAdaptive(optionAdaptive, optionContrast);
+		rayTracer.setAdaptivePenumbra(optionAdaptivePenumbra);
+		rayTracer.setSampler(optionSampler);
+		rayTracer.setCutoff(optionCutoff, optionRoulette);
+		FrameBuffer result = null;
+		// Los contadores son globales: que cuenten sólo este rendering
+		RenderStatistics.reset();
+		if (optionStream) {
+			StreamingPngWriter writer = new StreamingPngWriter(new File(optionOutputFile),
+					imageSize.width, imageSize.height);
+			try {
+				rayTracer.render(writer, optionProgress);
+			} finally {
+				writer.close();
+			}
 		} else {
+			result = new FrameBuffer(imageSize.width, imageSize.height);
+			rayTracer.render(result, optionProgress);
+		}
+		if (optionStats) {
+			long renderEnd = System.nanoTime();
+			System.out.printf("Load time:           %.1f ms%n", (loadEnd - loadStart) / 1e6);
+			System.out.printf("Build time (%s):   %.1f ms%n", optionAccel,
+					(renderStart - buildStart) / 1e6);
+			System.out.printf("Render time:         %.1f ms%n", (renderEnd - renderStart) / 1e6);
+			if (cache != null) {
+				System.out.printf("Cache hits/misses:   %d/%d%n", cache.getHits(), cache.getMisses());
+			}
+			if (pageCache.getHits() + pageCache.getMisses() > 0) {
+				System.out.printf("Page cache hits/misses: %s%n", pageCache);
+			}
+			RenderStatistics.print(System.out);
+		}
+		if (optionShow) {
+			new RenderViewer(result.toImage());
+		} else if (result != null) {
 			try {
 				String[] parts = optionOutputFile.split("\\.");
-				ImageIO.write(result, parts[parts.length - 1], new File(optionOutputFile));
+				if (parts[parts.length - 1].equalsIgnoreCase("pfm")) {
+					result.writePfm(new File(optionOutputFile));
+				} else {
+					ImageIO.write(result.toImage(), parts[parts.length - 1], new File(
+							optionOutputFile));
+				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
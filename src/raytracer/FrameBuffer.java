@@ -0,0 +1,191 @@
+package raytracer;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Buffer en el que se acumulan las muestras de color de una región de la imagen. Cada pixel
+ * guarda la suma de sus muestras (RGB en floats, sin recortar) y la cantidad de muestras, en
+ * arreglos de tipos primitivos, por lo que agregar muestras no aloca memoria y se pueden sumar
+ * varias pasadas de rendering sobre el mismo buffer. El color de un pixel es el promedio de sus
+ * muestras; recién al generar la imagen se recorta a [0, 1] y se pasa a 8 bits por componente.
+ * También se puede guardar sin recortar, en formato PFM.
+ *
+ * Los pixels se indexan con coordenadas de la imagen (fila i, columna j), que deben caer dentro
+ * de la región. Threads distintos pueden agregar muestras a pixels distintos sin sincronizar.
+ */
+public class FrameBuffer {
+
+	/** Región de la imagen que cubre el buffer. */
+	private final Rectangle region;
+
+	/** Suma de las muestras de cada pixel, tres floats por pixel, ordenados por fila. */
+	private final float[] color;
+
+	/** Cantidad de muestras de cada pixel. */
+	private final int[] samples;
+
+	/** Crea un buffer vacío para una imagen entera. */
+	public FrameBuffer(int width, int height) {
+		this(new Rectangle(0, 0, width, height));
+	}
+
+	/** Crea un buffer vacío para una región de la imagen. */
+	public FrameBuffer(Rectangle region) {
+		if (region.width <= 0 || region.height <= 0
+				|| (long) region.width * region.height * 3 > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid frame buffer size: " + region.width + "x"
+					+ region.height);
+		}
+		this.region = new Rectangle(region);
+		this.color = new float[region.width * region.height * 3];
+		this.samples = new int[region.width * region.height];
+	}
+
+	public int getWidth() {
+		return region.width;
+	}
+
+	public int getHeight() {
+		return region.height;
+	}
+
+	/** @return Región de la imagen que cubre el buffer. */
+	public Rectangle getRegion() {
+		return new Rectangle(region);
+	}
+
+	/**
+	 * Mueve el buffer a otra región de la imagen del mismo tamaño (por ejemplo, a la siguiente
+	 * banda de filas), sin borrar las muestras.
+	 */
+	public void setLocation(int x, int y) {
+		region.setLocation(x, y);
+	}
+
+	/** Descarta todas las muestras. */
+	public void clear() {
+		Arrays.fill(color, 0);
+		Arrays.fill(samples, 0);
+	}
+
+	private int index(int i, int j) {
+		return (i - region.y) * region.width + (j - region.x);
+	}
+
+	/** Agrega una muestra al pixel (i, j). */
+	public void addSample(int i, int j, Vector3d c) {
+		addSamples(i, j, c, 1);
+	}
+
+	/**
+	 * Agrega varias muestras al pixel (i, j).
+	 *
+	 * @param sum Suma de los colores de las muestras.
+	 * @param n Cantidad de muestras.
+	 */
+	public void addSamples(int i, int j, Vector3d sum, int n) {
+		int k = index(i, j);
+		color[3 * k] += (float) sum.x;
+		color[3 * k + 1] += (float) sum.y;
+		color[3 * k + 2] += (float) sum.z;
+		samples[k] += n;
+	}
+
+	/** @return Cantidad de muestras del pixel (i, j). */
+	public int getSamples(int i, int j) {
+		return samples[index(i, j)];
+	}
+
+	/**
+	 * Calcula el color del pixel (i, j), sin recortar.
+	 *
+	 * @param result Parámetro de salida con el promedio de las muestras (negro si no tiene).
+	 */
+	public void getColor(int i, int j, Vector3d result) {
+		getColor(index(i, j), result);
+	}
+
+	private void getColor(int k, Vector3d result) {
+		int n = samples[k];
+		if (n == 0) {
+			result.set(0, 0, 0);
+			return;
+		}
+		result.set(color[3 * k], color[3 * k + 1], color[3 * k + 2]);
+		if (n > 1) {
+			result.scale(1.0 / n);
+		}
+	}
+
+	/**
+	 * Pasa los pixels de las primeras filas del buffer a colores de 8 bits.
+	 *
+	 * @param rows Cantidad de filas.
+	 * @param result Arreglo de al menos rows * getWidth() enteros, en el que se dejan los colores
+	 *            en formato 0xAARRGGBB, ordenados por fila.
+	 */
+	public void getRGB(int rows, int[] result) {
+		Vector3d c = new Vector3d();
+		for (int k = 0; k < rows * region.width; k++) {
+			getColor(k, c);
+			Util.cropVector(c);
+			result[k] = Util.toRGB(c);
+		}
+	}
+
+	/** @return Imagen de 8 bits por componente con el contenido del buffer. */
+	public BufferedImage toImage() {
+		BufferedImage image = new BufferedImage(region.width, region.height,
+				BufferedImage.TYPE_INT_RGB);
+		int[] row = new int[region.width];
+		Vector3d c = new Vector3d();
+		for (int i = 0; i < region.height; i++) {
+			for (int j = 0; j < region.width; j++) {
+				getColor(i * region.width + j, c);
+				Util.cropVector(c);
+				row[j] = Util.toRGB(c);
+			}
+			image.setRGB(0, i, region.width, 1, row, 0, region.width);
+		}
+		return image;
+	}
+
+	/**
+	 * Guarda el buffer en formato PFM (Portable Float Map): RGB en floats little-endian, sin
+	 * recortar, con las filas de abajo hacia arriba.
+	 *
+	 * @throws IOException Si hay errores al escribir el archivo.
+	 */
+	public void writePfm(File file) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			out.write(("PF\n" + region.width + " " + region.height + "\n-1.0\n")
+					.getBytes("US-ASCII"));
+			ByteBuffer row = ByteBuffer.allocate(region.width * 12).order(
+					ByteOrder.LITTLE_ENDIAN);
+			Vector3d c = new Vector3d();
+			for (int i = region.height - 1; i >= 0; i--) {
+				row.clear();
+				for (int j = 0; j < region.width; j++) {
+					getColor(i * region.width + j, c);
+					row.putFloat((float) c.x).putFloat((float) c.y).putFloat((float) c.z);
+				}
+				out.write(row.array(), 0, row.position());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+}
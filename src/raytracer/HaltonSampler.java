@@ -0,0 +1,58 @@
+package raytracer;
+
+import java.util.Random;
+
+/**
+ * Sampler de la secuencia de Halton (ver Sampler): la dimensión d del punto index es la inversa
+ * radical de index en la base del d-ésimo número primo. Para que los pixels no repitan los
+ * mismos puntos, cada dimensión se rota (módulo 1) en un valor pseudoaleatorio del pixel
+ * (rotación de Cranley-Patterson).
+ */
+class HaltonSampler extends Sampler {
+
+	/** Cantidad de dimensiones soportadas. */
+	private static final int DIMENSIONS = 64;
+
+	/** Bases de cada dimensión: los primeros DIMENSIONS números primos. */
+	private static final int[] PRIMES = new int[DIMENSIONS];
+
+	static {
+		for (int n = 2, count = 0; count < DIMENSIONS; n++) {
+			boolean prime = true;
+			for (int i = 0; i < count && PRIMES[i] * PRIMES[i] <= n; i++) {
+				if (n % PRIMES[i] == 0) {
+					prime = false;
+					break;
+				}
+			}
+			if (prime) {
+				PRIMES[count++] = n;
+			}
+		}
+	}
+
+	HaltonSampler(Random random) {
+		super(random);
+	}
+
+	@Override
+	public double get(int index, int count, int dimension) {
+		if (dimension >= DIMENSIONS) {
+			return random.nextDouble();
+		}
+		double value = radicalInverse(PRIMES[dimension], index) + toUnit((int) hash(dimension));
+		return value >= 1 ? value - 1 : value;
+	}
+
+	/** @return Inversa radical de n en la base dada (los dígitos de n espejados en la coma). */
+	static double radicalInverse(int base, int n) {
+		double inverseBase = 1.0 / base, factor = inverseBase, value = 0;
+		while (n > 0) {
+			value += (n % base) * factor;
+			n /= base;
+			factor *= inverseBase;
+		}
+		return value;
+	}
+
+}
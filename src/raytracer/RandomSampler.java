@@ -0,0 +1,17 @@
+package raytracer;
+
+import java.util.Random;
+
+/** Sampler de puntos independientes y uniformes (ver Sampler). */
+class RandomSampler extends Sampler {
+
+	RandomSampler(Random random) {
+		super(random);
+	}
+
+	@Override
+	public double get(int index, int count, int dimension) {
+		return random.nextDouble();
+	}
+
+}
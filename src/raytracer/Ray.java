@@ -21,6 +21,24 @@ public class Ray {
 		this.direction = direction;
 	}
 
+	/** Crea un rayo con vectores propios, para ser reutilizado a través del método set. */
+	public Ray() {
+		this(new Vector3d(), new Vector3d(0, 0, 1));
+	}
+
+	/**
+	 * Copia el origen y la dirección dados en los vectores propios del rayo, y normaliza la
+	 * dirección. Permite reutilizar el mismo rayo sin alocar nuevos vectores.
+	 * 
+	 * @param origin Posición en donde se origina el rayo.
+	 * @param direction Dirección del rayo (no se modifica).
+	 */
+	public void set(Vector3d origin, Vector3d direction) {
+		this.position.set(origin);
+		this.direction.set(direction);
+		this.direction.normalize();
+	}
+
 	@Override
 	public String toString() {
 		return "position: " + position + ", direction: " + direction;
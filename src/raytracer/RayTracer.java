@@ -1,8 +1,13 @@
 package raytracer;
 
-import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.vecmath.Vector3d;
 import javax.vecmath.Vector4d;
@@ -20,12 +25,27 @@ import scene.Scene;
  */
 public class RayTracer {
 
-	/** Maxima cantidad de niveles en la recursion de getColor */
+	/**
+	 * Maxima cantidad de niveles en la recursion de getColor. Normalmente la recursión termina
+	 * antes, cuando el aporte del rayo al pixel cae por debajo del umbral de corte.
+	 */
 	private static final int MAX_LEVELS = 10;
 
+	/** Umbral de corte por defecto de los rayos secundarios (ver setCutoff). */
+	public static final double DEFAULT_CUTOFF = 1 / 256.0;
+
 	/** Margen de error para comparar doubles. */
 	private static final double EPSILON_EQUALS = 0.000000000001;
 
+	/**
+	 * Cuánto se desplaza el origen de los rayos de sombra hacia la luz, para que no intersecten
+	 * la superficie de la que salen.
+	 */
+	private static final double SHADOW_DELTA = 0.00001;
+
+	/** Lado (en pixels) de los tiles en los que se divide la imagen para renderizarla. */
+	private static final int TILE_SIZE = 32;
+
 	/** Escena que se quiere renderear. */
 	private Scene scene;
 
@@ -38,6 +58,51 @@ public class RayTracer {
 	/** Parámetro de penumbras. */
 	private int shadow;
 
+	/** Umbral de contraste por defecto del antialiasing adaptivo. */
+	public static final double DEFAULT_CONTRAST = 0.05;
+
+	/** Estados de los pixels de un tile con antialiasing adaptivo. */
+	private static final byte OUTSIDE = 0, SAMPLED = 1, PENDING = 2, REFINED = 3;
+
+	/** Indica si se usa antialiasing adaptivo. */
+	private boolean adaptive = false;
+
+	/** Umbral de contraste del antialiasing adaptivo. */
+	private double contrast = DEFAULT_CONTRAST;
+
+	/** Cantidad de rayos de sombra del primer grupo de las penumbras adaptivas. */
+	private static final int PENUMBRA_BATCH = 4;
+
+	/** Indica si se usan penumbras adaptivas. */
+	private boolean adaptivePenumbra = false;
+
+	/** Mínimo aporte al pixel de un rayo secundario para trazarlo (ver setCutoff). */
+	private double cutoff = DEFAULT_CUTOFF;
+
+	/** Indica si los rayos por debajo del umbral de corte se eligen con ruleta rusa. */
+	private boolean roulette = false;
+
+	/** Cantidad de threads con los que se renderiza la imagen. */
+	private int threads = 1;
+
+	/** Semilla de los números aleatorios de antialiasing y penumbras. */
+	private long seed = 0;
+
+	/** Sampler que distribuye las muestras de antialiasing y penumbras (ver Sampler). */
+	private String sampler = "stratified";
+
+	/** Luces de la escena, en un arreglo para recorrerlas sin alocar iteradores. */
+	private PointLight[] lights;
+
+	/** Contexto (auxiliares del camino crítico) de cada thread de rendering. */
+	private final ThreadLocal<TraceContext> contexts = new ThreadLocal<TraceContext>() {
+		@Override
+		protected TraceContext initialValue() {
+			// Un nivel más que MAX_LEVELS para el registro vacío que devuelve getColor al cortar
+			return new TraceContext(MAX_LEVELS + 2);
+		}
+	};
+
 	/**
 	 * Crea un nuevo ray tracer con los parámetros dados. Le setea a la cámara el tamaño de la
 	 * imagen a generar para que pueda construir los rayos.
@@ -53,52 +118,505 @@ public class RayTracer {
 		this.antialiasing = antialiasing;
 		this.shadow = shadow;
 		this.imageSize = imageSize;
+		this.lights = scene.getLights().toArray(new PointLight[scene.getLights().size()]);
+	}
+
+	/**
+	 * Setea la cantidad de threads con los que se renderiza la imagen. Con un único thread los
+	 * tiles se renderizan secuencialmente en el thread que invoca a render.
+	 * 
+	 * @param threads Cantidad de threads (mayor o igual a 1).
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid number of threads: " + threads);
+		}
+		this.threads = threads;
 	}
 
 	/**
-	 * Realiza el rendering de la escena provista en el constructor.
+	 * Activa o desactiva el antialiasing adaptivo: en lugar de disparar la grilla completa de
+	 * muestras en todos los pixels, se dispara un rayo por pixel y se refinan solamente los pixels
+	 * que difieren de sus vecinos (ver renderTileAdaptive).
+	 * 
+	 * @param adaptive Si se usa antialiasing adaptivo.
+	 * @param contrast Máxima diferencia entre componentes de color (entre 0 y 1) de dos pixels
+	 *            vecinos en los que se ve el mismo objeto para no refinarlos.
+	 */
+	public void setAdaptive(boolean adaptive, double contrast) {
+		if (contrast < 0) {
+			throw new IllegalArgumentException("Invalid contrast threshold: " + contrast);
+		}
+		this.adaptive = adaptive;
+		this.contrast = contrast;
+	}
+
+	/**
+	 * Activa o desactiva las penumbras adaptivas: en cada punto se dispara primero un grupo de
+	 * PENUMBRA_BATCH rayos de sombra por luz, y el resto de los rayos del parámetro de penumbra
+	 * solamente si no coinciden (el punto está en la penumbra) o si algún pixel vecino ya
+	 * encontró penumbra.
+	 * 
+	 * @param adaptivePenumbra Si se usan penumbras adaptivas.
+	 */
+	public void setAdaptivePenumbra(boolean adaptivePenumbra) {
+		this.adaptivePenumbra = adaptivePenumbra;
+	}
+
+	/**
+	 * Setea el criterio de terminación de la recursión de reflexiones y refracciones. Cada rayo
+	 * lleva el factor (por componente de color) con el que su color llega al pixel: el producto
+	 * de los índices de reflexión y colores difusos de los espejos y de las transparencias que
+	 * atravesó. Como el color de cada rayo secundario está entre 0 y 1, ese factor acota su aporte,
+	 * y si su máxima componente es menor que el umbral el rayo no se traza. Con ruleta rusa, en
+	 * cambio, el rayo se traza con probabilidad factor / umbral y su color se divide por esa
+	 * probabilidad, por lo que en promedio la imagen no cambia (salvo por el recorte de los
+	 * colores en [0, 1]).
+	 * 
+	 * @param cutoff Umbral de corte (0 traza todos los rayos hasta MAX_LEVELS).
+	 * @param roulette Si se usa ruleta rusa para los rayos por debajo del umbral.
+	 */
+	public void setCutoff(double cutoff, boolean roulette) {
+		if (!(cutoff >= 0 && cutoff < 1)) {
+			throw new IllegalArgumentException("Invalid cutoff: " + cutoff);
+		}
+		this.cutoff = cutoff;
+		this.roulette = roulette;
+	}
+
+	/**
+	 * Setea el sampler que distribuye las muestras de antialiasing y penumbras.
+	 * 
+	 * @param sampler Nombre del sampler (ver Sampler.NAMES).
+	 * @throws IllegalArgumentException Si el nombre no es válido.
+	 */
+	public void setSampler(String sampler) {
+		Sampler.create(sampler, null);
+		this.sampler = sampler;
+	}
+
+	/**
+	 * Setea la semilla de los números aleatorios. Cada pixel deriva su propia secuencia de esta
+	 * semilla y de su posición, por lo que la imagen generada no depende de la cantidad de threads
+	 * ni del orden en que se renderizan los tiles.
+	 * 
+	 * @param seed Semilla a utilizar.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Destino de las filas de una imagen renderizada por bandas (ver render(RowWriter, boolean)).
+	 * Recibe las filas en orden, de arriba hacia abajo.
+	 */
+	public interface RowWriter {
+
+		/**
+		 * Escribe las siguientes filas de la imagen.
+		 * 
+		 * @param pixels Pixels de las filas, en formato 0xAARRGGBB y ordenados por fila.
+		 * @param rows Cantidad de filas.
+		 */
+		void writeRows(int[] pixels, int rows) throws IOException;
+	}
+
+	/**
+	 * Realiza el rendering de la escena provista en el constructor. La imagen se divide en tiles
+	 * de TILE_SIZE x TILE_SIZE pixels, que se reparten entre los threads de un ForkJoinPool.
 	 * 
 	 * @param showProgress Flag que indica si se debe mostrar el progreso en pantalla.
 	 * @return La imagen generada.
 	 */
 	public BufferedImage render(boolean showProgress) {
-		BufferedImage image = new BufferedImage(imageSize.width, imageSize.height,
-				BufferedImage.TYPE_INT_RGB);
-		if (showProgress) {
-			for (int i = 0; i < 80; i++) {
-				System.out.print('-');
+		FrameBuffer frameBuffer = new FrameBuffer(imageSize.width, imageSize.height);
+		render(frameBuffer, showProgress);
+		return frameBuffer.toImage();
+	}
+
+	/**
+	 * Realiza una pasada de rendering de la escena, agregando las muestras de cada pixel a las
+	 * que ya tenga el buffer. Invocándolo varias veces (por ejemplo, con distintas semillas) se
+	 * suman muestras a la misma imagen.
+	 * 
+	 * @param frameBuffer Buffer del tamaño de la imagen en el que se acumulan las muestras.
+	 * @param showProgress Flag que indica si se debe mostrar el progreso en pantalla.
+	 */
+	public void render(FrameBuffer frameBuffer, boolean showProgress) {
+		if (!frameBuffer.getRegion().equals(new Rectangle(imageSize))) {
+			throw new IllegalArgumentException("Frame buffer size does not match image size");
+		}
+		List<Rectangle> tiles = splitInTiles();
+		ForkJoinPool pool = (threads > 1 ? new ForkJoinPool(threads) : null);
+		try {
+			renderTiles(pool, frameBuffer, tiles, 0, tiles.size(), createProgressBar(showProgress));
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
 			}
-			System.out.print("\n");
 		}
-		for (int i = 0; i < imageSize.height; i++) {
-			for (int j = 0; j < imageSize.width; j++) {
-				if (showProgress
-						&& (i * imageSize.width + j) % (imageSize.width * imageSize.height / 80) == 0) {
-					System.out.print('*');
-				}
+		System.out.print("\n");
+	}
+
+	/**
+	 * Realiza el rendering de la escena por bandas de TILE_SIZE filas, sin generar la imagen
+	 * entera en memoria. Los tiles de cada banda se reparten entre los threads igual que en
+	 * render(boolean), y al terminar la banda sus filas se pasan al writer. La memoria usada no
+	 * depende de la altura de la imagen, y si el rendering se interrumpe el writer ya recibió
+	 * las bandas terminadas.
+	 * 
+	 * @param writer Destino de las filas de la imagen.
+	 * @param showProgress Flag que indica si se debe mostrar el progreso en pantalla.
+	 * @throws IOException Si hay errores al escribir las filas.
+	 */
+	public void render(RowWriter writer, boolean showProgress) throws IOException {
+		FrameBuffer band = new FrameBuffer(imageSize.width, Math.min(TILE_SIZE, imageSize.height));
+		int[] pixels = new int[band.getWidth() * band.getHeight()];
+		List<Rectangle> tiles = splitInTiles();
+		int tilesPerBand = (imageSize.width + TILE_SIZE - 1) / TILE_SIZE;
+		ProgressBar progress = createProgressBar(showProgress);
+		ForkJoinPool pool = (threads > 1 ? new ForkJoinPool(threads) : null);
+		try {
+			for (int from = 0; from < tiles.size(); from += tilesPerBand) {
+				Rectangle first = tiles.get(from);
+				band.clear();
+				band.setLocation(0, first.y);
+				renderTiles(pool, band, tiles, from, from + tilesPerBand, progress);
+				band.getRGB(first.height, pixels);
+				writer.writeRows(pixels, first.height);
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdown();
+			}
+		}
+		System.out.print("\n");
+	}
+
+	private ProgressBar createProgressBar(boolean showProgress) {
+		return showProgress ? new ProgressBar(imageSize.width * imageSize.height) : null;
+	}
+
+	/**
+	 * Renderiza un rango de tiles, en el pool si lo hay o secuencialmente en el thread actual.
+	 */
+	private void renderTiles(ForkJoinPool pool, FrameBuffer frameBuffer, List<Rectangle> tiles,
+			int from, int to, ProgressBar progress) {
+		if (pool != null) {
+			pool.invoke(new TileRenderTask(frameBuffer, tiles, from, to, progress));
+		} else {
+			for (int i = from; i < to; i++) {
+				renderTile(frameBuffer, tiles.get(i), progress);
+			}
+		}
+	}
+
+	/** @return Tiles en los que se divide la imagen, ordenados por fila. */
+	private List<Rectangle> splitInTiles() {
+		List<Rectangle> tiles = new ArrayList<Rectangle>();
+		for (int y = 0; y < imageSize.height; y += TILE_SIZE) {
+			for (int x = 0; x < imageSize.width; x += TILE_SIZE) {
+				tiles.add(new Rectangle(x, y, Math.min(TILE_SIZE, imageSize.width - x), Math.min(
+						TILE_SIZE, imageSize.height - y)));
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * Renderiza los pixels de un tile, agregando sus muestras al buffer.
+	 * 
+	 * @param frameBuffer Buffer en el que se acumulan las muestras.
+	 * @param tile Región de la imagen a renderizar.
+	 * @param progress Barra de progreso a actualizar (puede ser null).
+	 */
+	private void renderTile(FrameBuffer frameBuffer, Rectangle tile, ProgressBar progress) {
+		if (adaptive && antialiasing > 1) {
+			renderTileAdaptive(frameBuffer, tile, progress);
+			return;
+		}
+		TraceContext context = getContext();
+		Ray ray = context.cameraRay;
+		Vector3d color = context.pixelColor, colorAcum = context.sampleColor;
+		context.preparePenumbraRow(tile.width);
+		boolean[] penumbraRow = context.penumbraRow;
+		for (int i = tile.y; i < tile.y + tile.height; i++) {
+			for (int j = tile.x; j < tile.x + tile.width; j++) {
+				// Vecinos de arriba y de la izquierda
+				int c = j - tile.x;
+				context.penumbraHint = penumbraRow[c] || (c > 0 && penumbraRow[c - 1]);
+				context.penumbraFound = false;
+				startPixel(i, j, context);
 				SceneObject intersected, lastIntersected = null;
-				Ray ray = constructRayThroughPixel(i, j);
-				Vector3d color = new Vector3d();
-				intersected = getColor(ray, 0, scene.getCamera().position, color, 1);
+				constructRayThroughPixel(i, j, context);
+				intersected = getColor(ray, 0, scene.getCamera().position, color, 1,
+						context.cameraThroughput, context).object;
 				if (intersected != lastIntersected) {
 					lastIntersected = intersected;
 					color.set(0, 0, 0);
-					for (int m = -(antialiasing / 2); m <= antialiasing / 2; m++) {
-						for (int n = -(antialiasing / 2); n <= antialiasing / 2; n++) {
-							Vector3d colorAcum = new Vector3d();
-							Ray antialiasRay = constructRayThroughPixel(i, j, m, n);
-							getColor(antialiasRay, 0, scene.getCamera().position, colorAcum, 1);
-							color.add(colorAcum);
+					for (int sample = 0; sample < antialiasing * antialiasing; sample++) {
+						constructRayThroughPixel(i, j, sample, context);
+						getColor(ray, 0, scene.getCamera().position, colorAcum, 1,
+								context.cameraThroughput, context);
+						color.add(colorAcum);
+					}
+					frameBuffer.addSamples(i, j, color, antialiasing * antialiasing);
+				} else {
+					frameBuffer.addSample(i, j, color);
+				}
+				penumbraRow[c] = context.penumbraFound;
+			}
+		}
+		if (progress != null) {
+			progress.advance(tile.width * tile.height);
+		}
+	}
+
+	/**
+	 * Renderiza un tile con antialiasing adaptivo. Primero dispara un rayo por la celda central de
+	 * la grilla de antialiasing de cada pixel del tile y de un borde de un pixel a su alrededor,
+	 * para poder comparar los pixels del borde del tile con sus vecinos de los tiles adyacentes.
+	 * Luego refina, con la grilla completa de antialiasing x antialiasing muestras, los pixels en
+	 * los que se ve un objeto distinto que en alguno de sus vecinos o cuyo color difiere del de
+	 * algún vecino en más que el umbral de contraste. Si el color refinado de un pixel difiere del
+	 * de su rayo central en más que el umbral, el rayo central no vio algún detalle que puede
+	 * continuar en los vecinos, por lo que se refinan también los vecinos del tile, y así
+	 * sucesivamente. Los pixels que no se refinan se quedan con la muestra de su rayo central.
+	 * 
+	 * @param frameBuffer Buffer en el que se acumulan las muestras.
+	 * @param tile Región de la imagen a renderizar.
+	 * @param progress Barra de progreso a actualizar (puede ser null).
+	 */
+	private void renderTileAdaptive(FrameBuffer frameBuffer, Rectangle tile, ProgressBar progress) {
+		TraceContext context = getContext();
+		int width = tile.width + 2, height = tile.height + 2;
+		context.prepareTile(width * height);
+		SceneObject[] objects = context.tileObjects;
+		float[] colors = context.tileColors;
+		byte[] state = context.tileState;
+		int[] pending = context.tilePending;
+		Ray ray = context.cameraRay;
+		Vector3d color = context.pixelColor, colorAcum = context.sampleColor;
+
+		/* Rayo central de cada pixel. */
+		context.preparePenumbraRow(width);
+		boolean[] penumbraRow = context.penumbraRow, penumbra = context.tilePenumbra;
+		for (int a = 0, k = 0; a < height; a++) {
+			for (int b = 0; b < width; b++, k++) {
+				int i = tile.y - 1 + a, j = tile.x - 1 + b;
+				if (i < 0 || j < 0 || i >= imageSize.height || j >= imageSize.width) {
+					state[k] = OUTSIDE;
+					penumbra[k] = penumbraRow[b] = false;
+					continue;
+				}
+				context.penumbraHint = penumbraRow[b] || (b > 0 && penumbraRow[b - 1]);
+				context.penumbraFound = false;
+				// Se usa la muestra del centro de la grilla de antialiasing y no el rayo de
+				// constructRayThroughPixel(i, j), que no coincide exactamente con la grilla
+				startPixel(i, j, context);
+				constructRayThroughPixel(i, j, antialiasing * antialiasing / 2, context);
+				objects[k] = getColor(ray, 0, scene.getCamera().position, color, 1,
+						context.cameraThroughput, context).object;
+				colors[3 * k] = (float) color.x;
+				colors[3 * k + 1] = (float) color.y;
+				colors[3 * k + 2] = (float) color.z;
+				state[k] = SAMPLED;
+				penumbra[k] = penumbraRow[b] = context.penumbraFound;
+			}
+		}
+
+		/* Pixels del tile que difieren de algún vecino. */
+		int count = 0;
+		for (int a = 1; a < height - 1; a++) {
+			for (int b = 1; b < width - 1; b++) {
+				int k = a * width + b;
+				if (differsFromNeighbors(objects, colors, state, k, width)) {
+					state[k] = PENDING;
+					pending[count++] = k;
+				}
+			}
+		}
+
+		/* Refinamiento. */
+		int samples = antialiasing * antialiasing;
+		while (count > 0) {
+			int k = pending[--count];
+			int i = tile.y - 1 + k / width, j = tile.x - 1 + k % width;
+			context.penumbraHint = false;
+			for (int a = -1; a <= 1; a++) {
+				for (int b = -1; b <= 1; b++) {
+					context.penumbraHint |= penumbra[k + a * width + b];
+				}
+			}
+			startPixel(i, j, context);
+			color.set(0, 0, 0);
+			for (int sample = 0; sample < samples; sample++) {
+				constructRayThroughPixel(i, j, sample, context);
+				getColor(ray, 0, scene.getCamera().position, colorAcum, 1,
+						context.cameraThroughput, context);
+				color.add(colorAcum);
+			}
+			frameBuffer.addSamples(i, j, color, samples);
+			state[k] = REFINED;
+			if (RenderStatistics.enabled)
+				RenderStatistics.refinedPixels.increment();
+			colorAcum.scale(1.0 / samples, color);
+			if (difference(colorAcum, colors, k) > contrast) {
+				for (int a = -1; a <= 1; a++) {
+					for (int b = -1; b <= 1; b++) {
+						int k2 = k + a * width + b;
+						int a2 = k2 / width, b2 = k2 % width;
+						if (state[k2] == SAMPLED && a2 > 0 && a2 < height - 1 && b2 > 0
+								&& b2 < width - 1) {
+							state[k2] = PENDING;
+							pending[count++] = k2;
 						}
 					}
-					color.scale(1.0 / (antialiasing * antialiasing));
 				}
-				image.setRGB(j, i, new Color((float) color.x, (float) color.y, (float) color.z)
-						.getRGB());
 			}
 		}
-		System.out.print("\n");
-		return image;
+
+		/* Los pixels que no se refinaron se quedan con su rayo central. */
+		for (int a = 1; a < height - 1; a++) {
+			for (int b = 1; b < width - 1; b++) {
+				int k = a * width + b;
+				if (state[k] == SAMPLED) {
+					color.set(colors[3 * k], colors[3 * k + 1], colors[3 * k + 2]);
+					frameBuffer.addSample(tile.y - 1 + a, tile.x - 1 + b, color);
+				}
+			}
+		}
+		if (progress != null) {
+			progress.advance(tile.width * tile.height);
+		}
+	}
+
+	/**
+	 * @return Si en alguno de los 8 vecinos del pixel k (dentro de la imagen) se ve otro objeto,
+	 *         o su color difiere del de k en más que el umbral de contraste.
+	 */
+	private boolean differsFromNeighbors(SceneObject[] objects, float[] colors, byte[] state,
+			int k, int width) {
+		for (int a = -1; a <= 1; a++) {
+			for (int b = -1; b <= 1; b++) {
+				int k2 = k + a * width + b;
+				if (k2 == k || state[k2] == OUTSIDE) {
+					continue;
+				}
+				if (objects[k2] != objects[k]) {
+					return true;
+				}
+				for (int c = 0; c < 3; c++) {
+					if (Math.abs(clamp(colors[3 * k + c]) - clamp(colors[3 * k2 + c])) > contrast) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/** @return Máxima diferencia entre las componentes (recortadas) de color y del pixel k. */
+	private static double difference(Vector3d color, float[] colors, int k) {
+		double dx = Math.abs(clamp(color.x) - clamp(colors[3 * k]));
+		double dy = Math.abs(clamp(color.y) - clamp(colors[3 * k + 1]));
+		double dz = Math.abs(clamp(color.z) - clamp(colors[3 * k + 2]));
+		return Math.max(dx, Math.max(dy, dz));
+	}
+
+	private static double clamp(double x) {
+		return x < 0 ? 0 : (x > 1 ? 1 : x);
+	}
+
+	/** @return Contexto del thread actual, con el sampler seleccionado. */
+	private TraceContext getContext() {
+		TraceContext context = contexts.get();
+		if (context.sampler == null || !context.samplerName.equals(sampler)) {
+			context.sampler = Sampler.create(sampler, context.random);
+			context.samplerName = sampler;
+		}
+		return context;
+	}
+
+	/** Resiembra el generador de números aleatorios y el sampler para el pixel (i, j). */
+	private void startPixel(int i, int j, TraceContext context) {
+		long pixelSeed = pixelSeed(i, j);
+		context.random.setSeed(pixelSeed);
+		context.rouletteRandom.setSeed(~pixelSeed);
+		context.sampler.startPixel(pixelSeed);
+	}
+
+	/**
+	 * Calcula la semilla de los números aleatorios de un pixel, mezclando (con el finalizador de
+	 * SplitMix64) la semilla global con el índice del pixel.
+	 */
+	private long pixelSeed(int i, int j) {
+		long z = seed + (i * (long) imageSize.width + j + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Tarea que renderiza un rango de tiles. Se divide recursivamente en dos hasta llegar a un
+	 * único tile, para que el ForkJoinPool pueda balancear la carga robando trabajo.
+	 */
+	private class TileRenderTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private FrameBuffer frameBuffer;
+		private List<Rectangle> tiles;
+		private int from, to;
+		private ProgressBar progress;
+
+		public TileRenderTask(FrameBuffer frameBuffer, List<Rectangle> tiles, int from, int to,
+				ProgressBar progress) {
+			this.frameBuffer = frameBuffer;
+			this.tiles = tiles;
+			this.from = from;
+			this.to = to;
+			this.progress = progress;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				renderTile(frameBuffer, tiles.get(from), progress);
+				return;
+			}
+			int middle = (from + to) / 2;
+			invokeAll(new TileRenderTask(frameBuffer, tiles, from, middle, progress),
+					new TileRenderTask(frameBuffer, tiles, middle, to, progress));
+		}
+	}
+
+	/**
+	 * Barra de progreso de 80 caracteres que se completa a medida que se renderizan los pixels.
+	 * Puede ser actualizada desde varios threads.
+	 */
+	private static class ProgressBar {
+
+		private static final int WIDTH = 80;
+
+		private long total, done;
+		private int printed;
+
+		public ProgressBar(long total) {
+			this.total = total;
+			for (int i = 0; i < WIDTH; i++) {
+				System.out.print('-');
+			}
+			System.out.print("\n");
+		}
+
+		public synchronized void advance(int pixels) {
+			done += pixels;
+			int stars = (int) (done * WIDTH / total);
+			for (; printed < stars; printed++) {
+				System.out.print('*');
+			}
+		}
 	}
 
 	/**
@@ -106,79 +624,95 @@ public class RayTracer {
 	 * reflejos, incrementando el contador currentLevel en cada nivel de la recursión. Recibe la
 	 * ubicación del viewer para la parte de especularidad. En la primera invocación va a ser
 	 * (0,0,0) ya que es la ubicación de la cámara, pero luego será el punto de intersección de cada
-	 * rayo, para ir calculando la especularidad recursivamente.
+	 * rayo, para ir calculando la especularidad recursivamente. No aloca memoria: usa los
+	 * auxiliares del contexto correspondientes al nivel actual.
 	 * 
 	 * @param ray Rayo disparado.
 	 * @param currentLevel Nivel actual de la recursion. Invocarlo la primera vez con 0.
 	 * @param viewerPosition Posicion del observador. En la primera invocacion es el origen.
 	 * @param color Parámetro de salida con el color encontrado en el pixel.
 	 * @param currentRefraction Índice de refracción del medio actual.
-	 * @return El primer objeto intersectado (puede ser null).
+	 * @param throughput Factor (por componente) con el que el color del rayo llega al pixel.
+	 * @param context Contexto del thread que está renderizando.
+	 * @return La intersección del rayo con la escena (objeto, distancia, punto, normal y
+	 *         primitiva), cuyo objeto es null si no intersecta ninguno. Es el registro del nivel
+	 *         actual del contexto, válido hasta el próximo rayo de este nivel.
 	 */
-	private SceneObject getColor(Ray ray, int currentLevel, Vector3d viewerPosition,
-			Vector3d color, double currentRefraction) {
+	private Intersection getColor(Ray ray, int currentLevel, Vector3d viewerPosition,
+			Vector3d color, double currentRefraction, Vector3d throughput, TraceContext context) {
 
+		TraceContext.Level level = context.level(currentLevel);
+		Intersection intersection = level.intersection;
 		if (currentLevel > MAX_LEVELS) {
-			color.set(new double[] { 0, 0, 0 });
-			return null;
+			intersection.reset();
+			color.set(0, 0, 0);
+			return intersection;
+		}
+		if (RenderStatistics.enabled) {
+			(currentLevel == 0 ? RenderStatistics.primaryRays : RenderStatistics.secondaryRays)
+					.increment();
 		}
-		Intersection intersection = new Intersection();
 		SceneObject intersectedObject = scene.getFirstIntersectedObject(ray, intersection);
 		if (intersectedObject == null) {
-			color.set(new double[] { 0, 0, 0 });
-			return null;
+			color.set(0, 0, 0);
+			return intersection;
 		}
 		Material material = intersectedObject.getMaterial();
 		double nShiny = material.shininess * 128.0;
-		
-		Vector3d ambientIntensity = new Vector3d(1, 1, 1);
-		Vector3d specularIntensity = new Vector3d(0, 0, 0);
-		Vector3d diffuseIntensity = new Vector3d(0, 0, 0);
-
-		for (PointLight light : scene.getLights()) {
-
-			Ray lightRay;
-			Vector3d lightPosition, lightDirection;
-
-			/* Calcular la shade de la luz. */
-			double shade = 0;
-			for (int i = 0; i < shadow; i++) {
-				lightPosition = new Vector3d(light.getPosition());
-				if (shadow > 1) {
-					lightPosition.x += (Math.random() - 1) * light.getRadio();
-					lightPosition.y += (Math.random() - 1) * light.getRadio();
-					lightPosition.z += (Math.random() - 1) * light.getRadio();
-				}
 
-				lightDirection = new Vector3d(intersection.point);
-				lightDirection.sub(lightPosition);
+		Vector3d ambientIntensity = level.ambientIntensity;
+		Vector3d specularIntensity = level.specularIntensity;
+		Vector3d diffuseIntensity = level.diffuseIntensity;
+		ambientIntensity.set(1, 1, 1);
+		specularIntensity.set(0, 0, 0);
+		diffuseIntensity.set(0, 0, 0);
 
-				lightRay = new Ray(lightPosition, lightDirection);
+		Ray lightRay = level.lightRay;
+		Vector3d lightDirection = level.lightDirection;
+		Vector3d lightIntensity = level.lightIntensity;
+		for (int l = 0; l < lights.length; l++) {
+			PointLight light = lights[l];
 
-				Intersection lightIntersection = new Intersection();
-				SceneObject lightIntersectedObject = scene.getFirstIntersectedObject(lightRay,
-						lightIntersection);
-				if (lightIntersectedObject == null
-						|| !lightIntersectedObject.equals(intersectedObject)
-						|| !lightIntersection.point.epsilonEquals(intersection.point,
-								EPSILON_EQUALS)) {
-					continue;
+			/*
+			 * Calcular la shade de la luz. Con penumbras adaptivas se dispara primero un grupo
+			 * reducido de rayos de sombra, y el resto solamente si el grupo no coincide o si un
+			 * pixel vecino encontró penumbra.
+			 */
+			int rays = shadow;
+			if (adaptivePenumbra && !(currentLevel == 0 && context.penumbraHint)) {
+				rays = Math.min(PENUMBRA_BATCH, shadow);
+			}
+			int lit = 0;
+			for (int i = 0; i < rays; i++) {
+				if (isLit(l, i, currentLevel, intersection, context)) {
+					lit++;
 				}
-				shade += 1.0 / shadow;
 			}
+			if (rays < shadow && lit > 0 && lit < rays) {
+				for (int i = rays; i < shadow; i++) {
+					if (isLit(l, i, currentLevel, intersection, context)) {
+						lit++;
+					}
+				}
+				rays = shadow;
+			}
+			if (currentLevel == 0 && lit > 0 && lit < rays) {
+				context.penumbraFound = true;
+			}
+			double shade = (rays == 0 ? 0 : lit / (double) rays);
 			if (shade < EPSILON_EQUALS) {
 				continue;
 			}
 
 			/* Calcular el rayo posta para las cuentas. */
-			lightDirection = new Vector3d(intersection.point);
-			lightDirection.sub(light.getPosition());
-			lightRay = new Ray(light.getPosition(), lightDirection);
+			lightDirection.sub(intersection.point, light.getPosition());
+			lightRay.set(light.getPosition(), lightDirection);
 
 			/* Calcular término especular. */
-			Ray lightReflectedRay = reflectRay(lightRay, intersectedObject, intersection, 0.005);
-			Vector3d specular = new Vector3d(viewerPosition);
-			specular.sub(intersection.point);
+			Ray lightReflectedRay = level.lightReflectedRay;
+			reflectRay(lightRay, intersectedObject, intersection, 0.005, lightReflectedRay);
+			Vector3d specular = level.aux;
+			specular.sub(viewerPosition, intersection.point);
 			specular.normalize();
 			double aux = specular.dot(lightReflectedRay.direction);
 			if (aux < 0) {
@@ -188,19 +722,20 @@ public class RayTracer {
 			if (specularTerm < 0.001) {
 				specularTerm = 0;
 			}
-			Vector3d lightIntensity = light.getColor(intersection.point);
+			light.getColor(intersection.point, lightIntensity);
 			lightIntensity.scale(specularTerm);
 			specularIntensity.add(lightIntensity);
 
 			/* Calcular término de difusión. */
-			Vector3d diffuse = new Vector3d(intersection.normal);
+			Vector3d diffuse = level.normal;
+			diffuse.set(intersection.normal);
 			diffuse.normalize();
 			// lightRay.direction.scale(-1);
 			double diffuseTerm = diffuse.dot(lightRay.direction) * material.diffuseIndex;
 			if (diffuseTerm < 0) {
 				diffuseTerm = 0;
 			}
-			lightIntensity = light.getColor(intersection.point);
+			light.getColor(intersection.point, lightIntensity);
 			lightIntensity.scale(diffuseTerm * shade);
 			diffuseIntensity.add(lightIntensity);
 		}
@@ -220,41 +755,114 @@ public class RayTracer {
 		/* Reflexion */
 		if (material.reflectionIndex > 0)
 			computeReflection(ray, intersectedObject, intersection, ambientIntensity, currentLevel,
-					currentRefraction);
+					currentRefraction, throughput, context);
 
 		/* Refracción */
 		if (material.transparency > 0)
 			computeRefraction(ray, intersectedObject, intersection, ambientIntensity, currentLevel,
-					currentRefraction);
+					currentRefraction, throughput, context);
 
-		/* Color final */
-		Util.cropVector(ambientIntensity);
+		/*
+		 * Color final. El de los rayos primarios no se recorta: el FrameBuffer promedia las
+		 * muestras sin recortar y recorta recién al generar la imagen.
+		 */
+		if (currentLevel > 0) {
+			Util.cropVector(ambientIntensity);
+		}
 		color.set(ambientIntensity);
 
-		return intersectedObject;
+		return intersection;
+	}
+
+	/**
+	 * Dispara un rayo de sombra desde el punto de intersección hacia una luz. Si hay penumbras,
+	 * el rayo apunta a una posición dentro del cubo de lado 2 * radio centrado en la luz. En los
+	 * puntos que ven los rayos primarios la posición la da el sampler (el punto sample * shadow +
+	 * ray de las dimensiones de la luz), y en los demás es al azar.
+	 * 
+	 * @param l Índice de la luz.
+	 * @param ray Número de rayo de sombra del punto, entre 0 y shadow - 1.
+	 * @param currentLevel Nivel de la recursión de getColor.
+	 * @return Si el rayo llega a la luz sin ser obstruido.
+	 */
+	private boolean isLit(int l, int ray, int currentLevel, Intersection intersection,
+			TraceContext context) {
+		PointLight light = lights[l];
+		TraceContext.Level level = context.level(currentLevel);
+		Ray lightRay = level.lightRay;
+		Vector3d lightPosition = level.lightPosition, lightDirection = level.lightDirection;
+		lightPosition.set(light.getPosition());
+		if (shadow > 1) {
+			double u, v, w;
+			if (currentLevel == 0) {
+				int index = context.sampleIndex * shadow + ray;
+				int count = context.sampleCount * shadow;
+				int dimension = Sampler.DIMENSION_LIGHTS + 3 * l;
+				u = context.sampler.get(index, count, dimension);
+				v = context.sampler.get(index, count, dimension + 1);
+				w = context.sampler.get(index, count, dimension + 2);
+			} else {
+				u = context.random.nextDouble();
+				v = context.random.nextDouble();
+				w = context.random.nextDouble();
+			}
+			lightPosition.x += (2 * u - 1) * light.getRadio();
+			lightPosition.y += (2 * v - 1) * light.getRadio();
+			lightPosition.z += (2 * w - 1) * light.getRadio();
+		}
+
+		/* Rayo de sombra desde el punto hacia la luz, que no debe estar obstruido. */
+		lightDirection.sub(lightPosition, intersection.point);
+		double lightDistance = lightDirection.length();
+		lightRay.set(intersection.point, lightDirection);
+		lightRay.position.scaleAdd(SHADOW_DELTA, lightRay.direction, lightRay.position);
+		if (RenderStatistics.enabled)
+			RenderStatistics.shadowRays.increment();
+		return !scene.isOccluded(lightRay, lightDistance - SHADOW_DELTA);
 	}
 
 	private void computeReflection(Ray ray, SceneObject intersectedObject,
 			Intersection intersection, Vector3d ambientIntensity, int currentLevel,
-			double currentRefraction) {
-		Ray reflectedRay = reflectRay(ray, intersectedObject, intersection, 0.00001);
-		Vector3d reflectedColor = new Vector3d();
+			double currentRefraction, Vector3d throughput, TraceContext context) {
+		TraceContext.Level level = context.level(currentLevel);
+		Material material = intersectedObject.getMaterial();
+		Vector3d reflectedThroughput = level.reflectedThroughput;
+		reflectedThroughput.set(material.diffuseColor);
+		Util.multiplyVectors(reflectedThroughput, throughput);
+		reflectedThroughput.scale(material.reflectionIndex);
+		double weight = survivalWeight(reflectedThroughput, context);
+		if (weight == 0) {
+			return;
+		}
+		Ray reflectedRay = level.reflectedRay;
+		reflectRay(ray, intersectedObject, intersection, 0.00001, reflectedRay);
+		Vector3d reflectedColor = level.reflectedColor;
 		if (getColor(reflectedRay, currentLevel + 1, reflectedRay.position, reflectedColor,
-				currentRefraction) != null) {
+				currentRefraction, reflectedThroughput, context).object != null) {
 
-			Material material = intersectedObject.getMaterial();
 			Util.multiplyVectors(reflectedColor, material.diffuseColor);
-			reflectedColor.scale(material.reflectionIndex);
+			reflectedColor.scale(material.reflectionIndex * weight);
 			ambientIntensity.add(reflectedColor);
 		}
 	}
 
 	private void computeRefraction(Ray ray, SceneObject intersectedObject,
 			Intersection intersection, Vector3d ambientIntensity, int currentLevel,
-			double currentRefraction) {
-		Ray refractedRay = refractRay(ray, intersectedObject, intersection, 0.00001,
-				currentRefraction);
-		if (refractedRay != null) {
+			double currentRefraction, Vector3d throughput, TraceContext context) {
+		TraceContext.Level level = context.level(currentLevel);
+		Material material = intersectedObject.getMaterial();
+
+		/* La absorción depende del camino recorrido, que se desconoce: se la acota por 1. */
+		Vector3d refractedThroughput = level.refractedThroughput;
+		refractedThroughput.set(throughput);
+		refractedThroughput.scale(material.transparency);
+		double weight = survivalWeight(refractedThroughput, context);
+		if (weight == 0) {
+			return;
+		}
+		Ray refractedRay = level.refractedRay;
+		if (refractRay(ray, intersectedObject, intersection, 0.00001, currentRefraction,
+				refractedRay)) {
 
 			// TODO
 			if (refractedRay.direction.dot(intersection.normal) > 0) {
@@ -263,62 +871,91 @@ public class RayTracer {
 				currentRefraction = 1;
 			}
 
-			Vector3d refractedColor = new Vector3d();
-			SceneObject instersectedObject2 = getColor(refractedRay, currentLevel + 1,
-					refractedRay.position, refractedColor, currentRefraction);
-			if (instersectedObject2 != null) {
+			/*
+			 * La intersección del rayo refractado la devuelve getColor: el camino recorrido
+			 * para la absorción es su distancia, sin volver a intersectar el objeto.
+			 */
+			Vector3d refractedColor = level.refractedColor;
+			Intersection refractedHit = getColor(refractedRay, currentLevel + 1,
+					refractedRay.position, refractedColor, currentRefraction, refractedThroughput,
+					context);
+			if (refractedHit.object != null) {
 
-				Vector3d pointOfIntersection = instersectedObject2.intersectsRay(refractedRay).point;
-				pointOfIntersection.sub(intersection.point);
-				double distancia = intersection.distance;
-
-				Material material = intersectedObject.getMaterial();
-				Vector3d absorbance = new Vector3d(material.diffuseColor);
-				absorbance.scale(-0.15 * distancia);
-				Vector3d transparency = new Vector3d(Math.exp(absorbance.x),
-						Math.exp(absorbance.y), Math.exp(absorbance.z));
+				Vector3d transparency = level.aux;
+				transparency.set(material.diffuseColor);
+				transparency.scale(-0.15 * refractedHit.distance);
+				transparency.set(Math.exp(transparency.x), Math.exp(transparency.y), Math
+						.exp(transparency.z));
 
 				Util.multiplyVectors(refractedColor, transparency);
-				refractedColor.scale(material.transparency);
+				refractedColor.scale(material.transparency * weight);
 				ambientIntensity.add(refractedColor);
 			}
 		}
 	}
 
+	/**
+	 * Decide si se traza un rayo secundario a partir de su aporte al pixel (ver setCutoff). Con
+	 * ruleta rusa, si el rayo sobrevive se escala su factor de aporte por el peso devuelto.
+	 * 
+	 * @param throughput Factor con el que el color del rayo llega al pixel.
+	 * @param context Contexto del thread que está renderizando.
+	 * @return 0 si el rayo no se traza, o el peso por el que hay que multiplicar su color.
+	 */
+	private double survivalWeight(Vector3d throughput, TraceContext context) {
+		double contribution = Math.max(throughput.x, Math.max(throughput.y, throughput.z));
+		if (contribution >= cutoff && contribution > 0) {
+			return 1;
+		}
+		if (roulette && contribution > 0) {
+			double probability = contribution / cutoff;
+			if (context.rouletteRandom.nextDouble() < probability) {
+				throughput.scale(1 / probability);
+				return 1 / probability;
+			}
+		}
+		if (RenderStatistics.enabled)
+			RenderStatistics.culledRays.increment();
+		return 0;
+	}
+
 	/**
 	 * Construye un rayo que sale de la cámara y pasa por el pixel (i,j) del plano de la imagen.
+	 * El rayo queda en context.cameraRay.
 	 * 
 	 * @param i Fila del pixel a atravesar.
 	 * @param j Columna del pixel a atravesar.
-	 * @return Un rayo que sale de la cámara y pasa por dicho pixel.
+	 * @param context Contexto del thread que está renderizando.
 	 */
-	public Ray constructRayThroughPixel(int i, int j) {
+	public void constructRayThroughPixel(int i, int j, TraceContext context) {
+		context.sampleIndex = 0;
+		context.sampleCount = 1;
 		double xDir = (j - imageSize.width / 2f);
 		double yDir = (i - imageSize.height / 2f);
 		double zDir = (double) (
 				Math.min(imageSize.width, imageSize.height)
 				/ (2 * Math.tan(scene.getCamera().fieldOfView / 2)));
-		Vector4d dir = new Vector4d(xDir, -yDir, -zDir, 1);
+		Vector4d dir = context.cameraDirection;
+		dir.set(xDir, -yDir, -zDir, 1);
 		dir.normalize();
-		Vector4d result = Util.MultiplyMatrixAndVector(scene.getCamera().rotationMatrix,
-				dir);
-		Vector3d direction = new Vector3d(result.x, result.y, result.z);
-		direction.normalize();
-		return new Ray(scene.getCamera().position, direction);
+		scene.getCamera().rotationMatrix.transform(dir);
+		Ray ray = context.cameraRay;
+		ray.direction.set(dir.x, dir.y, dir.z);
+		ray.direction.normalize();
+		ray.position.set(scene.getCamera().position);
 	}
 
 	/**
 	 * Construye un rayo para antialiasing que sale de la cámara y pasa por el pixel (i,j) del plano
-	 * de la imagen. En ese pixel construye una grilla con el parámetro de antialiasing, y hace que
-	 * el rayo pase por el elemento (m, n) de dicha grilla.
+	 * de la imagen. La posición dentro del pixel es la muestra sample de las antialiasing x
+	 * antialiasing muestras del pixel, dada por el sampler. El rayo queda en context.cameraRay.
 	 * 
 	 * @param i Fila del pixel a atravesar.
 	 * @param j Columna del pixel a atravesar.
-	 * @param m Fila de la grilla construida sobre el pixel.
-	 * @param n Columna de la grilla construida sobre el pixel.
-	 * @return Un rayo que sale de la cámara y pasa por dicho pixel.
+	 * @param sample Número de muestra, entre 0 y antialiasing * antialiasing - 1.
+	 * @param context Contexto del thread que está renderizando.
 	 */
-	public Ray constructRayThroughPixel(int i, int j, int m, int n) {
+	public void constructRayThroughPixel(int i, int j, int sample, TraceContext context) {
 		double xDir = antialiasing * (j - imageSize.width / 2f);
 		double yDir = antialiasing * (i - imageSize.height / 2f);
 		double zDir = antialiasing * (double) (
@@ -329,37 +966,45 @@ public class RayTracer {
 //				* (double) (Math.sqrt(Math.pow(imageSize.width, 2) + Math.pow(imageSize.height, 2)) / (2 * Math
 //						.tan(scene.getCamera().fieldOfView)));
 
-		xDir += Util.randomBetween(n, n + 1);
-		yDir += Util.randomBetween(m, m + 1);
-
-		Vector4d result = Util.MultiplyMatrixAndVector(scene.getCamera().rotationMatrix,
-				new Vector4d(xDir, -yDir, -zDir, 1));
-		Vector3d direction = new Vector3d(result.x, result.y, result.z);
-		direction.normalize();
-		return new Ray(scene.getCamera().position, direction);
+		int count = antialiasing * antialiasing;
+		context.sampleIndex = sample;
+		context.sampleCount = count;
+		xDir += -(antialiasing / 2)
+				+ antialiasing * context.sampler.get(sample, count, Sampler.DIMENSION_PIXEL_X);
+		yDir += -(antialiasing / 2)
+				+ antialiasing * context.sampler.get(sample, count, Sampler.DIMENSION_PIXEL_Y);
 
+		Vector4d dir = context.cameraDirection;
+		dir.set(xDir, -yDir, -zDir, 1);
+		scene.getCamera().rotationMatrix.transform(dir);
+		Ray ray = context.cameraRay;
+		ray.direction.set(dir.x, dir.y, dir.z);
+		ray.direction.normalize();
+		ray.position.set(scene.getCamera().position);
 	}
 
 	/**
 	 * Calcula el reflejo de un rayo sobre un objeto. Utiliza la normal del objeto en el punto
-	 * intersectado para construir el reflejo, y lo retorna.
+	 * intersectado para construir el reflejo, y lo deja en result.
 	 * 
 	 * @param ray Rayo que impacta en el objeto.
 	 * @param intersectedObject Objeto siendo impactado por el rayo.
 	 * @param pointOfIntersection Punto en el que el rayo toca el objeto.
 	 * @param delta Cuánto se debe desplazar el origen del rayo en el sentido de su dirección.
-	 * @return Reflejo del rayo en ese punto.
+	 * @param result Parámetro de salida con el reflejo del rayo en ese punto.
 	 */
-	private Ray reflectRay(Ray ray, SceneObject intersectedObject, Intersection intersection,
-			double delta) {
-		Vector3d direction = new Vector3d(intersection.normal);
+	private void reflectRay(Ray ray, SceneObject intersectedObject, Intersection intersection,
+			double delta, Ray result) {
+		Vector3d direction = result.direction;
+		direction.set(intersection.normal);
 		double aux = direction.dot(ray.direction) * -1;
 		direction.scale(2 * aux);
 		direction.add(ray.direction);
-		Vector3d position = new Vector3d(direction);
+		Vector3d position = result.position;
+		position.set(direction);
 		position.scale(delta);
 		position.add(intersection.point);
-		return new Ray(position, direction);
+		direction.normalize();
 	}
 
 	/**
@@ -369,15 +1014,18 @@ public class RayTracer {
 	 * @param intersectedObject Objeto siendo impactado por el rayo.
 	 * @param pointOfIntersection Punto en el que el rayo toca el objeto.
 	 * @param delta Cuánto se debe desplazar el origen del rayo en el sentido de la normal.
-	 * @return Refracción del rayo en ese punto.
+	 * @param result Parámetro de salida con la refracción del rayo en ese punto.
+	 * @return Si el rayo se refracta (false si hay reflexión total interna).
 	 */
-	private Ray refractRay(Ray ray, SceneObject intersectedObject, Intersection intersection,
-			double delta, double currentRefraction) {
+	private boolean refractRay(Ray ray, SceneObject intersectedObject, Intersection intersection,
+			double delta, double currentRefraction, Ray result) {
 
 		Material material = intersectedObject.getMaterial();
 		double rindex = material.refractionIndex;
 		double n = currentRefraction / rindex;
-		Vector3d normal = new Vector3d(intersection.normal);
+		// La posición del resultado se usa como auxiliar para la normal, hasta calcularla.
+		Vector3d normal = result.position;
+		normal.set(intersection.normal);
 
 		if (normal.dot(ray.direction) > 0) {
 			normal.scale(-1);
@@ -386,19 +1034,21 @@ public class RayTracer {
 		double cosI = -normal.dot(ray.direction);
 		double cosT2 = 1.0 - n * n * (1.0 - cosI * cosI);
 		if (cosT2 > 0) {
-			Vector3d direction = new Vector3d(ray.direction);
+			Vector3d direction = result.direction;
+			direction.set(ray.direction);
 			direction.scale(n);
 			normal.scale(n * cosI - Math.sqrt(cosT2));
 			direction.add(normal);
 			direction.normalize();
 
-			Vector3d position = new Vector3d(direction);
+			Vector3d position = result.position;
+			position.set(direction);
 			position.scale(delta);
 			position.add(intersection.point);
 
-			return new Ray(position, direction);
+			return true;
 		}
-		return null;
+		return false;
 
 	}
 }
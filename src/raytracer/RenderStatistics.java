@@ -0,0 +1,66 @@
+package raytracer;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores globales del rendering: rayos disparados de cada tipo y tests de intersección contra
+ * primitivas. Sólo se actualizan si <code>enabled</code> es true (opción -stats), y pueden
+ * incrementarse desde varios threads a la vez.
+ */
+public class RenderStatistics {
+
+	/** Indica si se deben actualizar los contadores. */
+	public static boolean enabled = false;
+
+	/** Rayos que salen de la cámara (incluyendo los de antialiasing). */
+	public static final LongAdder primaryRays = new LongAdder();
+
+	/** Rayos reflejados y refractados. */
+	public static final LongAdder secondaryRays = new LongAdder();
+
+	/**
+	 * Rayos reflejados y refractados que no se trazaron porque su aporte al pixel era menor que
+	 * el umbral de corte (o no sobrevivieron a la ruleta rusa).
+	 */
+	public static final LongAdder culledRays = new LongAdder();
+
+	/** Rayos de sombra (consultas de oclusión). */
+	public static final LongAdder shadowRays = new LongAdder();
+
+	/** Pixels refinados por el antialiasing adaptivo. */
+	public static final LongAdder refinedPixels = new LongAdder();
+
+	/** Tests de intersección de un rayo contra una primitiva (esfera o triángulo). */
+	public static final LongAdder intersectionTests = new LongAdder();
+
+	/** Pone todos los contadores en cero. */
+	public static void reset() {
+		primaryRays.reset();
+		secondaryRays.reset();
+		culledRays.reset();
+		shadowRays.reset();
+		refinedPixels.reset();
+		intersectionTests.reset();
+	}
+
+	/** Imprime los contadores en el stream dado. */
+	public static void print(PrintStream out) {
+		long primary = primaryRays.sum(), secondary = secondaryRays.sum();
+		long shadow = shadowRays.sum(), tests = intersectionTests.sum();
+		long rays = primary + secondary + shadow;
+		out.println("Primary rays:        " + primary);
+		out.println("Secondary rays:      " + secondary);
+		if (culledRays.sum() > 0) {
+			out.println("Culled rays:         " + culledRays.sum());
+		}
+		out.println("Shadow rays:         " + shadow);
+		if (refinedPixels.sum() > 0) {
+			out.println("Refined pixels:      " + refinedPixels.sum());
+		}
+		out.println("Intersection tests:  " + tests);
+		if (rays > 0) {
+			out.printf("Tests per ray:       %.2f%n", (double) tests / rays);
+		}
+	}
+}
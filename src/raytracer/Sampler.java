@@ -0,0 +1,138 @@
+package raytracer;
+
+import java.util.Random;
+
+/**
+ * Generador de las muestras de un pixel: las posiciones de los rayos de antialiasing dentro del
+ * pixel y las de los rayos de sombra dentro de las luces. Las muestras de un pixel forman
+ * conjuntos de puntos en [0, 1)^d; cada componente (dimensión) de cada punto se pide por
+ * separado con get(index, count, dimension), y las distintas implementaciones difieren en cómo
+ * distribuyen los puntos:
+ * <ul>
+ * <li>random: puntos independientes, uniformes.</li>
+ * <li>stratified: grilla con jitter en las dimensiones de la imagen, y estratificación por
+ * dimensión (latin hypercube) en las demás.</li>
+ * <li>halton: secuencia de Halton, rotada al azar en cada pixel.</li>
+ * <li>sobol: secuencia de Sobol, con un corrimiento digital al azar en cada pixel.</li>
+ * </ul>
+ *
+ * Cada thread de rendering tiene su propio sampler, que se resiembra en cada pixel a partir de
+ * su índice, por lo que la imagen no depende de la cantidad de threads. Las dimensiones que una
+ * implementación no soporta se completan con números al azar.
+ */
+public abstract class Sampler {
+
+	/** Nombres de los samplers disponibles (ver create). */
+	public static final String[] NAMES = { "random", "stratified", "halton", "sobol" };
+
+	/** Dimensiones de la posición dentro del pixel de los rayos de antialiasing. */
+	public static final int DIMENSION_PIXEL_X = 0, DIMENSION_PIXEL_Y = 1;
+
+	/** Primera dimensión de las posiciones dentro de las luces (tres por luz). */
+	public static final int DIMENSION_LIGHTS = 2;
+
+	/** Generador de números aleatorios del thread, resembrado en cada pixel. */
+	protected final Random random;
+
+	/** Semilla del pixel actual. */
+	protected long seed;
+
+	protected Sampler(Random random) {
+		this.random = random;
+	}
+
+	/**
+	 * Crea un sampler.
+	 *
+	 * @param name Nombre del sampler (ver NAMES).
+	 * @param random Generador de números aleatorios del thread, que el ray tracer resiembra en
+	 *            cada pixel.
+	 * @throws IllegalArgumentException Si el nombre no es válido.
+	 */
+	public static Sampler create(String name, Random random) {
+		if (name.equals("random")) {
+			return new RandomSampler(random);
+		} else if (name.equals("stratified")) {
+			return new StratifiedSampler(random);
+		} else if (name.equals("halton")) {
+			return new HaltonSampler(random);
+		} else if (name.equals("sobol")) {
+			return new SobolSampler(random);
+		}
+		throw new IllegalArgumentException("Invalid sampler: " + name);
+	}
+
+	/**
+	 * Prepara el sampler para un nuevo pixel.
+	 *
+	 * @param seed Semilla del pixel (la misma con la que se resiembra el generador).
+	 */
+	public void startPixel(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Devuelve una componente de un punto del conjunto de muestras del pixel.
+	 *
+	 * @param index Índice del punto, entre 0 y count - 1.
+	 * @param count Cantidad de puntos del conjunto.
+	 * @param dimension Componente del punto.
+	 * @return Número en [0, 1).
+	 */
+	public abstract double get(int index, int count, int dimension);
+
+	/**
+	 * Mezcla (con el finalizador de SplitMix64) la semilla del pixel con un valor, para obtener
+	 * valores pseudoaleatorios independientes para cada dimensión.
+	 */
+	protected long hash(long value) {
+		long z = seed + (value + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Calcula el elemento i de una permutación pseudoaleatoria de [0, length), sin alocar
+	 * memoria (A. Kensler, "Correlated Multi-Jittered Sampling", 2013).
+	 *
+	 * @param i Elemento a permutar.
+	 * @param length Cantidad de elementos.
+	 * @param p Semilla de la permutación.
+	 */
+	protected static int permute(int i, int length, int p) {
+		int w = length - 1;
+		w |= w >>> 1;
+		w |= w >>> 2;
+		w |= w >>> 4;
+		w |= w >>> 8;
+		w |= w >>> 16;
+		do {
+			i ^= p;
+			i *= 0xe170893d;
+			i ^= p >>> 16;
+			i ^= (i & w) >>> 4;
+			i ^= p >>> 8;
+			i *= 0x0929eb3f;
+			i ^= p >>> 23;
+			i ^= (i & w) >>> 1;
+			i *= 1 | p >>> 27;
+			i *= 0x6935fa69;
+			i ^= (i & w) >>> 11;
+			i *= 0x74dcb303;
+			i ^= (i & w) >>> 2;
+			i *= 0x9e501cc3;
+			i ^= (i & w) >>> 2;
+			i *= 0xc860a3df;
+			i &= w;
+			i ^= i >>> 5;
+		} while (Integer.compareUnsigned(i, length) >= 0);
+		return Integer.remainderUnsigned(i + p, length);
+	}
+
+	/** @return Número en [0, 1) a partir de los 32 bits de un entero sin signo. */
+	protected static double toUnit(int bits) {
+		return (bits & 0xFFFFFFFFL) * 0x1p-32;
+	}
+
+}
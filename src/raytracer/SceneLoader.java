@@ -1,7 +1,11 @@
 package raytracer;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Set;
 
 import javax.vecmath.AxisAngle4d;
@@ -9,9 +13,12 @@ import javax.vecmath.AxisAngle4f;
 import javax.vecmath.Vector3d;
 import javax.vecmath.Vector3f;
 
+import objects.Instance;
 import objects.Material;
+import objects.PageCache;
 import objects.SceneObject;
 import objects.Sphere;
+import objects.TriangleMesh;
 import objects.TriangleSet;
 
 import org.web3d.j3d.loaders.X3DLoader;
@@ -46,9 +53,25 @@ import scene.Transformation;
  * correspondiente. Para utilizarla, invocar al método <code>loadScene</code>
  * con un nombre de archivo x3d, esto retorna la escena construida para ser
  * pasada al ray tracer.
+ * 
+ * Por defecto el archivo se lee con StreamingSceneLoader, sin construir el
+ * grafo de escena de Java3D; si ese lector lanza UnsupportedSceneException
+ * (el archivo usa algo que no soporta), se lo carga con Xj3D. Cualquier
+ * otro error de lectura se propaga. Los archivos con extensión
+ * BinaryScene.EXTENSION se cargan con BinaryScene.
  */
 public class SceneLoader {
 
+	private boolean streaming = true;
+
+	private PageCache pageCache;
+
+	/** Cantidad de shapes que usan cada nodo de geometría (por DEF/USE). */
+	private Map<VRMLNode, Integer> geometryUses;
+
+	/** Geometría compartida por varias instancias, en su propio espacio. */
+	private Map<VRMLNode, SceneObject> sharedGeometry;
+
 	/**
 	 * Carga un archivo x3d, y construye el objeto <code>Scene</code> para que
 	 * pueda ser renderado por el ray tracer.
@@ -58,6 +81,38 @@ public class SceneLoader {
 	 * @throws IOException Si hay algun problema para parsear el archivo.
 	 */
 	public Scene loadScene(String fileName) throws IOException {
+		if (fileName.endsWith(BinaryScene.EXTENSION)) {
+			return pageCache == null ? BinaryScene.read(new File(fileName))
+					: BinaryScene.read(new File(fileName), pageCache);
+		}
+		if (streaming) {
+			try {
+				return new StreamingSceneLoader().loadScene(fileName);
+			} catch (UnsupportedSceneException e) {
+				System.err.println(e.getMessage() + ", loading with Xj3D");
+			}
+		}
+		return loadSceneWithXj3D(fileName);
+	}
+
+	/**
+	 * @param streaming Si se usa StreamingSceneLoader (con Xj3D como
+	 *            alternativa) o directamente Xj3D.
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+
+	/**
+	 * @param pageCache Caché para las mallas paginadas de las escenas
+	 *            binarias (ver BinaryScene).
+	 */
+	public void setPageCache(PageCache pageCache) {
+		this.pageCache = pageCache;
+	}
+
+	/** Carga un archivo x3d construyendo el grafo de escena de Xj3D. */
+	private Scene loadSceneWithXj3D(String fileName) throws IOException {
 		X3DLoader loader = new X3DLoader(X3DLoader.LOAD_ALL);
 		try {
 			loader.load(fileName);
@@ -66,10 +121,38 @@ public class SceneLoader {
 		}
 		VRMLNode node = loader.getVRMLScene().getRootNode();
 		Scene scene = new Scene();
+		geometryUses = new IdentityHashMap<VRMLNode, Integer>();
+		sharedGeometry = new IdentityHashMap<VRMLNode, SceneObject>();
+		countGeometryUses(node);
 		parseScene(node, scene);
+		geometryUses = null;
+		sharedGeometry = null;
 		return scene;
 	}
 
+	/**
+	 * Recorre los mismos nodos que parseScene y cuenta cuántos shapes usan
+	 * cada nodo de geometría. Con DEF/USE, Xj3D devuelve el mismo nodo en
+	 * cada uso.
+	 */
+	private void countGeometryUses(VRMLNode node) {
+		if (node instanceof J3DWorldRoot) {
+			for (VRMLNode v : ((J3DWorldRoot) node).getChildren()) {
+				countGeometryUses(v);
+			}
+		} else if (node instanceof J3DTransform) {
+			for (VRMLNode v : ((J3DTransform) node).getChildren()) {
+				countGeometryUses(v);
+			}
+		} else if (node instanceof J3DShape) {
+			VRMLNode geometry = ((J3DShape) node).getGeometry();
+			if (geometry != null) {
+				Integer uses = geometryUses.get(geometry);
+				geometryUses.put(geometry, uses == null ? 1 : uses + 1);
+			}
+		}
+	}
+
 	/**
 	 * Dado el nodo raíz de un X3D y una escena vacía, navega a través de los
 	 * nodos y construye y agrega todos los objetos necesarios a la escena.
@@ -173,23 +256,28 @@ public class SceneLoader {
 	 * objeto transform que recibe, que contiene las tranformaciones acumuladas
 	 * hasta el momento para la forma a procesar.
 	 * 
+	 * Si la geometría (que no sea una esfera) es usada por más de un shape, se
+	 * la parsea una sola vez y cada shape es una Instance de ella: las
+	 * transformaciones se acumulan en la matriz de la instancia en lugar de
+	 * aplicarse a una copia de los triángulos.
+	 * 
 	 * @param shapeNode Nodo de tipo shape a procesar.
 	 * @param transform Transformaciones acumuladas hasta el momento.
 	 */
 	private SceneObject parseShapeNode(J3DShape shapeNode) {
-		SceneObject shape = null;
+		SceneObject shape;
 		VRMLNode geometry = shapeNode.getGeometry();
+		Integer uses = geometryUses.get(geometry);
 
-		if (geometry instanceof J3DSphere) {
-			shape = parseSphere((J3DSphere) geometry);
-		} else if (geometry instanceof J3DTriangleSet) {
-			shape = parseTriangleSet((J3DTriangleSet) geometry);
-		} else if (geometry instanceof J3DIndexedTriangleFanSet) {
-			shape = parseTriangleSet((J3DIndexedTriangleFanSet) geometry);
-		} else if (geometry instanceof J3DIndexedTriangleSet) {
-			shape = parseTriangleSet((J3DIndexedTriangleSet) geometry);
-		} else if (geometry instanceof J3DIndexedTriangleStripSet) {
-			shape = parseTriangleSet((J3DIndexedTriangleStripSet) geometry);
+		if (uses != null && uses > 1 && !(geometry instanceof J3DSphere)) {
+			SceneObject object = sharedGeometry.get(geometry);
+			if (object == null) {
+				object = parseGeometry(geometry);
+				sharedGeometry.put(geometry, object);
+			}
+			shape = object == null ? null : new Instance(object);
+		} else {
+			shape = parseGeometry(geometry);
 		}
 
 		// Figura no reconocida
@@ -207,6 +295,23 @@ public class SceneLoader {
 		return shape;
 	}
 
+	/** @return El objeto correspondiente a un nodo de geometría, o null. */
+	private SceneObject parseGeometry(VRMLNode geometry) {
+		SceneObject shape = null;
+		if (geometry instanceof J3DSphere) {
+			shape = parseSphere((J3DSphere) geometry);
+		} else if (geometry instanceof J3DTriangleSet) {
+			shape = parseTriangleSet((J3DTriangleSet) geometry);
+		} else if (geometry instanceof J3DIndexedTriangleFanSet) {
+			shape = parseTriangleSet((J3DIndexedTriangleFanSet) geometry);
+		} else if (geometry instanceof J3DIndexedTriangleSet) {
+			shape = parseTriangleSet((J3DIndexedTriangleSet) geometry);
+		} else if (geometry instanceof J3DIndexedTriangleStripSet) {
+			shape = parseTriangleSet((J3DIndexedTriangleStripSet) geometry);
+		}
+		return shape;
+	}
+
 	private SceneObject parseSphere(J3DSphere sphereNode) {
 		VRMLFieldData data;
 		Sphere sphere = new Sphere();
@@ -222,82 +327,108 @@ public class SceneLoader {
 		for (VRMLNodeType node : triangleSetNode.getComponents()) {
 			if (node instanceof J3DCoordinate) {
 				J3DCoordinate coordinate = (J3DCoordinate) node;
-				float[] points = coordinate.getPointRef();
-				for (int i = 0; i < points.length; i += 9) {
-					Vector3d p1 = new Vector3d(points[i], points[i + 1],
-							points[i + 2]);
-					Vector3d p2 = new Vector3d(points[i + 3], points[i + 4],
-							points[i + 5]);
-					Vector3d p3 = new Vector3d(points[i + 6], points[i + 7],
-							points[i + 8]);
-					triangleSet.addTriangle(p1, p2, p3);
-				}
+				addTriangles(triangleSet, coordinate.getPointRef());
 			}
 		}
 		return triangleSet;
 	}
 
-	private Vector3d getIndexedPoint(float[] points, int i)
+	/**
+	 * Agrega a un TriangleSet los triángulos de un nodo TriangleSet, dados
+	 * por sus coordenadas de a 9 (x, y, z de cada vértice).
+	 */
+	static void addTriangles(TriangleSet triangleSet, float[] points) {
+		for (int i = 0; i + 8 < points.length; i += 9) {
+			Vector3d p1 = new Vector3d(points[i], points[i + 1], points[i + 2]);
+			Vector3d p2 = new Vector3d(points[i + 3], points[i + 4],
+					points[i + 5]);
+			Vector3d p3 = new Vector3d(points[i + 6], points[i + 7],
+					points[i + 8]);
+			triangleSet.addTriangle(p1, p2, p3);
+		}
+	}
+
+	/**
+	 * Verifica que un índice corresponda a un punto del arreglo de
+	 * coordenadas.
+	 * 
+	 * @return El mismo índice.
+	 */
+	private static int checkIndex(float[] points, int i)
 			throws IndexOutOfBoundsException {
 		int j = 3 * i;
 		if (!(j >= 0 && j + 2 < points.length)) {
 			throw new IndexOutOfBoundsException("No triangle coords at index "
 					+ j);
 		}
-		return new Vector3d(points[j], points[j + 1], points[j + 2]);
+		return i;
 	}
 
-	private SceneObject parseTriangleSet(J3DIndexedTriangleSet setNode) {
-		TriangleSet triangleSet = new TriangleSet();
-		VRMLNode[] components = setNode.getComponents();
-
-		// Coordenadas
+	/** @return Las coordenadas de los puntos de un set indexado. */
+	private float[] getPoints(VRMLNode[] components) {
 		J3DCoordinate coordinates = (J3DCoordinate) components[0];
 		float[] points = new float[coordinates.getNumPoints()];
 		coordinates.getPoint(points);
+		return points;
+	}
 
-		// Puntos
+	private SceneObject parseTriangleSet(J3DIndexedTriangleSet setNode) {
+		float[] points = getPoints(setNode.getComponents());
 		int[] indexes = setNode.getFieldValue(setNode.getFieldIndex("index")).intArrayValue;
+		return createIndexedTriangleSet(points, indexes);
+	}
+
+	/**
+	 * Construye la malla de un nodo IndexedTriangleSet: cada tres índices
+	 * forman un triángulo. Los triángulos con índices inválidos se omiten.
+	 */
+	static SceneObject createIndexedTriangleSet(float[] points, int[] indexes) {
+		int[] triangles = new int[indexes.length];
+		int count = 0;
 		for (int i = 0; i < indexes.length; i += 3) {
 			try {
-				Vector3d p1 = getIndexedPoint(points, indexes[i]);
-				Vector3d p2 = getIndexedPoint(points, indexes[i + 1]);
-				Vector3d p3 = getIndexedPoint(points, indexes[i + 2]);
-				triangleSet.addTriangle(p1, p2, p3);
-				//triangleSet.addTriangle(p1, p3, p2);
+				int p1 = checkIndex(points, indexes[i]);
+				int p2 = checkIndex(points, indexes[i + 1]);
+				int p3 = checkIndex(points, indexes[i + 2]);
+				triangles[count++] = p1;
+				triangles[count++] = p2;
+				triangles[count++] = p3;
 			} catch (IndexOutOfBoundsException e) {
 				e.printStackTrace();
 			}
 		}
 
-		return triangleSet;
+		return new TriangleMesh(points, Arrays.copyOf(triangles, count));
 	}
 
 	private SceneObject parseTriangleSet(J3DIndexedTriangleFanSet setNode) {
-		TriangleSet triangleSet = new TriangleSet();
-		VRMLNode[] components = setNode.getComponents();
-
-		// Coordenadas
-		J3DCoordinate coordinates = (J3DCoordinate) components[0];
-		float[] points = new float[coordinates.getNumPoints()];
-		coordinates.getPoint(points);
-
-		// Puntos
+		float[] points = getPoints(setNode.getComponents());
 		int[] indexes = setNode.getFieldValue(setNode.getFieldIndex("index")).intArrayValue;
-		Vector3d p1 = getIndexedPoint(points, indexes[0]);
-		Vector3d p2 = getIndexedPoint(points, indexes[1]);
+		return createTriangleFanSet(points, indexes);
+	}
+
+	/**
+	 * Construye la malla de un nodo IndexedTriangleFanSet: cada abanico
+	 * (terminado por -1) comparte su primer vértice.
+	 */
+	static SceneObject createTriangleFanSet(float[] points, int[] indexes) {
+		int[] triangles = new int[3 * indexes.length];
+		int count = 0;
+		int p1 = checkIndex(points, indexes[0]);
+		int p2 = checkIndex(points, indexes[1]);
 		for (int i = 2; i < indexes.length; i++) {
 			try {
 				if (indexes[i] == -1) {
 					if (i + 2 < indexes.length) {
-						p1 = getIndexedPoint(points, indexes[i + 1]);
-						p2 = getIndexedPoint(points, indexes[i + 2]);
+						p1 = checkIndex(points, indexes[i + 1]);
+						p2 = checkIndex(points, indexes[i + 2]);
 						i += 2;
 					}
 				} else {
-					Vector3d p3 = getIndexedPoint(points, indexes[i]);
-					triangleSet.addTriangle(p1, p2, p3);
-					//triangleSet.addTriangle(p1, p3, p2);
+					int p3 = checkIndex(points, indexes[i]);
+					triangles[count++] = p1;
+					triangles[count++] = p2;
+					triangles[count++] = p3;
 					p2 = p3;
 				}
 			} catch (IndexOutOfBoundsException e) {
@@ -305,34 +436,38 @@ public class SceneLoader {
 			}
 		}
 
-		return triangleSet;
+		return new TriangleMesh(points, Arrays.copyOf(triangles, count));
 	}
 
 	private SceneObject parseTriangleSet(J3DIndexedTriangleStripSet setNode) {
-		TriangleSet triangleSet = new TriangleSet();
-		VRMLNode[] components = setNode.getComponents();
-
-		// Coordenadas
-		J3DCoordinate coordinates = (J3DCoordinate) components[0];
-		float[] points = new float[coordinates.getNumPoints()];
-		coordinates.getPoint(points);
-
-		// Puntos
+		float[] points = getPoints(setNode.getComponents());
 		int[] indexes = setNode.getFieldValue(setNode.getFieldIndex("index")).intArrayValue;
-		Vector3d p1 = getIndexedPoint(points, indexes[0]);
-		Vector3d p2 = getIndexedPoint(points, indexes[1]);
+		return createTriangleStripSet(points, indexes);
+	}
+
+	/**
+	 * Construye la malla de un nodo IndexedTriangleStripSet: cada tira
+	 * (terminada por -1) forma un triángulo con cada vértice y los dos
+	 * anteriores.
+	 */
+	static SceneObject createTriangleStripSet(float[] points, int[] indexes) {
+		int[] triangles = new int[3 * indexes.length];
+		int count = 0;
+		int p1 = checkIndex(points, indexes[0]);
+		int p2 = checkIndex(points, indexes[1]);
 		for (int i = 2; i < indexes.length; i++) {
 			try {
 				if (indexes[i] == -1) {
 					if (i + 2 < indexes.length) {
-						p1 = getIndexedPoint(points, indexes[i + 1]);
-						p2 = getIndexedPoint(points, indexes[i + 2]);
+						p1 = checkIndex(points, indexes[i + 1]);
+						p2 = checkIndex(points, indexes[i + 2]);
 						i += 2;
-				}
+					}
 				} else {
-					Vector3d p3 = getIndexedPoint(points, indexes[i]);
-					triangleSet.addTriangle(p1, p2, p3);
-					//triangleSet.addTriangle(p1, p3, p2);
+					int p3 = checkIndex(points, indexes[i]);
+					triangles[count++] = p1;
+					triangles[count++] = p2;
+					triangles[count++] = p3;
 					p1 = p2;
 					p2 = p3;
 				}
@@ -341,7 +476,7 @@ public class SceneLoader {
 			}
 		}
 
-		return triangleSet;
+		return new TriangleMesh(points, Arrays.copyOf(triangles, count));
 	}
 
 	/**
@@ -367,20 +502,30 @@ public class SceneLoader {
 			for (int i = 0; i < metadataNodes.length; i++) {
 				J3DMetadataFloat f = (J3DMetadataFloat) metadataNodes[i];
 				VRMLFieldData d = f.getFieldValue(f.getFieldIndex("value"));
-				if (f.getName().equals("reflection")) {
-					m.reflectionIndex = d.floatArrayValue[0];
-				} else if (f.getName().equals("refraction")) {
-					m.refractionIndex = d.floatArrayValue[0];
-				} else if (f.getName().equals("diffuse")) {
-					m.diffuseIndex = d.floatArrayValue[0];
-				} else if (f.getName().equals("specular")) {
-					m.specularIndex = d.floatArrayValue[0];
-				}
+				setMetadata(m, f.getName(), d.floatArrayValue[0]);
 			}
 		}
 		return m;
 	}
 
+	/**
+	 * Setea uno de los índices del material que no forman parte de X3D, y
+	 * que se definen como MetadataFloat del nodo Material.
+	 * 
+	 * @param name Nombre del MetadataFloat.
+	 */
+	static void setMetadata(Material m, String name, float value) {
+		if (name.equals("reflection")) {
+			m.reflectionIndex = value;
+		} else if (name.equals("refraction")) {
+			m.refractionIndex = value;
+		} else if (name.equals("diffuse")) {
+			m.diffuseIndex = value;
+		} else if (name.equals("specular")) {
+			m.specularIndex = value;
+		}
+	}
+
 	/**
 	 * Procesa un nodo de tipo luz. Levanta la ubicacion y el color, crea el
 	 * objeto point light y lo agrega a la escena.
@@ -0,0 +1,85 @@
+package raytracer;
+
+import java.util.Random;
+
+/**
+ * Sampler de la secuencia de Sobol (ver Sampler), con los números de dirección de S. Joe y F. Y.
+ * Kuo ("Constructing Sobol sequences with better two-dimensional projections", 2008) para las
+ * primeras dimensiones. Para que los pixels no repitan los mismos puntos, cada dimensión se
+ * combina (XOR) con un valor pseudoaleatorio del pixel (corrimiento digital), lo que conserva la
+ * estratificación de la secuencia.
+ */
+class SobolSampler extends Sampler {
+
+	/**
+	 * Grado s, coeficientes a y números de dirección iniciales m de los polinomios primitivos de
+	 * las dimensiones a partir de la segunda (la primera es la secuencia de van der Corput).
+	 */
+	private static final int[][] PARAMETERS = {
+		{ 1, 0, 1 },
+		{ 2, 1, 1, 3 },
+		{ 3, 1, 1, 3, 1 },
+		{ 3, 2, 1, 1, 1 },
+		{ 4, 1, 1, 1, 3, 3 },
+		{ 4, 4, 1, 3, 5, 13 },
+		{ 5, 2, 1, 1, 5, 5, 17 },
+		{ 5, 4, 1, 1, 5, 5, 5 },
+		{ 5, 7, 1, 1, 7, 11, 19 },
+		{ 5, 11, 1, 1, 5, 1, 1 },
+		{ 5, 13, 1, 1, 1, 3, 11 },
+		{ 5, 14, 1, 3, 5, 5, 31 },
+	};
+
+	/** Cantidad de dimensiones soportadas. */
+	private static final int DIMENSIONS = PARAMETERS.length + 1;
+
+	/** Números de dirección de cada dimensión, uno por bit del índice. */
+	private static final int[][] DIRECTIONS = new int[DIMENSIONS][32];
+
+	static {
+		for (int k = 0; k < 32; k++) {
+			DIRECTIONS[0][k] = 1 << (31 - k);
+		}
+		for (int d = 1; d < DIMENSIONS; d++) {
+			int[] parameters = PARAMETERS[d - 1], v = DIRECTIONS[d];
+			int s = parameters[0], a = parameters[1];
+			for (int k = 0; k < 32; k++) {
+				if (k < s) {
+					v[k] = parameters[2 + k] << (31 - k);
+				} else {
+					v[k] = v[k - s] ^ (v[k - s] >>> s);
+					for (int j = 1; j < s; j++) {
+						if (((a >>> (s - 1 - j)) & 1) != 0) {
+							v[k] ^= v[k - j];
+						}
+					}
+				}
+			}
+		}
+	}
+
+	SobolSampler(Random random) {
+		super(random);
+	}
+
+	@Override
+	public double get(int index, int count, int dimension) {
+		if (dimension >= DIMENSIONS) {
+			return random.nextDouble();
+		}
+		return toUnit(sobol(index, dimension) ^ (int) hash(dimension));
+	}
+
+	/** @return Dimensión d del punto index de la secuencia, como fracción de 32 bits. */
+	static int sobol(int index, int d) {
+		int[] v = DIRECTIONS[d];
+		int x = 0;
+		for (int k = 0; index != 0; k++, index >>>= 1) {
+			if ((index & 1) != 0) {
+				x ^= v[k];
+			}
+		}
+		return x;
+	}
+
+}
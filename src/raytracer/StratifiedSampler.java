@@ -0,0 +1,32 @@
+package raytracer;
+
+import java.util.Random;
+
+/**
+ * Sampler estratificado (ver Sampler). Si la cantidad de puntos es un cuadrado perfecto, en las
+ * dimensiones de la imagen los puntos forman una grilla con jitter (el punto index cae en la
+ * columna index % lado y la fila index / lado). En las demás dimensiones cada componente se
+ * estratifica por separado: el intervalo [0, 1) se divide en count estratos, que se asignan a los
+ * puntos con una permutación distinta para cada pixel y dimensión (latin hypercube), para que
+ * las componentes de un mismo punto no queden correlacionadas.
+ */
+class StratifiedSampler extends Sampler {
+
+	StratifiedSampler(Random random) {
+		super(random);
+	}
+
+	@Override
+	public double get(int index, int count, int dimension) {
+		if (dimension == DIMENSION_PIXEL_X || dimension == DIMENSION_PIXEL_Y) {
+			int side = (int) Math.round(Math.sqrt(count));
+			if (side * side == count) {
+				int stratum = (dimension == DIMENSION_PIXEL_X ? index % side : index / side);
+				return (stratum + random.nextDouble()) / side;
+			}
+		}
+		int stratum = permute(index, count, (int) hash(dimension));
+		return (stratum + random.nextDouble()) / count;
+	}
+
+}
@@ -0,0 +1,194 @@
+package raytracer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Escribe una imagen PNG (RGB de 8 bits, sin entrelazado) a medida que recibe sus filas, sin
+ * tenerla entera en memoria. Las filas se filtran con el filtro Paeth y se comprimen en un único
+ * stream deflate, que se vacía (SYNC_FLUSH) en un chunk IDAT al terminar cada grupo de filas.
+ * Así, si el rendering se interrumpe, el archivo contiene las filas escritas hasta ese momento y
+ * los decodificadores pueden mostrarlas aunque falte el final de la imagen.
+ */
+public class StreamingPngWriter implements RayTracer.RowWriter {
+
+	private static final byte[] SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+	/** Máximo tamaño de los chunks IDAT. */
+	private static final int MAX_CHUNK_SIZE = 1 << 16;
+
+	private static final byte FILTER_PAETH = 4;
+
+	private final int width, height;
+
+	private final DataOutputStream out;
+
+	private final DeflaterOutputStream data;
+
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+	/** Fila anterior (en cero antes de la primera) y fila actual. */
+	private byte[] previous, current;
+
+	/** Fila filtrada. */
+	private final byte[] filtered;
+
+	private int rowsWritten;
+
+	/**
+	 * Crea el archivo y escribe el encabezado de la imagen.
+	 *
+	 * @param file Archivo de salida.
+	 * @param width Ancho de la imagen.
+	 * @param height Alto de la imagen.
+	 * @throws IOException Si hay errores al escribir el archivo.
+	 */
+	public StreamingPngWriter(File file, int width, int height) throws IOException {
+		if (width <= 0 || height <= 0 || (long) width * 3 + 1 > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Invalid image size: " + width + "x" + height);
+		}
+		this.width = width;
+		this.height = height;
+		this.previous = new byte[width * 3];
+		this.current = new byte[width * 3];
+		this.filtered = new byte[width * 3 + 1];
+		this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.write(SIGNATURE);
+		byte[] header = new byte[13];
+		putInt(header, 0, width);
+		putInt(header, 4, height);
+		header[8] = 8; // bits por componente
+		header[9] = 2; // RGB
+		writeChunk("IHDR", header, 0, header.length);
+		this.data = new DeflaterOutputStream(new ChunkOutputStream(), deflater, MAX_CHUNK_SIZE,
+				true);
+	}
+
+	public void writeRows(int[] pixels, int rows) throws IOException {
+		if (rowsWritten + rows > height) {
+			throw new IOException("Too many rows for image height " + height);
+		}
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0, k = i * width; j < width; j++, k++) {
+				int rgb = pixels[k];
+				current[3 * j] = (byte) (rgb >> 16);
+				current[3 * j + 1] = (byte) (rgb >> 8);
+				current[3 * j + 2] = (byte) rgb;
+			}
+			filterPaeth();
+			data.write(filtered);
+			byte[] aux = previous;
+			previous = current;
+			current = aux;
+		}
+		rowsWritten += rows;
+		// Vacía el stream deflate en un chunk IDAT y el chunk en el archivo
+		data.flush();
+	}
+
+	/** Aplica el filtro Paeth a la fila actual, dejando el resultado en filtered. */
+	private void filterPaeth() {
+		filtered[0] = FILTER_PAETH;
+		for (int i = 0; i < current.length; i++) {
+			int a = (i >= 3 ? current[i - 3] & 0xFF : 0);
+			int b = previous[i] & 0xFF;
+			int c = (i >= 3 ? previous[i - 3] & 0xFF : 0);
+			int p = a + b - c;
+			int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+			int predictor = (pa <= pb && pa <= pc ? a : (pb <= pc ? b : c));
+			filtered[i + 1] = (byte) (current[i] - predictor);
+		}
+	}
+
+	/**
+	 * Termina la imagen y cierra el archivo. Si no se escribieron todas las filas solamente
+	 * cierra el archivo, que queda con la parte de la imagen ya escrita.
+	 *
+	 * @throws IOException Si hay errores al escribir el archivo.
+	 */
+	public void close() throws IOException {
+		try {
+			if (rowsWritten == height) {
+				data.finish();
+				data.flush();
+				writeChunk("IEND", new byte[0], 0, 0);
+			}
+		} finally {
+			deflater.end();
+			out.close();
+		}
+	}
+
+	private void writeChunk(String type, byte[] buffer, int offset, int length)
+			throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(buffer, offset, length);
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(buffer, offset, length);
+		out.writeInt((int) crc.getValue());
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >> 24);
+		buffer[offset + 1] = (byte) (value >> 16);
+		buffer[offset + 2] = (byte) (value >> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Stream en el que escribe el deflater: junta los datos comprimidos y los escribe en chunks
+	 * IDAT de hasta MAX_CHUNK_SIZE bytes.
+	 */
+	private class ChunkOutputStream extends OutputStream {
+
+		private final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+
+		private int size;
+
+		@Override
+		public void write(int b) throws IOException {
+			if (size == buffer.length) {
+				writePending();
+			}
+			buffer[size++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int offset, int length) throws IOException {
+			while (length > 0) {
+				if (size == buffer.length) {
+					writePending();
+				}
+				int n = Math.min(length, buffer.length - size);
+				System.arraycopy(b, offset, buffer, size, n);
+				size += n;
+				offset += n;
+				length -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			writePending();
+			out.flush();
+		}
+
+		private void writePending() throws IOException {
+			if (size > 0) {
+				writeChunk("IDAT", buffer, 0, size);
+				size = 0;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,561 @@
+package raytracer;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.vecmath.AxisAngle4d;
+import javax.vecmath.AxisAngle4f;
+import javax.vecmath.Vector3d;
+import javax.vecmath.Vector3f;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import objects.Instance;
+import objects.Material;
+import objects.SceneObject;
+import objects.Sphere;
+import objects.TriangleSet;
+import scene.PointLight;
+import scene.Scene;
+import scene.Transformation;
+
+/**
+ * Lector de archivos x3d que no usa Xj3D ni Java3D. Recorre el XML con StAX
+ * y arma sólo un árbol liviano con los nodos y atributos del archivo; las
+ * coordenadas (point) y los índices (index) se parsean directamente a
+ * arreglos de floats e ints, que se pasan sin copiar a las mallas. Después
+ * construye la escena con las mismas reglas (y los mismos valores por
+ * defecto de X3D) que SceneLoader.
+ *
+ * Soporta el subconjunto de X3D que usa el ray tracer: Transform, Shape,
+ * Sphere, TriangleSet, IndexedTriangleSet, IndexedTriangleFanSet,
+ * IndexedTriangleStripSet, Material (con su MetadataSet), las luces y
+ * Viewpoint, con DEF/USE. Los prototipos y los archivos externos (Inline,
+ * IMPORT) no se soportan: si aparecen al leer el XML, antes de construir
+ * ningún objeto, se lanza UnsupportedSceneException para que SceneLoader
+ * use Xj3D.
+ */
+public class StreamingSceneLoader {
+
+	/** Nodos que requieren que Xj3D resuelva la escena. */
+	private static final Set<String> UNSUPPORTED_NODES = new HashSet<String>();
+
+	static {
+		UNSUPPORTED_NODES.add("ProtoDeclare");
+		UNSUPPORTED_NODES.add("ExternProtoDeclare");
+		UNSUPPORTED_NODES.add("ProtoInstance");
+		UNSUPPORTED_NODES.add("Inline");
+		UNSUPPORTED_NODES.add("IMPORT");
+	}
+
+	/** Nodos con nombre (DEF) del archivo. */
+	private Map<String, Node> definitions;
+
+	/** Cantidad de shapes que usan cada nodo de geometría (por DEF/USE). */
+	private Map<Node, Integer> geometryUses;
+
+	/** Geometría compartida por varias instancias, en su propio espacio. */
+	private Map<Node, SceneObject> sharedGeometry;
+
+	/**
+	 * Carga un archivo x3d y construye la escena.
+	 *
+	 * @param fileName Nombre del archivo a parsear.
+	 * @return La escena construida.
+	 * @throws IOException Si hay algún problema para leer o parsear el
+	 *             archivo.
+	 * @throws UnsupportedSceneException Si el archivo usa nodos que este
+	 *             lector no soporta (ver UNSUPPORTED_NODES).
+	 */
+	public Scene loadScene(String fileName) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(fileName),
+				1 << 16);
+		Node root;
+		definitions = new HashMap<String, Node>();
+		try {
+			root = read(in);
+		} catch (XMLStreamException e) {
+			throw new IOException(fileName + ": " + e.getMessage());
+		} finally {
+			in.close();
+			definitions = null;
+		}
+		if (root == null) {
+			throw new IOException(fileName + ": no Scene node");
+		}
+		Scene scene = new Scene();
+		geometryUses = new IdentityHashMap<Node, Integer>();
+		sharedGeometry = new IdentityHashMap<Node, SceneObject>();
+		countGeometryUses(root);
+		for (Node node : root.children) {
+			parseSceneChild(node, scene);
+		}
+		geometryUses = null;
+		sharedGeometry = null;
+		return scene;
+	}
+
+	/**
+	 * Lee el XML y arma el árbol de nodos que cuelga del nodo Scene.
+	 *
+	 * @return El nodo Scene, o null si el archivo no tiene uno.
+	 */
+	private Node read(InputStream in) throws XMLStreamException, IOException {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		// No se lee la DTD (ni se resuelven entidades externas)
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+				Boolean.FALSE);
+		XMLStreamReader reader = factory.createXMLStreamReader(in);
+		try {
+			Node root = null;
+			List<Node> path = new ArrayList<Node>();
+			// Profundidad dentro de un nodo USE (que no debe tener hijos)
+			int skip = 0;
+			while (reader.hasNext()) {
+				int event = reader.next();
+				if (event == XMLStreamConstants.START_ELEMENT) {
+					String name = reader.getLocalName();
+					if (UNSUPPORTED_NODES.contains(name)) {
+						throw new UnsupportedSceneException(name
+								+ " is not supported by the streaming loader");
+					}
+					if (skip > 0) {
+						skip++;
+					} else if (root == null) {
+						if (name.equals("Scene")) {
+							root = new Node(name);
+							path.add(root);
+						}
+					} else {
+						Node node = parseElement(reader, name);
+						path.get(path.size() - 1).children.add(node);
+						if (reader.getAttributeValue(null, "USE") == null) {
+							path.add(node);
+						} else {
+							skip = 1;
+						}
+					}
+				} else if (event == XMLStreamConstants.END_ELEMENT) {
+					if (skip > 0) {
+						skip--;
+					} else if (!path.isEmpty()) {
+						path.remove(path.size() - 1);
+					}
+				}
+			}
+			return root;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Crea el nodo de un elemento con sus atributos. Los atributos point e
+	 * index se guardan ya parseados. Si el elemento es un USE, retorna el
+	 * nodo definido (el mismo objeto en cada uso, como en Xj3D).
+	 */
+	private Node parseElement(XMLStreamReader reader, String name)
+			throws IOException {
+		String use = reader.getAttributeValue(null, "USE");
+		if (use != null) {
+			Node node = definitions.get(use);
+			if (node == null) {
+				throw new IOException("Line " + reader.getLocation().getLineNumber()
+						+ ": undefined USE " + use);
+			}
+			return node;
+		}
+		Node node = new Node(name);
+		for (int i = 0; i < reader.getAttributeCount(); i++) {
+			String attribute = reader.getAttributeLocalName(i);
+			String value = reader.getAttributeValue(i);
+			try {
+				if (attribute.equals("point")) {
+					node.point = parseFloats(value);
+				} else if (attribute.equals("index")) {
+					node.index = parseInts(value);
+				} else {
+					node.attributes.put(attribute, value);
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("Line " + reader.getLocation().getLineNumber()
+						+ ": invalid " + attribute + " value in " + name);
+			}
+		}
+		String def = node.attributes.get("DEF");
+		if (def != null) {
+			definitions.put(def, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Recorre los mismos nodos que parseSceneChild y cuenta cuántos shapes
+	 * usan cada nodo de geometría.
+	 */
+	private void countGeometryUses(Node node) {
+		if (node.name.equals("Scene") || node.name.equals("Transform")) {
+			for (Node child : node.children) {
+				countGeometryUses(child);
+			}
+		} else if (node.name.equals("Shape")) {
+			Node geometry = getGeometry(node);
+			if (geometry != null) {
+				Integer uses = geometryUses.get(geometry);
+				geometryUses.put(geometry, uses == null ? 1 : uses + 1);
+			}
+		}
+	}
+
+	/**
+	 * Procesa un hijo del nodo Scene. Como en SceneLoader, sólo se consideran
+	 * las cámaras, las luces y los nodos Transform.
+	 */
+	private void parseSceneChild(Node node, Scene scene) {
+		if (node.name.equals("Viewpoint")) {
+			parseViewpointNode(node, scene);
+		} else if (node.name.equals("PointLight")
+				|| node.name.equals("SpotLight")
+				|| node.name.equals("DirectionalLight")) {
+			parseLightNode(node, scene);
+		} else if (node.name.equals("Transform")) {
+			parseTransformNode(node, scene);
+		}
+	}
+
+	private void parseViewpointNode(Node viewpoint, Scene scene) {
+		Vector3d position = new Vector3d(new Vector3f(getFloats(viewpoint,
+				"position", 0, 0, 10)));
+		AxisAngle4d orientation = new AxisAngle4d(new AxisAngle4f(getFloats(
+				viewpoint, "orientation", 0, 0, 1, 0)));
+		float fieldOfView = getFloats(viewpoint, "fieldOfView", 0.785398f)[0];
+		scene.setCamera(new Camera(position, orientation, fieldOfView));
+	}
+
+	/**
+	 * Procesa un nodo Transform y propaga su transformación a los objetos
+	 * definidos dentro de él (ver SceneLoader.parseTransformNode).
+	 *
+	 * @return Los objetos y cámaras definidos dentro del nodo.
+	 */
+	private Set<Object> parseTransformNode(Node transformNode, Scene scene) {
+		Set<Object> children = new HashSet<Object>();
+
+		Transformation transform = new Transformation();
+		transform.rotation = new AxisAngle4d(new AxisAngle4f(getFloats(
+				transformNode, "rotation", 0, 0, 1, 0)));
+		transform.translation = new Vector3d(new Vector3f(getFloats(
+				transformNode, "translation", 0, 0, 0)));
+		transform.scale = new Vector3d(new Vector3f(getFloats(transformNode,
+				"scale", 1, 1, 1)));
+		for (Node node : transformNode.children) {
+			if (node.name.equals("Shape")) {
+				SceneObject object = parseShapeNode(node);
+				if (object != null) {
+					object.transform(transform);
+					scene.addSceneObject(object);
+					children.add(object);
+				} else {
+					Node geometry = getGeometry(node);
+					System.err.println("Unsupported shape geometry: "
+							+ (geometry == null ? null : geometry.name));
+				}
+			} else if (node.name.equals("Viewpoint")) {
+				parseViewpointNode(node, scene);
+				scene.getCamera().transform(transform);
+				children.add(scene.getCamera());
+			} else if (node.name.equals("Transform")) {
+				Set<Object> group = parseTransformNode(node, scene);
+				for (Object obj : group) {
+					if (obj instanceof SceneObject) {
+						((SceneObject) obj).transform(transform);
+					} else if (obj instanceof Camera) {
+						((Camera) obj).transform(transform);
+					}
+				}
+				children.addAll(group);
+			}
+		}
+
+		return children;
+	}
+
+	/**
+	 * Procesa un nodo Shape. La geometría usada por más de un shape (que no
+	 * sea una esfera) se parsea una sola vez y cada shape es una Instance de
+	 * ella.
+	 *
+	 * @return El objeto, o null si la geometría no está soportada.
+	 */
+	private SceneObject parseShapeNode(Node shapeNode) {
+		SceneObject shape;
+		Node geometry = getGeometry(shapeNode);
+		if (geometry == null) {
+			return null;
+		}
+		Integer uses = geometryUses.get(geometry);
+
+		if (uses != null && uses > 1 && !geometry.name.equals("Sphere")) {
+			SceneObject object = sharedGeometry.get(geometry);
+			if (object == null) {
+				object = parseGeometry(geometry);
+				sharedGeometry.put(geometry, object);
+			}
+			shape = object == null ? null : new Instance(object);
+		} else {
+			shape = parseGeometry(geometry);
+		}
+
+		// Figura no reconocida
+		if (shape == null) {
+			return null;
+		}
+
+		Node appearance = getChild(shapeNode, "Appearance");
+		if (appearance != null) {
+			Node material = getChild(appearance, "Material");
+			if (material != null) {
+				shape.getMaterial().set(parseMaterial(material));
+			}
+		}
+		return shape;
+	}
+
+	/**
+	 * @return El nodo de geometría de un shape (el hijo que no es la
+	 *         apariencia ni metadata), o null si no tiene.
+	 */
+	private Node getGeometry(Node shapeNode) {
+		for (Node child : shapeNode.children) {
+			String field = child.attributes.get("containerField");
+			if (!child.name.equals("Appearance")
+					&& !child.name.startsWith("Metadata")
+					&& (field == null || field.equals("geometry"))) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	/** @return El objeto correspondiente a un nodo de geometría, o null. */
+	private SceneObject parseGeometry(Node geometry) {
+		if (geometry.name.equals("Sphere")) {
+			Sphere sphere = new Sphere();
+			sphere.radius = getFloats(geometry, "radius", 1)[0];
+			return sphere;
+		}
+		float[] points = getPoints(geometry);
+		if (geometry.name.equals("TriangleSet")) {
+			TriangleSet triangleSet = new TriangleSet();
+			SceneLoader.addTriangles(triangleSet, points);
+			return triangleSet;
+		}
+		int[] indexes = geometry.index == null ? new int[0] : geometry.index;
+		if (geometry.name.equals("IndexedTriangleSet")) {
+			return SceneLoader.createIndexedTriangleSet(points, indexes);
+		} else if (geometry.name.equals("IndexedTriangleFanSet")) {
+			return SceneLoader.createTriangleFanSet(points, indexes);
+		} else if (geometry.name.equals("IndexedTriangleStripSet")) {
+			return SceneLoader.createTriangleStripSet(points, indexes);
+		}
+		return null;
+	}
+
+	/** @return Las coordenadas del nodo Coordinate de una geometría. */
+	private float[] getPoints(Node geometry) {
+		Node coordinate = getChild(geometry, "Coordinate");
+		if (coordinate == null || coordinate.point == null) {
+			return new float[0];
+		}
+		return coordinate.point;
+	}
+
+	private Material parseMaterial(Node material) {
+		Material m = new Material();
+		// Material Data
+		m.diffuseColor = new Vector3d(new Vector3f(getFloats(material,
+				"diffuseColor", 0.8f, 0.8f, 0.8f)));
+		m.specularColor = new Vector3d(new Vector3f(getFloats(material,
+				"specularColor", 0, 0, 0)));
+		m.ambientIntensity = getFloats(material, "ambientIntensity", 0.2f)[0];
+		m.transparency = getFloats(material, "transparency", 0)[0];
+		m.shininess = getFloats(material, "shininess", 0.2f)[0];
+
+		// Material Metadata
+		Node metadata = getChild(material, "MetadataSet");
+		if (metadata != null) {
+			for (Node f : metadata.children) {
+				String field = f.attributes.get("containerField");
+				String name = f.attributes.get("name");
+				float[] value = getFloats(f, "value");
+				if (f.name.equals("MetadataFloat") && name != null
+						&& value.length > 0
+						&& (field == null || field.equals("value"))) {
+					SceneLoader.setMetadata(m, name, value[0]);
+				}
+			}
+		}
+		return m;
+	}
+
+	/**
+	 * Procesa un nodo de tipo luz (ver SceneLoader.parseLightNode). Las luces
+	 * direccionales no tienen ubicación.
+	 */
+	private void parseLightNode(Node node, Scene scene) {
+		String on = node.attributes.get("on");
+		if (on != null && !Boolean.parseBoolean(on.trim())) {
+			return;
+		}
+		PointLight light = new PointLight();
+		light.setColor(new Vector3d(new Vector3f(getFloats(node, "color", 1, 1,
+				1))));
+		if (!node.name.equals("DirectionalLight")) {
+			light.setPosition(new Vector3d(new Vector3f(getFloats(node,
+					"location", 0, 0, 0))));
+		}
+		if (node.attributes.containsKey("radio")) {
+			light.setRadio(getFloats(node, "radio", 1)[0]);
+		}
+		light.setAttenuation(getFloats(node, "attenuation", 1, 0, 0));
+		scene.addLight(light);
+	}
+
+	/** @return El primer hijo de un nodo con el nombre dado, o null. */
+	private static Node getChild(Node node, String name) {
+		for (Node child : node.children) {
+			if (child.name.equals(name)) {
+				return child;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Obtiene un atributo numérico de un nodo. Si el atributo no existe, o no
+	 * tiene tantos valores como el valor por defecto, retorna el valor por
+	 * defecto.
+	 */
+	private static float[] getFloats(Node node, String attribute,
+			float... defaultValue) {
+		String value = node.attributes.get(attribute);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			float[] values = parseFloats(value);
+			return values.length < defaultValue.length ? defaultValue : values;
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid " + attribute + " value in "
+					+ node.name + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	/** @return Si el caracter separa valores de un campo múltiple. */
+	private static boolean isSeparator(char c) {
+		return c == ' ' || c == ',' || c == '\n' || c == '\r' || c == '\t';
+	}
+
+	/** @return Cantidad de valores de un campo múltiple. */
+	private static int countValues(String s) {
+		int count = 0;
+		boolean inValue = false;
+		for (int i = 0; i < s.length(); i++) {
+			boolean separator = isSeparator(s.charAt(i));
+			if (!separator && !inValue) {
+				count++;
+			}
+			inValue = !separator;
+		}
+		return count;
+	}
+
+	/**
+	 * Parsea los valores de un campo MFFloat o MFVec3f (separados por
+	 * espacios o comas) a un arreglo, sin partir el string.
+	 *
+	 * @throws NumberFormatException Si algún valor no es un número.
+	 */
+	static float[] parseFloats(String s) throws NumberFormatException {
+		float[] values = new float[countValues(s)];
+		int n = 0, i = 0, length = s.length();
+		while (n < values.length) {
+			while (isSeparator(s.charAt(i))) {
+				i++;
+			}
+			int start = i;
+			while (i < length && !isSeparator(s.charAt(i))) {
+				i++;
+			}
+			values[n++] = Float.parseFloat(s.substring(start, i));
+		}
+		return values;
+	}
+
+	/**
+	 * Parsea los valores de un campo MFInt32 (separados por espacios o comas)
+	 * a un arreglo, sin crear un string por valor.
+	 *
+	 * @throws NumberFormatException Si algún valor no es un entero.
+	 */
+	static int[] parseInts(String s) throws NumberFormatException {
+		int[] values = new int[countValues(s)];
+		int n = 0, i = 0, length = s.length();
+		while (n < values.length) {
+			while (isSeparator(s.charAt(i))) {
+				i++;
+			}
+			boolean negative = false;
+			char c = s.charAt(i);
+			if (c == '-' || c == '+') {
+				negative = c == '-';
+				i++;
+			}
+			int start = i;
+			long value = 0;
+			while (i < length && !isSeparator(c = s.charAt(i))) {
+				if (c < '0' || c > '9' || value > Integer.MAX_VALUE) {
+					throw new NumberFormatException(s.substring(start, i + 1));
+				}
+				value = 10 * value + (c - '0');
+				i++;
+			}
+			if (i == start || value > Integer.MAX_VALUE + (negative ? 1L : 0L)) {
+				throw new NumberFormatException(s.substring(start, i));
+			}
+			values[n++] = (int) (negative ? -value : value);
+		}
+		return values;
+	}
+
+	/** Nodo del archivo, con sus atributos y sus hijos. */
+	private static class Node {
+		final String name;
+
+		final Map<String, String> attributes = new HashMap<String, String>();
+
+		/** Atributos point e index ya parseados, o null. */
+		float[] point;
+		int[] index;
+
+		final List<Node> children = new ArrayList<Node>();
+
+		Node(String name) {
+			this.name = name;
+		}
+	}
+
+}
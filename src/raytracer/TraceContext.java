@@ -0,0 +1,142 @@
+package raytracer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.vecmath.Vector3d;
+import javax.vecmath.Vector4d;
+
+import objects.SceneObject;
+
+import scene.Intersection;
+
+/**
+ * Estado propio de cada thread de rendering. Contiene el generador de números aleatorios y los
+ * rayos, intersecciones y vectores auxiliares que usa el ray tracer, para que el camino crítico
+ * (trazado de rayos y sombreado) no aloque memoria. Como getColor es recursivo, hay un juego de
+ * auxiliares por cada nivel de la recursión.
+ */
+class TraceContext {
+
+	/** Generador de números aleatorios, resembrado en cada pixel. */
+	final Random random = new Random();
+
+	/**
+	 * Generador de la ruleta rusa, resembrado en cada pixel. Es aparte para que la ruleta no
+	 * altere las muestras de antialiasing y penumbras.
+	 */
+	final Random rouletteRandom = new Random();
+
+	/** Sampler del thread, y nombre con el que se creó. */
+	Sampler sampler;
+	String samplerName;
+
+	/**
+	 * Número de muestra del rayo primario actual y cantidad de muestras del pixel (ver
+	 * Sampler).
+	 */
+	int sampleIndex, sampleCount;
+
+	/** Rayo primario (o de antialiasing) del pixel actual. */
+	final Ray cameraRay = new Ray();
+
+	/** Factor de aporte al pixel de los rayos primarios (siempre 1). */
+	final Vector3d cameraThroughput = new Vector3d(1, 1, 1);
+
+	/** Dirección del rayo primario, en coordenadas homogéneas. */
+	final Vector4d cameraDirection = new Vector4d();
+
+	/** Color del pixel y de cada muestra de antialiasing. */
+	final Vector3d pixelColor = new Vector3d(), sampleColor = new Vector3d();
+
+	/**
+	 * Indica si algún pixel vecino del actual encontró penumbra (para las penumbras adaptivas), y
+	 * si la encontró el pixel actual.
+	 */
+	boolean penumbraHint, penumbraFound;
+
+	/**
+	 * Penumbra encontrada en cada columna de la fila de pixels anterior del tile (o de la actual,
+	 * para las columnas ya renderizadas).
+	 */
+	boolean[] penumbraRow;
+
+	/** Penumbra encontrada por el rayo central de cada pixel del tile con borde. */
+	boolean[] tilePenumbra;
+
+	/**
+	 * Objeto intersectado y color (recortado, tres floats) del rayo central de cada pixel de un
+	 * tile con un borde de un pixel, y estado de cada pixel, para el antialiasing adaptivo.
+	 */
+	SceneObject[] tileObjects;
+	float[] tileColors;
+	byte[] tileState;
+
+	/** Pila de pixels del tile pendientes de refinar. */
+	int[] tilePending;
+
+	/** Auxiliares de cada nivel de la recursión de getColor. */
+	private final Level[] levels;
+
+	/**
+	 * @param depth Cantidad de niveles de recursión que puede alcanzar getColor.
+	 */
+	TraceContext(int depth) {
+		levels = new Level[depth];
+		for (int i = 0; i < depth; i++) {
+			levels[i] = new Level();
+		}
+	}
+
+	/** Aloca (una única vez) los arreglos del tile para la cantidad de pixels dada. */
+	void prepareTile(int pixels) {
+		if (tileObjects == null || tileObjects.length < pixels) {
+			tileObjects = new SceneObject[pixels];
+			tileColors = new float[3 * pixels];
+			tileState = new byte[pixels];
+			tilePending = new int[pixels];
+			tilePenumbra = new boolean[pixels];
+		}
+	}
+
+	/**
+	 * Prepara penumbraRow para una fila de tile del ancho dado, sin penumbra encontrada.
+	 */
+	void preparePenumbraRow(int width) {
+		if (penumbraRow == null || penumbraRow.length < width) {
+			penumbraRow = new boolean[width];
+		} else {
+			Arrays.fill(penumbraRow, 0, width, false);
+		}
+	}
+
+	/** @return Auxiliares del nivel de recursión dado. */
+	Level level(int currentLevel) {
+		return levels[currentLevel];
+	}
+
+	/** Rayos, intersecciones y vectores auxiliares de un nivel de la recursión de getColor. */
+	static class Level {
+
+		/** Intersección del rayo de este nivel con la escena. */
+		final Intersection intersection = new Intersection();
+
+		/** Rayos de sombra, de la luz reflejada, reflejado y refractado. */
+		final Ray lightRay = new Ray(), lightReflectedRay = new Ray(), reflectedRay = new Ray(),
+				refractedRay = new Ray();
+
+		/** Intensidades acumuladas de cada término de la iluminación. */
+		final Vector3d ambientIntensity = new Vector3d(), diffuseIntensity = new Vector3d(),
+				specularIntensity = new Vector3d();
+
+		/** Colores obtenidos de los rayos reflejado y refractado. */
+		final Vector3d reflectedColor = new Vector3d(), refractedColor = new Vector3d();
+
+		/** Factores de aporte al pixel de los rayos reflejado y refractado. */
+		final Vector3d reflectedThroughput = new Vector3d(), refractedThroughput = new Vector3d();
+
+		/** Vectores auxiliares para las cuentas de iluminación. */
+		final Vector3d lightPosition = new Vector3d(), lightDirection = new Vector3d(),
+				lightIntensity = new Vector3d(), aux = new Vector3d(), normal = new Vector3d();
+	}
+}
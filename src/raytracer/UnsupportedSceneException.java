@@ -0,0 +1,17 @@
+package raytracer;
+
+import java.io.IOException;
+
+/**
+ * Indica que StreamingSceneLoader no puede leer un archivo porque usa nodos
+ * que no soporta (prototipos o archivos externos). El archivo puede ser
+ * válido: SceneLoader lo carga entonces con Xj3D.
+ */
+public class UnsupportedSceneException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public UnsupportedSceneException(String message) {
+		super(message);
+	}
+}
@@ -46,6 +46,20 @@ public class Util {
 		v.z = v.z < 0 ? 0 : v.z;
 	}
 
+	/**
+	 * Convierte un color con componentes entre 0 y 1 al entero RGB empaquetado que usa
+	 * BufferedImage, con el mismo redondeo que java.awt.Color pero sin alocar un objeto.
+	 * 
+	 * @param color Color a convertir (ya recortado con cropVector).
+	 * @return Color en formato 0xAARRGGBB, con alfa opaco.
+	 */
+	public static int toRGB(Vector3d color) {
+		int r = (int) ((float) color.x * 255 + 0.5);
+		int g = (int) ((float) color.y * 255 + 0.5);
+		int b = (int) ((float) color.z * 255 + 0.5);
+		return 0xFF000000 | (r << 16) | (g << 8) | b;
+	}
+
 	/**
 	 * Multiplica componente a componente dos vectores, dejando el resultado en el primer vector.
 	 * 
@@ -0,0 +1,274 @@
+package scene;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import javax.vecmath.Vector3d;
+
+import objects.MeshTriangle;
+import objects.SceneObject;
+import objects.Triangle;
+
+/**
+ * Caché en disco de estructuras de aceleración ya construidas. Cada
+ * estructura se guarda en un archivo binario cuyo nombre es un hash
+ * (SHA-256) de los parámetros de construcción y de la geometría de los
+ * objetos (clase y vértices de los triángulos o BoundingBox de los demás
+ * objetos, en el orden en que se organizan). Si la escena cambia, cambia el
+ * hash, por lo que un archivo nunca se usa con una escena distinta de la
+ * que lo generó.
+ *
+ * Los archivos se leen mapeándolos en memoria, y los arreglos de la
+ * estructura se copian directamente del mapeo. Un CRC-32 de los datos
+ * permite descartar archivos truncados o dañados.
+ */
+public class AccelerationCache {
+
+	/** Estructura de aceleración que se puede guardar en la caché. */
+	public interface Cacheable {
+
+		/** @return Cantidad de bytes que ocupa la estructura serializada. */
+		long getSerializedSize();
+
+		/** Escribe la estructura (ver los constructores que la leen). */
+		void write(ByteBuffer out);
+	}
+
+	/** "RTAC" */
+	private static final int MAGIC = 0x52544143;
+
+	/** Versión del formato; cambiarla si cambia la serialización o la construcción. */
+	private static final int VERSION = 3;
+
+	/** Encabezado: MAGIC, VERSION, cantidad de objetos y CRC-32 de los datos. */
+	private static final int HEADER_SIZE = 16;
+
+	private final File directory;
+
+	private int hits, misses;
+
+	/**
+	 * @param directory Directorio en donde se guardan los archivos. Se crea
+	 *            si no existe.
+	 */
+	public AccelerationCache(File directory) {
+		this.directory = directory;
+	}
+
+	/** @return Cantidad de estructuras leídas de la caché. */
+	public int getHits() {
+		return hits;
+	}
+
+	/** @return Cantidad de estructuras que no estaban en la caché. */
+	public int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Calcula la clave de una estructura.
+	 *
+	 * @param parameters Tipo y parámetros de construcción de la estructura.
+	 * @param objects Objetos que organiza la estructura.
+	 * @return Hash en hexadecimal.
+	 */
+	public String getKey(String parameters, SceneObject[] objects) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		digest.update((VERSION + " " + parameters).getBytes());
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		Vector3d p = new Vector3d();
+		buf.putInt(objects.length);
+		for (SceneObject o : objects) {
+			if (buf.remaining() < 128) {
+				buf.flip();
+				digest.update(buf);
+				buf.clear();
+			}
+			buf.putInt(o.getClass().getName().hashCode());
+			// Los triángulos se ubican en las hojas del octree según sus
+			// vértices (que determinan también su BoundingBox)
+			if (o instanceof Triangle) {
+				Triangle t = (Triangle) o;
+				putVector(buf, t.p1);
+				putVector(buf, t.p2);
+				putVector(buf, t.p3);
+			} else if (o instanceof MeshTriangle) {
+				MeshTriangle t = (MeshTriangle) o;
+				for (int j = 0; j < 3; j++) {
+					t.getMesh().getVertex(t.getIndex(), j, p);
+					putVector(buf, p);
+				}
+			} else {
+				BoundingBox bb = o.getBounds();
+				buf.putDouble(bb.xmin).putDouble(bb.xmax).putDouble(bb.ymin)
+						.putDouble(bb.ymax).putDouble(bb.zmin).putDouble(bb.zmax);
+			}
+		}
+		buf.flip();
+		digest.update(buf);
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(String.format("%02x", b));
+		}
+		return key.toString();
+	}
+
+	private static void putVector(ByteBuffer buf, Vector3d v) {
+		buf.putDouble(v.x).putDouble(v.y).putDouble(v.z);
+	}
+
+	private File getFile(String key) {
+		return new File(directory, key + ".accel");
+	}
+
+	/**
+	 * Busca una estructura en la caché.
+	 *
+	 * @param key Clave de la estructura (ver getKey).
+	 * @param objectCount Cantidad de objetos que organiza la estructura.
+	 * @return El archivo mapeado en memoria, posicionado al comienzo de la
+	 *         estructura, o null si no está en la caché.
+	 */
+	public ByteBuffer load(String key, int objectCount) {
+		File file = getFile(key);
+		if (!file.isFile()) {
+			misses++;
+			return null;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				MappedByteBuffer in = raf.getChannel().map(
+						FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				if (in.remaining() < HEADER_SIZE || in.getInt() != MAGIC
+						|| in.getInt() != VERSION || in.getInt() != objectCount
+						|| in.getInt() != checksum(in)) {
+					System.err.println("Ignoring invalid acceleration cache file: "
+							+ file);
+					misses++;
+					return null;
+				}
+				hits++;
+				return in;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Error reading acceleration cache file " + file
+					+ ": " + e.getMessage());
+			misses++;
+			return null;
+		}
+	}
+
+	/**
+	 * Guarda una estructura en la caché. El archivo se escribe con otro
+	 * nombre y se renombra al terminar, para que otra ejecución nunca lea un
+	 * archivo a medio escribir. Los errores se informan pero no interrumpen
+	 * el rendering.
+	 *
+	 * @param key Clave de la estructura (ver getKey).
+	 * @param objectCount Cantidad de objetos que organiza la estructura.
+	 */
+	public void store(String key, int objectCount, Cacheable structure) {
+		File file = getFile(key);
+		File tmp = null;
+		try {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("cannot create directory " + directory);
+			}
+			long size = HEADER_SIZE + structure.getSerializedSize();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("structure too large (" + size + " bytes)");
+			}
+			tmp = File.createTempFile(key, ".tmp", directory);
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				MappedByteBuffer out = raf.getChannel().map(
+						FileChannel.MapMode.READ_WRITE, 0, size);
+				out.position(HEADER_SIZE);
+				structure.write(out);
+				out.position(HEADER_SIZE);
+				int crc = checksum(out);
+				out.position(0);
+				out.putInt(MAGIC).putInt(VERSION).putInt(objectCount).putInt(crc);
+				out.force();
+			} finally {
+				raf.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			System.err.println("Error writing acceleration cache file " + file
+					+ ": " + e.getMessage());
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+	}
+
+	/** @return CRC-32 de los bytes restantes del buffer (sin consumirlos). */
+	private static int checksum(ByteBuffer buf) {
+		CRC32 crc = new CRC32();
+		crc.update(buf.duplicate());
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Lee n enteros de un buffer.
+	 *
+	 * @throws IllegalArgumentException Si el buffer no tiene n enteros.
+	 */
+	static int[] readInts(ByteBuffer in, int n) {
+		if (n < 0 || in.remaining() / 4 < n) {
+			throw new IllegalArgumentException("Truncated acceleration cache data");
+		}
+		int[] a = new int[n];
+		in.asIntBuffer().get(a);
+		in.position(in.position() + 4 * n);
+		return a;
+	}
+
+	/**
+	 * Lee n doubles de un buffer.
+	 *
+	 * @throws IllegalArgumentException Si el buffer no tiene n doubles.
+	 */
+	static double[] readDoubles(ByteBuffer in, int n) {
+		if (n < 0 || in.remaining() / 8 < n) {
+			throw new IllegalArgumentException("Truncated acceleration cache data");
+		}
+		double[] a = new double[n];
+		in.asDoubleBuffer().get(a);
+		in.position(in.position() + 8 * n);
+		return a;
+	}
+
+	/** Escribe los primeros n enteros de un arreglo. */
+	static void write(ByteBuffer out, int[] a, int n) {
+		out.asIntBuffer().put(a, 0, n);
+		out.position(out.position() + 4 * n);
+	}
+
+	/** Escribe los primeros n doubles de un arreglo. */
+	static void write(ByteBuffer out, double[] a, int n) {
+		out.asDoubleBuffer().put(a, 0, n);
+		out.position(out.position() + 8 * n);
+	}
+
+}
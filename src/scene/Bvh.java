@@ -0,0 +1,531 @@
+package scene;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import objects.SceneObject;
+
+import raytracer.Ray;
+
+/**
+ * Jerarquía de volúmenes envolventes (BVH) sobre un conjunto de objetos,
+ * construida con la heurística de área de superficie (SAH) evaluada sobre
+ * particiones discretas ("binned SAH").
+ *
+ * El árbol se guarda aplanado en arreglos de primitivos, en orden de
+ * profundidad: el hijo izquierdo de un nodo interno es el nodo siguiente, y
+ * sólo se guarda el índice del derecho. Los objetos de cada hoja son un rango
+ * contiguo del arreglo de índices.
+ *
+ * Los recorridos visitan primero el hijo más cercano al origen del rayo y
+ * descartan los nodos que empiezan más lejos que la mejor intersección
+ * encontrada, por lo que terminan en cuanto ya no puede haber una más cercana.
+ */
+public class Bvh implements AccelerationCache.Cacheable {
+
+	/** Cantidad de particiones por eje en las que se evalúa la SAH. */
+	private static final int BINS = 12;
+
+	/** Costo de recorrer un nodo, relativo al de un test de intersección. */
+	private static final double TRAVERSAL_COST = 0.5;
+
+	/** Las hojas con hasta esta cantidad de objetos no se dividen. */
+	private static final int MIN_LEAF_SIZE = 2;
+
+	/** Las hojas con más objetos que esta cantidad se dividen aunque no convenga según la SAH. */
+	private static final int MAX_LEAF_SIZE = 16;
+
+	/** Máxima profundidad del árbol. */
+	private static final int MAX_DEPTH = 64;
+
+	private final SceneObject[] objects;
+
+	/** Límites de cada nodo: xmin, xmax, ymin, ymax, zmin, zmax. */
+	private double[] bounds;
+
+	/**
+	 * Dos enteros por nodo. En una hoja: índice del primer objeto y cantidad
+	 * de objetos. En un nodo interno: índice del hijo derecho y -1.
+	 */
+	private int[] nodes;
+
+	/** Índices de los objetos de las hojas. */
+	private int[] indices;
+
+	private int nodeCount, depth;
+
+	/** Pila de nodos a visitar de cada thread, con sus distancias de entrada. */
+	private final ThreadLocal<TraversalStack> stacks = new ThreadLocal<TraversalStack>() {
+		@Override
+		protected TraversalStack initialValue() {
+			return new TraversalStack(depth + 1);
+		}
+	};
+
+	/**
+	 * Construye el BVH sobre los objetos dados.
+	 *
+	 * @param objects Objetos a organizar (no se modifica el arreglo).
+	 */
+	public Bvh(SceneObject[] objects) {
+		this.objects = objects;
+		int n = objects.length;
+		indices = new int[n];
+		double[] primBounds = new double[6 * n];
+		double[] centroids = new double[3 * n];
+		for (int i = 0; i < n; i++) {
+			BoundingBox bb = objects[i].getBounds();
+			indices[i] = i;
+			primBounds[6 * i] = bb.xmin;
+			primBounds[6 * i + 1] = bb.xmax;
+			primBounds[6 * i + 2] = bb.ymin;
+			primBounds[6 * i + 3] = bb.ymax;
+			primBounds[6 * i + 4] = bb.zmin;
+			primBounds[6 * i + 5] = bb.zmax;
+			centroids[3 * i] = (bb.xmin + bb.xmax) / 2.0;
+			centroids[3 * i + 1] = (bb.ymin + bb.ymax) / 2.0;
+			centroids[3 * i + 2] = (bb.zmin + bb.zmax) / 2.0;
+		}
+		bounds = new double[6 * Math.max(1, 2 * n - 1)];
+		nodes = new int[2 * Math.max(1, 2 * n - 1)];
+		if (n > 0) {
+			build(0, n, 0, primBounds, centroids);
+		}
+	}
+
+	/**
+	 * Lee un BVH escrito con write (ver AccelerationCache).
+	 *
+	 * @param objects Objetos a organizar (los mismos, en el mismo orden, con
+	 *            los que se construyó el BVH).
+	 * @throws IllegalArgumentException Si los datos no son un BVH válido para
+	 *             esos objetos.
+	 */
+	public Bvh(ByteBuffer in, SceneObject[] objects) {
+		this.objects = objects;
+		nodeCount = in.getInt();
+		bounds = AccelerationCache.readDoubles(in, 6 * nodeCount);
+		nodes = AccelerationCache.readInts(in, 2 * nodeCount);
+		indices = AccelerationCache.readInts(in, objects.length);
+		// Verificar que los índices no salgan de los arreglos, y calcular la
+		// profundidad (los hijos siempre están después del padre)
+		if (nodeCount < 0) {
+			throw new IllegalArgumentException("Invalid BVH size");
+		}
+		int[] level = new int[nodeCount];
+		for (int n = 0; n < nodeCount; n++) {
+			int first = nodes[2 * n], count = nodes[2 * n + 1];
+			boolean valid = count == -1 ? first > n + 1 && first < nodeCount
+					: count >= 0 && first >= 0 && first <= objects.length - count;
+			if (!valid) {
+				throw new IllegalArgumentException("Invalid BVH node " + n);
+			}
+			depth = Math.max(depth, level[n]);
+			if (count == -1) {
+				level[n + 1] = Math.max(level[n + 1], level[n] + 1);
+				level[first] = Math.max(level[first], level[n] + 1);
+			}
+		}
+		for (int i = 0; i < indices.length; i++) {
+			if (indices[i] < 0 || indices[i] >= objects.length) {
+				throw new IllegalArgumentException("Invalid BVH object index "
+						+ indices[i]);
+			}
+		}
+	}
+
+	/**
+	 * @return Descripción de los parámetros de construcción, para la clave
+	 *         de AccelerationCache.
+	 */
+	static String getParameters() {
+		return "bvh bins=" + BINS + " traversal=" + TRAVERSAL_COST + " leaf="
+				+ MIN_LEAF_SIZE + "-" + MAX_LEAF_SIZE + " depth=" + MAX_DEPTH;
+	}
+
+	public long getSerializedSize() {
+		return 4 + 8L * 6 * nodeCount + 4L * (2L * nodeCount + indices.length);
+	}
+
+	public void write(ByteBuffer out) {
+		out.putInt(nodeCount);
+		AccelerationCache.write(out, bounds, 6 * nodeCount);
+		AccelerationCache.write(out, nodes, 2 * nodeCount);
+		AccelerationCache.write(out, indices, indices.length);
+	}
+
+	/** @return Cantidad de nodos del árbol. */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/** @return Profundidad del árbol (0 si sólo tiene la raíz). */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return Límites de cada nodo (xmin, xmax, ymin, ymax, zmin, zmax), en
+	 *         el orden en que se guardan los nodos.
+	 */
+	public double[] getNodeBounds() {
+		return Arrays.copyOf(bounds, 6 * nodeCount);
+	}
+
+	/**
+	 * @return Dos enteros por nodo: en una hoja, la posición en getIndices()
+	 *         de su primer objeto y la cantidad de objetos; en un nodo
+	 *         interno, el índice del hijo derecho (el izquierdo es el
+	 *         siguiente) y -1.
+	 */
+	public int[] getNodes() {
+		return Arrays.copyOf(nodes, 2 * nodeCount);
+	}
+
+	/** @return Índices de los objetos en el orden de las hojas. */
+	public int[] getIndices() {
+		return indices.clone();
+	}
+
+	/**
+	 * Construye recursivamente el subárbol de los objetos indices[start..end).
+	 *
+	 * @return Índice del nodo construido.
+	 */
+	private int build(int start, int end, int level, double[] primBounds,
+			double[] centroids) {
+		int node = nodeCount++;
+		int count = end - start;
+		depth = Math.max(depth, level);
+
+		// Límites del nodo y de los centros de sus objetos
+		double[] cb = { Double.MAX_VALUE, -Double.MAX_VALUE,
+				Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE,
+				-Double.MAX_VALUE };
+		int b = 6 * node;
+		bounds[b] = bounds[b + 2] = bounds[b + 4] = Double.MAX_VALUE;
+		bounds[b + 1] = bounds[b + 3] = bounds[b + 5] = -Double.MAX_VALUE;
+		for (int i = start; i < end; i++) {
+			int p = indices[i];
+			for (int k = 0; k < 3; k++) {
+				bounds[b + 2 * k] = Math.min(bounds[b + 2 * k],
+						primBounds[6 * p + 2 * k]);
+				bounds[b + 2 * k + 1] = Math.max(bounds[b + 2 * k + 1],
+						primBounds[6 * p + 2 * k + 1]);
+				cb[2 * k] = Math.min(cb[2 * k], centroids[3 * p + k]);
+				cb[2 * k + 1] = Math.max(cb[2 * k + 1], centroids[3 * p + k]);
+			}
+		}
+
+		if (count <= MIN_LEAF_SIZE || level >= MAX_DEPTH) {
+			makeLeaf(node, start, count);
+			return node;
+		}
+
+		// Buscar la partición de menor costo según la SAH
+		int bestAxis = -1, bestBin = -1;
+		double bestCost = Double.MAX_VALUE;
+		double nodeArea = area(bounds, b);
+		int[] binCount = new int[BINS];
+		double[] binBounds = new double[6 * BINS];
+		double[] rightArea = new double[BINS];
+		for (int axis = 0; axis < 3; axis++) {
+			double cmin = cb[2 * axis], extent = cb[2 * axis + 1] - cmin;
+			if (extent <= 0) {
+				continue;
+			}
+			for (int i = 0; i < BINS; i++) {
+				binCount[i] = 0;
+				emptyBounds(binBounds, 6 * i);
+			}
+			for (int i = start; i < end; i++) {
+				int p = indices[i];
+				int bin = binIndex(centroids[3 * p + axis], cmin, extent);
+				binCount[bin]++;
+				extendBounds(binBounds, 6 * bin, primBounds, 6 * p);
+			}
+			// Áreas acumuladas desde la derecha
+			double[] acc = new double[6];
+			emptyBounds(acc, 0);
+			for (int i = BINS - 1; i > 0; i--) {
+				extendBounds(acc, 0, binBounds, 6 * i);
+				rightArea[i] = area(acc, 0);
+			}
+			// Barrer desde la izquierda evaluando cada plano de corte
+			emptyBounds(acc, 0);
+			int leftCount = 0;
+			for (int i = 0; i < BINS - 1; i++) {
+				extendBounds(acc, 0, binBounds, 6 * i);
+				leftCount += binCount[i];
+				int rightCount = count - leftCount;
+				if (leftCount == 0 || rightCount == 0) {
+					continue;
+				}
+				double cost = TRAVERSAL_COST
+						+ (leftCount * area(acc, 0) + rightCount
+								* rightArea[i + 1]) / nodeArea;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = i;
+				}
+			}
+		}
+
+		int middle;
+		if (bestAxis < 0) {
+			// Todos los centros coinciden: no hay partición útil
+			if (count <= MAX_LEAF_SIZE) {
+				makeLeaf(node, start, count);
+				return node;
+			}
+			middle = (start + end) / 2;
+		} else {
+			if (bestCost >= count && count <= MAX_LEAF_SIZE) {
+				makeLeaf(node, start, count);
+				return node;
+			}
+			double cmin = cb[2 * bestAxis];
+			double extent = cb[2 * bestAxis + 1] - cmin;
+			int i = start, j = end - 1;
+			while (i <= j) {
+				if (binIndex(centroids[3 * indices[i] + bestAxis], cmin,
+						extent) <= bestBin) {
+					i++;
+				} else {
+					int tmp = indices[i];
+					indices[i] = indices[j];
+					indices[j--] = tmp;
+				}
+			}
+			middle = i;
+			if (middle == start || middle == end) {
+				middle = (start + end) / 2;
+			}
+		}
+
+		build(start, middle, level + 1, primBounds, centroids);
+		int right = build(middle, end, level + 1, primBounds, centroids);
+		nodes[2 * node] = right;
+		nodes[2 * node + 1] = -1;
+		return node;
+	}
+
+	private void makeLeaf(int node, int start, int count) {
+		nodes[2 * node] = start;
+		nodes[2 * node + 1] = count;
+	}
+
+	private static int binIndex(double centroid, double cmin, double extent) {
+		int bin = (int) (BINS * (centroid - cmin) / extent);
+		return bin < 0 ? 0 : (bin >= BINS ? BINS - 1 : bin);
+	}
+
+	private static void emptyBounds(double[] bb, int i) {
+		bb[i] = bb[i + 2] = bb[i + 4] = Double.MAX_VALUE;
+		bb[i + 1] = bb[i + 3] = bb[i + 5] = -Double.MAX_VALUE;
+	}
+
+	private static void extendBounds(double[] bb, int i, double[] other, int j) {
+		for (int k = 0; k < 6; k += 2) {
+			if (other[j + k] < bb[i + k])
+				bb[i + k] = other[j + k];
+			if (other[j + k + 1] > bb[i + k + 1])
+				bb[i + k + 1] = other[j + k + 1];
+		}
+	}
+
+	/** @return Área de la superficie de una caja (0 si está vacía). */
+	private static double area(double[] bb, int i) {
+		double dx = bb[i + 1] - bb[i], dy = bb[i + 3] - bb[i + 2], dz = bb[i + 5]
+				- bb[i + 4];
+		if (dx < 0 || dy < 0 || dz < 0) {
+			return 0;
+		}
+		return 2 * (dx * dy + dy * dz + dz * dx);
+	}
+
+	/**
+	 * Busca el objeto más cercano que intersecta el rayo. Sólo se consideran
+	 * intersecciones más cercanas que hit.distance.
+	 *
+	 * @param ray Rayo que se quiere analizar.
+	 * @param hit Intersección más cercana encontrada hasta el momento (se
+	 *            actualiza si se encuentra una más cercana).
+	 * @return El objeto intersectado más cercano, o null si no se encontró
+	 *         ninguno más cercano que hit.distance.
+	 */
+	public SceneObject intersect(Ray ray, Intersection hit) {
+		int index = intersectIndex(ray, hit);
+		return index < 0 ? null : objects[index];
+	}
+
+	/**
+	 * Versión de intersect que devuelve la posición del objeto en el arreglo
+	 * con el que se construyó el BVH, o -1 si no se encontró ninguno más
+	 * cercano que hit.distance.
+	 */
+	public int intersectIndex(Ray ray, Intersection hit) {
+		if (nodeCount == 0) {
+			return -1;
+		}
+		double ox = ray.position.x, oy = ray.position.y, oz = ray.position.z;
+		double ix = 1.0 / ray.direction.x, iy = 1.0 / ray.direction.y, iz = 1.0 / ray.direction.z;
+		int nearest = -1;
+		TraversalStack stack = stacks.get();
+		int sp = 0, node = 0;
+		double entry = entryDistance(0, ox, oy, oz, ix, iy, iz, hit.distance);
+		if (entry == Double.MAX_VALUE) {
+			return -1;
+		}
+		while (true) {
+			if (nodes[2 * node + 1] >= 0) {
+				int first = nodes[2 * node], last = first + nodes[2 * node + 1];
+				for (int i = first; i < last; i++) {
+					if (objects[indices[i]].intersectsRay(ray, hit)) {
+						nearest = indices[i];
+					}
+				}
+			} else {
+				int left = node + 1, right = nodes[2 * node];
+				double dl = entryDistance(left, ox, oy, oz, ix, iy, iz, hit.distance);
+				double dr = entryDistance(right, ox, oy, oz, ix, iy, iz, hit.distance);
+				if (dl != Double.MAX_VALUE) {
+					if (dr != Double.MAX_VALUE) {
+						// Visitar primero el más cercano y dejar el otro para después
+						if (dr < dl) {
+							stack.nodes[sp] = left;
+							stack.distances[sp++] = dl;
+							node = right;
+						} else {
+							stack.nodes[sp] = right;
+							stack.distances[sp++] = dr;
+							node = left;
+						}
+					} else {
+						node = left;
+					}
+					continue;
+				} else if (dr != Double.MAX_VALUE) {
+					node = right;
+					continue;
+				}
+			}
+			// Tomar el próximo nodo pendiente que todavía pueda tener algo más cercano
+			do {
+				if (sp == 0) {
+					return nearest;
+				}
+				node = stack.nodes[--sp];
+			} while (stack.distances[sp] >= hit.distance);
+		}
+	}
+
+	/**
+	 * Determina si algún objeto se interpone en el rayo antes de tMax. Termina
+	 * en cuanto encuentra uno.
+	 */
+	public boolean occludes(Ray ray, double tMax) {
+		if (nodeCount == 0) {
+			return false;
+		}
+		double ox = ray.position.x, oy = ray.position.y, oz = ray.position.z;
+		double ix = 1.0 / ray.direction.x, iy = 1.0 / ray.direction.y, iz = 1.0 / ray.direction.z;
+		TraversalStack stack = stacks.get();
+		int sp = 0, node = 0;
+		if (entryDistance(0, ox, oy, oz, ix, iy, iz, tMax) == Double.MAX_VALUE) {
+			return false;
+		}
+		while (true) {
+			if (nodes[2 * node + 1] >= 0) {
+				int first = nodes[2 * node], last = first + nodes[2 * node + 1];
+				for (int i = first; i < last; i++) {
+					if (objects[indices[i]].occludes(ray, tMax)) {
+						return true;
+					}
+				}
+			} else {
+				int left = node + 1, right = nodes[2 * node];
+				boolean hitl = entryDistance(left, ox, oy, oz, ix, iy, iz, tMax) != Double.MAX_VALUE;
+				boolean hitr = entryDistance(right, ox, oy, oz, ix, iy, iz, tMax) != Double.MAX_VALUE;
+				if (hitl) {
+					if (hitr) {
+						stack.nodes[sp++] = right;
+					}
+					node = left;
+					continue;
+				} else if (hitr) {
+					node = right;
+					continue;
+				}
+			}
+			if (sp == 0) {
+				return false;
+			}
+			node = stack.nodes[--sp];
+		}
+	}
+
+	/**
+	 * Calcula la distancia a la que el rayo entra en la caja de un nodo
+	 * (método de los slabs, con la inversa de la dirección precalculada).
+	 *
+	 * @return La distancia de entrada (0 si el origen está dentro), o
+	 *         Double.MAX_VALUE si el rayo no entra a la caja antes de tMax.
+	 */
+	private double entryDistance(int node, double ox, double oy, double oz,
+			double ix, double iy, double iz, double tMax) {
+		int b = 6 * node;
+		double tmin = 0, tmax = tMax, t1, t2;
+
+		t1 = (bounds[b] - ox) * ix;
+		t2 = (bounds[b + 1] - ox) * ix;
+		if (t1 > t2) {
+			double tmp = t1;
+			t1 = t2;
+			t2 = tmp;
+		}
+		if (t1 > tmin)
+			tmin = t1;
+		if (t2 < tmax)
+			tmax = t2;
+
+		t1 = (bounds[b + 2] - oy) * iy;
+		t2 = (bounds[b + 3] - oy) * iy;
+		if (t1 > t2) {
+			double tmp = t1;
+			t1 = t2;
+			t2 = tmp;
+		}
+		if (t1 > tmin)
+			tmin = t1;
+		if (t2 < tmax)
+			tmax = t2;
+
+		t1 = (bounds[b + 4] - oz) * iz;
+		t2 = (bounds[b + 5] - oz) * iz;
+		if (t1 > t2) {
+			double tmp = t1;
+			t1 = t2;
+			t2 = tmp;
+		}
+		if (t1 > tmin)
+			tmin = t1;
+		if (t2 < tmax)
+			tmax = t2;
+
+		return tmin <= tmax ? tmin : Double.MAX_VALUE;
+	}
+
+	/** Pila de recorrido de un thread. */
+	private static class TraversalStack {
+
+		final int[] nodes;
+		final double[] distances;
+
+		TraversalStack(int size) {
+			nodes = new int[size];
+			distances = new double[size];
+		}
+	}
+}
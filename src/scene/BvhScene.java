@@ -0,0 +1,63 @@
+package scene;
+
+import java.nio.ByteBuffer;
+
+import objects.SceneObject;
+
+import raytracer.Ray;
+
+/**
+ * Escena que organiza sus objetos en una jerarquía de volúmenes envolventes
+ * (ver Bvh), como alternativa a OctreeScene.
+ */
+public class BvhScene extends Scene {
+
+	private Bvh bvh;
+
+	public BvhScene(Scene s) {
+		this(s, null);
+	}
+
+	/**
+	 * @param cache Caché de la que se lee el BVH si ya fue construido, y en
+	 *            la que se guarda si no (puede ser null).
+	 */
+	public BvhScene(Scene s, AccelerationCache cache) {
+		super(s.getObjects(), s.getLights(), s.getCamera());
+		SceneObject[] obj = getAllLeafObjects();
+		if (cache == null) {
+			bvh = new Bvh(obj);
+			return;
+		}
+		String key = cache.getKey(Bvh.getParameters(), obj);
+		ByteBuffer in = cache.load(key, obj.length);
+		if (in != null) {
+			try {
+				bvh = new Bvh(in, obj);
+				return;
+			} catch (RuntimeException e) {
+				System.err.println("Ignoring invalid cached BVH: " + e.getMessage());
+			}
+		}
+		bvh = new Bvh(obj);
+		cache.store(key, obj.length, bvh);
+	}
+
+	public Bvh getBvh() {
+		return bvh;
+	}
+
+	@Override
+	public SceneObject getFirstIntersectedObject(Ray ray,
+			Intersection intersection) {
+		intersection.reset();
+		intersection.object = bvh.intersect(ray, intersection);
+		return intersection.object;
+	}
+
+	@Override
+	public boolean isOccluded(Ray ray, double tMax) {
+		return bvh.occludes(ray, tMax);
+	}
+
+}
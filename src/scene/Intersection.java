@@ -2,8 +2,29 @@ package scene;
 
 import javax.vecmath.Vector3d;
 
+import objects.SceneObject;
+
+/**
+ * Registro de la intersección de un rayo con la escena: objeto intersectado,
+ * distancia, punto, normal y primitiva. Lo completan los objetos (intersectsRay)
+ * y las escenas (getFirstIntersectedObject), y el ray tracer lo reutiliza en
+ * lugar de volver a intersectar.
+ */
 public class Intersection {
 
+	/**
+	 * Objeto intersectado, tal como lo devuelve la búsqueda de la escena (null
+	 * si el rayo no intersecta ninguno). Lo completa la escena, no el objeto.
+	 */
+	public SceneObject object;
+
+	/**
+	 * Índice de la primitiva intersectada dentro del objeto (el triángulo de
+	 * una malla o de un conjunto de triángulos), o -1 si el objeto es una
+	 * única primitiva.
+	 */
+	public int primitive = -1;
+
 	/** Punto de intersección */
 	public Vector3d point;
 
@@ -12,6 +33,12 @@ public class Intersection {
 
 	/** Distancia desde el origen del rayo hasta el punto de intersección. */
 	public double distance;
+
+	/**
+	 * Coordenadas baricéntricas del punto, si el objeto intersectado es un
+	 * triángulo: el punto es p1 + u (p2 - p1) + v (p3 - p1).
+	 */
+	public double u, v;
 	
 	public Intersection() {
 		point = new Vector3d();
@@ -24,10 +51,32 @@ public class Intersection {
 		this.distance = distance;
 	}
 
+	/**
+	 * Prepara la intersección para una nueva búsqueda del objeto más cercano: la distancia
+	 * pasa a ser infinita, por lo que cualquier intersección la reemplazará.
+	 */
+	public void reset() {
+		object = null;
+		primitive = -1;
+		distance = Double.MAX_VALUE;
+	}
+
+	/** Copia los valores de otra intersección, sin alocar nuevos vectores. */
+	public void set(Intersection i) {
+		object = i.object;
+		primitive = i.primitive;
+		point.set(i.point);
+		normal.set(i.normal);
+		distance = i.distance;
+		u = i.u;
+		v = i.v;
+	}
+
 	@Override
 	public String toString() {
 		return "Intersection(point=" + point.toString() + ", normal="
-				+ normal.toString() + ", distance=" + distance + ")";
+				+ normal.toString() + ", distance=" + distance + ", primitive="
+				+ primitive + ")";
 	}
 
 }
@@ -0,0 +1,423 @@
+package scene;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.vecmath.Vector3d;
+
+import objects.SceneObject;
+
+import raytracer.Ray;
+
+/**
+ * Forma compilada de un octree. Los nodos se guardan en arreglos de
+ * primitivos (planos de división e índices de hijos), con los 8 hijos de cada
+ * nodo contiguos, y los objetos de todas las hojas en un único arreglo de
+ * índices. Así el recorrido sólo accede a memoria lineal, y una vez compilado
+ * el árbol de OctreeNodes puede descartarse.
+ *
+ * Las hojas que atraviesa un rayo se recorren en orden con el algoritmo
+ * paramétrico de Revelles et al. ("An Efficient Parametric Algorithm for
+ * Octree Traversal", 2000): cada nodo se describe por las distancias a las
+ * que el rayo entra y sale de sus tres franjas, las de los hijos se obtienen
+ * de las distancias a los planos de división, y el orden de los hijos sale
+ * de comparar esas distancias. No se calculan puntos ni se sube por el árbol.
+ *
+ * Un objeto que abarca varias hojas se testea una sola vez por rayo: cada
+ * thread numera sus rayos y anota en un "buzón" por objeto el número del
+ * último rayo con el que lo testeó. La intersección encontrada queda en hit
+ * aunque esté fuera de la hoja actual, y sólo se da por definitiva cuando las
+ * hojas que faltan empiezan más lejos.
+ */
+public class LinearOctree implements AccelerationCache.Cacheable {
+
+	/** Límites de la raíz: xmin, xmax, ymin, ymax, zmin, zmax. */
+	private final double[] rootBounds;
+
+	/** Planos de división de cada nodo: x, y, z. */
+	private final double[] splits;
+
+	/**
+	 * Dos enteros por nodo. En una hoja: posición del primer objeto en
+	 * objectIndices y cantidad de objetos. En un nodo de ramificación: índice
+	 * del primero de sus 8 hijos, que están contiguos, y -1. El hijo i está
+	 * del lado mayor del plano x si i & 4, del y si i & 2 y del z si i & 1.
+	 */
+	private final int[] nodes;
+
+	/** Índices (en objects) de los objetos de las hojas. */
+	private final int[] objectIndices;
+
+	private final SceneObject[] objects;
+
+	private int nodeCount, objectCount, depth;
+
+	/** Pila de nodos a visitar de cada thread. */
+	private final ThreadLocal<TraversalStack> stacks = new ThreadLocal<TraversalStack>() {
+		@Override
+		protected TraversalStack initialValue() {
+			// Cada nivel deja a lo sumo 3 hermanos pendientes
+			return new TraversalStack(3 * depth + 4, objects.length);
+		}
+	};
+
+	/**
+	 * Compila un octree.
+	 *
+	 * @param root Raíz del octree.
+	 * @param objects Objetos de la escena (los mismos con los que se construyó
+	 *            el octree).
+	 */
+	public LinearOctree(OctreeNode root, SceneObject[] objects) {
+		this.objects = objects;
+		int[] sizes = { 1, 0 };
+		count(root, sizes, 0);
+		rootBounds = new double[] { root.xmin, root.xmax, root.ymin,
+				root.ymax, root.zmin, root.zmax };
+		splits = new double[3 * sizes[0]];
+		nodes = new int[2 * sizes[0]];
+		objectIndices = new int[sizes[1]];
+		nodeCount = 1;
+		compile(root, 0);
+	}
+
+	/**
+	 * Lee un octree compilado escrito con write (ver AccelerationCache).
+	 *
+	 * @param objects Objetos de la escena (los mismos, en el mismo orden, con
+	 *            los que se construyó el octree).
+	 * @throws IllegalArgumentException Si los datos no son un octree válido
+	 *             para esos objetos.
+	 */
+	public LinearOctree(ByteBuffer in, SceneObject[] objects) {
+		this.objects = objects;
+		nodeCount = in.getInt();
+		objectCount = in.getInt();
+		rootBounds = AccelerationCache.readDoubles(in, 6);
+		splits = AccelerationCache.readDoubles(in, 3 * nodeCount);
+		nodes = AccelerationCache.readInts(in, 2 * nodeCount);
+		objectIndices = AccelerationCache.readInts(in, objectCount);
+		// Verificar que los índices no salgan de los arreglos, y calcular la
+		// profundidad (los hijos siempre están después del padre)
+		if (nodeCount < 1) {
+			throw new IllegalArgumentException("Invalid octree size");
+		}
+		int[] level = new int[nodeCount];
+		for (int n = 0; n < nodeCount; n++) {
+			int first = nodes[2 * n], count = nodes[2 * n + 1];
+			boolean valid = count == -1 ? first > n && first <= nodeCount - 8
+					: count >= 0 && first >= 0 && first <= objectCount - count;
+			if (!valid) {
+				throw new IllegalArgumentException("Invalid octree node " + n);
+			}
+			depth = Math.max(depth, level[n]);
+			if (count == -1) {
+				for (int i = 0; i < 8; i++) {
+					level[first + i] = Math.max(level[first + i], level[n] + 1);
+				}
+			}
+		}
+		for (int i = 0; i < objectCount; i++) {
+			if (objectIndices[i] < 0 || objectIndices[i] >= objects.length) {
+				throw new IllegalArgumentException("Invalid octree object index "
+						+ objectIndices[i]);
+			}
+		}
+	}
+
+	public long getSerializedSize() {
+		return 8 + 8L * (6 + 3L * nodeCount) + 4L * (2L * nodeCount + objectCount);
+	}
+
+	public void write(ByteBuffer out) {
+		out.putInt(nodeCount).putInt(objectCount);
+		AccelerationCache.write(out, rootBounds, 6);
+		AccelerationCache.write(out, splits, 3 * nodeCount);
+		AccelerationCache.write(out, nodes, 2 * nodeCount);
+		AccelerationCache.write(out, objectIndices, objectCount);
+	}
+
+	/**
+	 * Cuenta los nodos y las referencias a objetos de las hojas, y registra
+	 * la profundidad del árbol.
+	 */
+	private void count(OctreeNode node, int[] sizes, int level) {
+		depth = Math.max(depth, level);
+		if (node.isLeaf()) {
+			sizes[1] += node.getObjectIndices().length;
+			return;
+		}
+		sizes[0] += 8;
+		for (int i = 0; i < 8; i++) {
+			if (node.getChild(i) != null)
+				count(node.getChild(i), sizes, level + 1);
+		}
+	}
+
+	/**
+	 * Compila un nodo en la posición n. Los hijos que no existen (porque el
+	 * nodo no se dividió en algún eje) se guardan como hojas vacías.
+	 */
+	private void compile(OctreeNode node, int n) {
+		if (node == null || node.isLeaf()) {
+			nodes[2 * n] = objectCount;
+			nodes[2 * n + 1] = 0;
+			if (node != null) {
+				int[] obj = node.getObjectIndices();
+				nodes[2 * n + 1] = obj.length;
+				System.arraycopy(obj, 0, objectIndices, objectCount, obj.length);
+				objectCount += obj.length;
+			}
+			return;
+		}
+		for (int k = 0; k < 3; k++) {
+			splits[3 * n + k] = node.getMidpoint(k);
+		}
+		int first = nodeCount;
+		nodeCount += 8;
+		nodes[2 * n] = first;
+		nodes[2 * n + 1] = -1;
+		for (int i = 0; i < 8; i++) {
+			compile(node.getChild(i), first + i);
+		}
+	}
+
+	/** @return Cantidad de nodos del octree. */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Busca el objeto más cercano que intersecta el rayo, recorriendo las
+	 * hojas en el orden en que las atraviesa. Sólo se consideran
+	 * intersecciones más cercanas que hit.distance.
+	 *
+	 * @return El objeto intersectado más cercano, o null si no hay ninguno.
+	 */
+	public SceneObject intersect(Ray ray, Intersection hit) {
+		SceneObject nearest = null;
+		TraversalStack stack = stacks.get();
+		start(ray, stack);
+		while (stack.size > 0) {
+			// Las hojas salen en orden: las que empiezan después de la mejor
+			// intersección encontrada no pueden mejorarla.
+			int leaf = nextLeaf(stack, hit.distance);
+			if (leaf < 0)
+				continue;
+			int first = nodes[2 * leaf], last = first + nodes[2 * leaf + 1];
+			for (int i = first; i < last; i++) {
+				int index = objectIndices[i];
+				if (stack.mailbox[index] == stack.rayId)
+					continue;
+				stack.mailbox[index] = stack.rayId;
+				SceneObject o = objects[index];
+				if (o.intersectsRay(ray, hit)) {
+					nearest = o;
+				}
+			}
+		}
+		return nearest;
+	}
+
+	/**
+	 * Determina si algún objeto se interpone en el rayo antes de tMax.
+	 */
+	public boolean occludes(Ray ray, double tMax) {
+		TraversalStack stack = stacks.get();
+		start(ray, stack);
+		while (stack.size > 0) {
+			int leaf = nextLeaf(stack, tMax);
+			if (leaf < 0)
+				continue;
+			int first = nodes[2 * leaf], last = first + nodes[2 * leaf + 1];
+			for (int i = first; i < last; i++) {
+				int index = objectIndices[i];
+				if (stack.mailbox[index] == stack.rayId)
+					continue;
+				stack.mailbox[index] = stack.rayId;
+				if (objects[index].occludes(ray, tMax))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Prepara el recorrido de un rayo: calcula las distancias de entrada y
+	 * salida de la raíz y, si el rayo la atraviesa, la deja en la pila.
+	 */
+	private void start(Ray ray, TraversalStack stack) {
+		Vector3d orig = ray.position, dir = ray.direction;
+		double[] o = stack.origin, inv = stack.invDir, t = stack.t;
+		o[0] = orig.x;
+		o[1] = orig.y;
+		o[2] = orig.z;
+		stack.mask = 0;
+		stack.size = 0;
+		if (++stack.rayId == 0) {
+			// Se dio la vuelta el contador: olvidar los rayos anteriores
+			Arrays.fill(stack.mailbox, 0);
+			stack.rayId = 1;
+		}
+		for (int k = 0; k < 3; k++) {
+			double d = (k == 0 ? dir.x : (k == 1 ? dir.y : dir.z));
+			// Con dirección nula en un eje las distancias a sus planos son
+			// infinitas; un valor muy chico evita los NaN de 0 * infinito.
+			if (d == 0.0)
+				d = 1e-30;
+			inv[k] = 1.0 / d;
+			double t0 = (rootBounds[2 * k] - o[k]) * inv[k];
+			double t1 = (rootBounds[2 * k + 1] - o[k]) * inv[k];
+			if (d < 0.0) {
+				// Se recorre el eje al revés: los hijos se numeran reflejados
+				stack.mask |= 4 >> k;
+				t[k] = t1;
+				t[3 + k] = t0;
+			} else {
+				t[k] = t0;
+				t[3 + k] = t1;
+			}
+		}
+		if (Math.max(t[0], Math.max(t[1], t[2])) < Math.min(t[3], Math.min(
+				t[4], t[5]))) {
+			stack.nodes[0] = 0;
+			stack.size = 1;
+		}
+	}
+
+	/**
+	 * Saca nodos de la pila, reemplazando cada nodo de ramificación por sus
+	 * hijos en el orden en que el rayo los atraviesa, hasta llegar a una hoja.
+	 *
+	 * @param limit Distancia máxima de interés: se descartan los nodos a los
+	 *            que el rayo entra después.
+	 * @return La hoja encontrada, o -1 si se descartó un nodo (porque está
+	 *         detrás del origen del rayo o más allá de limit, o porque el rayo
+	 *         sólo atraviesa hijos vacíos).
+	 */
+	private int nextLeaf(TraversalStack stack, double limit) {
+		double[] t = stack.t;
+		int sp = --stack.size;
+		while (true) {
+			int node = stack.nodes[sp], b = 6 * sp;
+			double tx0 = t[b], ty0 = t[b + 1], tz0 = t[b + 2];
+			double tx1 = t[b + 3], ty1 = t[b + 4], tz1 = t[b + 5];
+			if (tx1 < 0.0 || ty1 < 0.0 || tz1 < 0.0
+					|| Math.max(tx0, Math.max(ty0, tz0)) > limit)
+				return -1;
+			if (nodes[2 * node + 1] >= 0)
+				return node;
+
+			// Distancias a los planos de división
+			double[] o = stack.origin, inv = stack.invDir;
+			double txm = clamp((splits[3 * node] - o[0]) * inv[0], tx0, tx1);
+			double tym = clamp((splits[3 * node + 1] - o[1]) * inv[1], ty0, ty1);
+			double tzm = clamp((splits[3 * node + 2] - o[2]) * inv[2], tz0, tz1);
+
+			// Listar los hijos no vacíos que atraviesa el rayo (a lo sumo 4),
+			// en orden. Los bits de c indican de qué lado de cada plano está
+			// el hijo, contando en el sentido del rayo.
+			int[] order = stack.order;
+			int firstNode = nodes[2 * node];
+			int count = 0, c = firstChild(tx0, ty0, tz0, txm, tym, tzm);
+			while (c < 8) {
+				if (nodes[2 * (firstNode + (c ^ stack.mask)) + 1] != 0)
+					order[count++] = c;
+				double ex = (c & 4) != 0 ? tx1 : txm;
+				double ey = (c & 2) != 0 ? ty1 : tym;
+				double ez = (c & 1) != 0 ? tz1 : tzm;
+				if (ex <= ey && ex <= ez)
+					c = (c & 4) != 0 ? 8 : c | 4;
+				else if (ey <= ez)
+					c = (c & 2) != 0 ? 8 : c | 2;
+				else
+					c = (c & 1) != 0 ? 8 : c | 1;
+			}
+			if (count == 0)
+				return -1;
+
+			// Apilarlos en orden inverso (en lugar del nodo actual), para que
+			// salga primero el primero
+			for (int i = count - 1; i >= 0; i--) {
+				c = order[i];
+				b = 6 * (sp + count - 1 - i);
+				stack.nodes[sp + count - 1 - i] = firstNode + (c ^ stack.mask);
+				t[b] = (c & 4) != 0 ? txm : tx0;
+				t[b + 3] = (c & 4) != 0 ? tx1 : txm;
+				t[b + 1] = (c & 2) != 0 ? tym : ty0;
+				t[b + 4] = (c & 2) != 0 ? ty1 : tym;
+				t[b + 2] = (c & 1) != 0 ? tzm : tz0;
+				t[b + 5] = (c & 1) != 0 ? tz1 : tzm;
+			}
+			sp += count - 1;
+			stack.size = sp;
+		}
+	}
+
+	/**
+	 * @return Primer hijo (en el sentido del rayo) que atraviesa el rayo,
+	 *         según el plano por el que entra al nodo.
+	 */
+	private static int firstChild(double tx0, double ty0, double tz0,
+			double txm, double tym, double tzm) {
+		int c = 0;
+		if (tx0 > ty0 && tx0 > tz0) { // Entra por un plano YZ
+			if (tym < tx0)
+				c |= 2;
+			if (tzm < tx0)
+				c |= 1;
+		} else if (ty0 > tz0) { // Entra por un plano XZ
+			if (txm < ty0)
+				c |= 4;
+			if (tzm < ty0)
+				c |= 1;
+		} else { // Entra por un plano XY
+			if (txm < tz0)
+				c |= 4;
+			if (tym < tz0)
+				c |= 2;
+		}
+		return c;
+	}
+
+	private static double clamp(double t, double min, double max) {
+		return t < min ? min : (t > max ? max : t);
+	}
+
+	/** Estado del recorrido de un thread. */
+	private static class TraversalStack {
+
+		/** Nodos pendientes. */
+		final int[] nodes;
+
+		/**
+		 * Distancias de entrada y salida de las franjas de cada nodo
+		 * pendiente: tx0, ty0, tz0, tx1, ty1, tz1.
+		 */
+		final double[] t;
+
+		/** Cantidad de nodos pendientes. */
+		int size;
+
+		/** Orden de los hijos de un nodo. */
+		final int[] order = new int[4];
+
+		final double[] origin = new double[3], invDir = new double[3];
+
+		/** Ejes recorridos en sentido negativo (bits como en los hijos). */
+		int mask;
+
+		/** Último rayo con el que se testeó cada objeto. */
+		final int[] mailbox;
+
+		/** Número del rayo actual. */
+		int rayId;
+
+		TraversalStack(int size, int objectCount) {
+			nodes = new int[size];
+			t = new double[6 * size];
+			mailbox = new int[objectCount];
+		}
+	}
+
+}
@@ -1,27 +1,57 @@
 package scene;
 
-import javax.vecmath.Vector3d;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
-import objects.AbstractSceneObject;
 import objects.SceneObject;
 
-import raytracer.Ray;
-
 /**
  * Esta clase representa el nodo de un Octree, utilizado para disponer
  * eficientemente los objetos de una escena por ubicación.
  * 
  * Un OctreeNode puede ser terminal (cuando contiene lista de SceneObjects) o de
- * ramificación (cuando contiene otros OctreeNodes hijos).
+ * ramificación (cuando contiene otros OctreeNodes hijos). Sólo se usa para
+ * construir el octree; las consultas se hacen sobre su forma compilada (ver
+ * LinearOctree).
+ * 
+ * Los planos de división de cada nodo y la decisión de dividirlo salen de
+ * una estimación del costo de las consultas (la heurística de área de
+ * superficie, SAH): la probabilidad de que un rayo que atraviesa el nodo
+ * atraviese un hijo es proporcional al área de su superficie, y el costo de
+ * un nodo terminal es la cantidad de objetos que hay que testear.
+ * 
+ * Todos los nodos comparten los arreglos de objetos y de BoundingBoxes de la
+ * raíz; cada nodo guarda sólo los índices de sus objetos. Si la construcción
+ * se invoca dentro de un ForkJoinPool, los hijos de los nodos con al menos
+ * PARALLEL_THRESHOLD objetos se construyen en paralelo.
  */
 
 public class OctreeNode extends BoundingBox {
 
-	private static final int MAX_OBJECTS_PER_NODE = 8;
-	private static final int MAX_OCTREE_DEPTH = 16;
+	/**
+	 * Costo de recorrer un nodo de ramificación, relativo al de un test de
+	 * intersección.
+	 */
+	private static final double TRAVERSAL_COST = 2.0;
+
+	/** Cantidad de planos candidatos por eje (más uno) en los que se evalúa la SAH. */
+	private static final int BINS = 16;
+
+	/**
+	 * Máxima profundidad. La división termina por costo; este límite sólo
+	 * evita recursiones excesivas con geometría degenerada.
+	 */
+	private static final int MAX_OCTREE_DEPTH = 24;
+
+	/** Cantidad mínima de objetos de un nodo para construir sus hijos en paralelo. */
+	private static final int PARALLEL_THRESHOLD = 2048;
 
-	private OctreeNode parent, child[];
-	private SceneObject obj[];
+	private OctreeNode child[];
+	private final SceneObject objects[];
+	private final BoundingBox bounds[];
+	/** Índices (en objects) de los objetos del nodo. */
+	private int obj[];
 	private double midx, midy, midz;
 	private int depth;
 
@@ -35,333 +65,281 @@ public class OctreeNode extends BoundingBox {
 		this(nodeBounds, objects, bb, null, 0);
 	}
 
-	/** Constructor a ser envuelto para el caso del nodo raíz */
+	/**
+	 * Constructor a ser envuelto para el caso del nodo raíz
+	 * 
+	 * @param parentObj Índices de los objetos del padre (null en la raíz).
+	 */
 	private OctreeNode(BoundingBox nodeBounds, SceneObject objects[],
-			BoundingBox bb[], OctreeNode parentNode, int nodeDepth) {
+			BoundingBox bb[], int parentObj[], int nodeDepth) {
 		super(nodeBounds);
-		boolean inside[] = new boolean[objects.length];
-		int count, i;
-
-		parent = parentNode;
+		this.objects = objects;
+		this.bounds = bb;
 		depth = nodeDepth;
 
 		// Encontrar los objetos contenidos en este nodo
-		for (i = 0, count = 0; i < objects.length; i++) {
+		int n = parentObj == null ? objects.length : parentObj.length;
+		int inside[] = new int[n];
+		int count = 0;
+		for (int k = 0; k < n; k++) {
+			int i = parentObj == null ? k : parentObj[k];
 			if (bb[i].intersects(this))
 				if (objects[i].intersectsBox(this)) {
-					inside[i] = true;
-					count++;
+					inside[count++] = i;
 				}
 		}
-
-		// Contruir la lista de objetos de este nodo y sus bb
-		obj = new AbstractSceneObject[count];
-		if (count == 0)
-			return;
-		BoundingBox objBounds[] = new BoundingBox[count];
-		for (i = 0, count = 0; i < objects.length; i++) {
-			if (inside[i]) {
-				obj[count] = objects[i];
-				objBounds[count++] = bb[i];
-			}
-		}
+		obj = count == n ? inside : Arrays.copyOf(inside, count);
 
 		// Ramificar este nodo si corresponde
-		split(objBounds);
+		if (count > 0)
+			split();
 	}
 
 	/**
-	 * Ramifica el nodo actual si no tiene muchos obtejos y el octree todavía
-	 * nos es muy profundo. En ese caso, construye hasta 8 hijos según las
-	 * BoundingBoxes de sus objetos y marca el nodo como no terminal.
+	 * Ramifica el nodo actual si según la SAH conviene hacerlo. En ese caso,
+	 * construye hasta 8 hijos según las BoundingBoxes de sus objetos y marca
+	 * el nodo como no terminal.
 	 */
-	private void split(BoundingBox objBounds[]) {
-		if (obj.length <= MAX_OBJECTS_PER_NODE || depth >= MAX_OCTREE_DEPTH) {
+	private void split() {
+		if (obj.length <= 1 || depth >= MAX_OCTREE_DEPTH) {
 			return;
 		}
 
 		boolean splitx, splity, splitz;
-		findMidpoints(objBounds);
+		findMidpoints();
 		splitx = (midx != xmax);
 		splity = (midy != ymax);
 		splitz = (midz != zmax);
 		if (!(splitx || splity || splitz))
 			return;
+		if (splitCost(splitx, splity, splitz) >= obj.length)
+			return;
 
-		child = new OctreeNode[8];
-		int d = depth + 1;
+		BoundingBox[] boxes = new BoundingBox[8];
 		// near SW
-		BoundingBox bb = new BoundingBox(xmin, midx, ymin, midy, zmin, midz);
-		child[0] = new OctreeNode(bb, obj, objBounds, this, d);
+		boxes[0] = new BoundingBox(xmin, midx, ymin, midy, zmin, midz);
 		if (splitz) { // far SW
-			bb = new BoundingBox(xmin, midx, ymin, midy, zmax, midz);
-			child[1] = new OctreeNode(bb, obj, objBounds, this, d);
+			boxes[1] = new BoundingBox(xmin, midx, ymin, midy, zmax, midz);
 		}
 		if (splity) { // near NW
-			bb = new BoundingBox(xmin, midx, ymax, midy, zmin, midz);
-			child[2] = new OctreeNode(bb, obj, objBounds, this, d);
+			boxes[2] = new BoundingBox(xmin, midx, ymax, midy, zmin, midz);
 			if (splitz) { // far NW
-				bb = new BoundingBox(xmin, midx, ymax, midy, zmax, midz);
-				child[3] = new OctreeNode(bb, obj, objBounds, this, d);
+				boxes[3] = new BoundingBox(xmin, midx, ymax, midy, zmax, midz);
 			}
 		}
 		if (splitx) { // near SE
-			bb = new BoundingBox(xmax, midx, ymin, midy, zmin, midz);
-			child[4] = new OctreeNode(bb, obj, objBounds, this, d);
+			boxes[4] = new BoundingBox(xmax, midx, ymin, midy, zmin, midz);
 			if (splitz) { // far SE
-				bb = new BoundingBox(xmax, midx, ymin, midy, zmax, midz);
-				child[5] = new OctreeNode(bb, obj, objBounds, this, d);
+				boxes[5] = new BoundingBox(xmax, midx, ymin, midy, zmax, midz);
 			}
 			if (splity) { // near NE
-				bb = new BoundingBox(xmax, midx, ymax, midy, zmin, midz);
-				child[6] = new OctreeNode(bb, obj, objBounds, this, d);
+				boxes[6] = new BoundingBox(xmax, midx, ymax, midy, zmin, midz);
 				if (splitz) { // far NE
-					bb = new BoundingBox(xmin, midx, ymax, midy, zmax, midz);
-					child[7] = new OctreeNode(bb, obj, objBounds, this, d);
+					boxes[7] = new BoundingBox(xmax, midx, ymax, midy, zmax, midz);
 				}
 			}
 		}
+
+		child = new OctreeNode[8];
+		if (obj.length >= PARALLEL_THRESHOLD && ForkJoinTask.inForkJoinPool()) {
+			ChildBuildTask[] tasks = new ChildBuildTask[8];
+			int count = 0;
+			for (int i = 0; i < 8; i++) {
+				if (boxes[i] != null)
+					tasks[count++] = new ChildBuildTask(i, boxes[i]);
+			}
+			ForkJoinTask.invokeAll(Arrays.copyOf(tasks, count));
+		} else {
+			for (int i = 0; i < 8; i++) {
+				if (boxes[i] != null)
+					buildChild(i, boxes[i]);
+			}
+		}
 		obj = null; // Marcar como nodo de ramificación (no terminal)
 	}
 
+	/**
+	 * @return Descripción de los parámetros de construcción, para la clave
+	 *         de AccelerationCache.
+	 */
+	static String getParameters() {
+		return "octree sah bins=" + BINS + " traversal=" + TRAVERSAL_COST
+				+ " depth=" + MAX_OCTREE_DEPTH;
+	}
+
+	/** Construye el i-ésimo hijo del nodo. */
+	private void buildChild(int i, BoundingBox box) {
+		child[i] = new OctreeNode(box, objects, bounds, obj, depth + 1);
+	}
+
 	/**
 	 * Este método debería ser invocado sobre un nodo terminal octree.
 	 * 
 	 * @return SceneObjects pertenecientes a este nodo.
 	 */
 	public SceneObject[] getObjects() {
-		if (obj == null)
-			throw new RuntimeException("OctreeNode.getObjects "
-					+ "invocado sobre un nodo no terminal.");
-		return obj;
+		int indices[] = getObjectIndices();
+		SceneObject ret[] = new SceneObject[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			ret[i] = objects[indices[i]];
+		}
+		return ret;
 	}
 
 	/**
-	 * Este método debería ser invocado sobre la raíz del octree.
+	 * Este método debería ser invocado sobre un nodo terminal octree.
 	 * 
-	 * @returns OctreeNode terminal que contiene al punto. (Sino null)
+	 * @return Índices (en el arreglo de objetos de la raíz) de los objetos de
+	 *         este nodo.
 	 */
-	public OctreeNode findNode(Vector3d pos) {
-		OctreeNode current;
-
-		if (!contains(pos))
-			return null;
-		current = this;
-		while (current.obj == null) {
-			if (pos.x > current.midx) {
-				if (pos.y > current.midy) {
-					if (pos.z > current.midz)
-						current = current.child[7];
-					else
-						current = current.child[6];
-				} else {
-					if (pos.z > current.midz)
-						current = current.child[5];
-					else
-						current = current.child[4];
-				}
-			} else {
-				if (pos.y > current.midy) {
-					if (pos.z > current.midz)
-						current = current.child[3];
-					else
-						current = current.child[2];
-				} else {
-					if (pos.z > current.midz)
-						current = current.child[1];
-					else
-						current = current.child[0];
-				}
-			}
-		}
-		return current;
+	public int[] getObjectIndices() {
+		if (obj == null)
+			throw new RuntimeException("OctreeNode.getObjectIndices "
+					+ "invocado sobre un nodo no terminal.");
+		return obj;
 	}
 
 	/**
-	 * @return Nodo terminal vecino por donde pasa un rayo. (Sino null)
+	 * Setea los planos de división del nodo. En cada eje se elige, entre
+	 * BINS - 1 planos equiespaciados, el de menor costo según la SAH para una
+	 * división en dos a lo largo de ese eje. Si ninguno mejora el costo de no
+	 * dividir, el plano se ubica en el máximo del eje (el eje no se divide).
 	 */
-	public OctreeNode findNextNode(Ray r) {
-		double t1, t2, tmax = Double.MAX_VALUE;
-		Vector3d orig = r.position, dir = r.direction;
-		OctreeNode current;
-
-		if (parent == null)
-			return null;
-
-		// Buscar el último punto por donde pasa el rayo dentro de este nodo.
-		if (dir.x != 0.0) {
-			t1 = (xmin - orig.x) / dir.x;
-			t2 = (xmax - orig.x) / dir.x;
-			if (t1 < t2) {
-				if (t2 < tmax)
-					tmax = t2;
-			} else {
-				if (t1 < tmax)
-					tmax = t1;
-			}
+	private void findMidpoints() {
+		midx = findMidpoint(0, xmin, xmax);
+		midy = findMidpoint(1, ymin, ymax);
+		midz = findMidpoint(2, zmin, zmax);
+	}
+
+	/** @return Plano de división en el eje dado, o max si no conviene dividir. */
+	private double findMidpoint(int axis, double min, double max) {
+		double extent = max - min;
+		if (!(extent > 0)) {
+			return max;
 		}
-		if (dir.y != 0.0) {
-			t1 = (ymin - orig.y) / dir.y;
-			t2 = (ymax - orig.y) / dir.y;
-			if (t1 < t2) {
-				if (t2 < tmax)
-					tmax = t2;
-			} else {
-				if (t1 < tmax)
-					tmax = t1;
-			}
+		// Cantidad de objetos que empiezan y que terminan en cada franja
+		int starts[] = new int[BINS], ends[] = new int[BINS];
+		double scale = BINS / extent;
+		for (int i : obj) {
+			BoundingBox b = bounds[i];
+			double lo = axis == 0 ? b.xmin : (axis == 1 ? b.ymin : b.zmin);
+			double hi = axis == 0 ? b.xmax : (axis == 1 ? b.ymax : b.zmax);
+			starts[bin(lo, min, scale)]++;
+			ends[bin(hi, min, scale)]++;
 		}
-		if (dir.z != 0.0) {
-			t1 = (zmin - orig.z) / dir.z;
-			t2 = (zmax - orig.z) / dir.z;
-			if (t1 < t2) {
-				if (t2 < tmax)
-					tmax = t2;
-			} else {
-				if (t1 < tmax)
-					tmax = t1;
+		// Área de la superficie de los hijos como función lineal de la
+		// posición relativa t del plano: area(t) = a + b t
+		double dx = xmax - xmin, dy = ymax - ymin, dz = zmax - zmin;
+		double d1 = axis == 0 ? dy : dx, d2 = axis == 2 ? dy : dz;
+		double a = d1 * d2, b = extent * (d1 + d2);
+		double total = a + b;
+		double bestCost = obj.length * total, best = max;
+		int left = 0, right = obj.length;
+		for (int j = 1; j < BINS; j++) {
+			left += starts[j - 1];
+			right -= ends[j - 1];
+			double t = (double) j / BINS;
+			double cost = left * (a + b * t) + right * (a + b * (1 - t));
+			if (cost < bestCost) {
+				bestCost = cost;
+				best = min + extent * t;
 			}
 		}
+		return best;
+	}
 
-		// Meterlo dentro del nodo
-		Vector3d nextPos = new Vector3d(orig.x + dir.x * tmax, orig.y + dir.y
-				* tmax, orig.z + dir.z * tmax);
-		nextPos.x += (dir.x > 0.0 ? OctreeScene.TOLERANCE
-				: -OctreeScene.TOLERANCE);
-		nextPos.y += (dir.y > 0.0 ? OctreeScene.TOLERANCE
-				: -OctreeScene.TOLERANCE);
-		nextPos.z += (dir.z > 0.0 ? OctreeScene.TOLERANCE
-				: -OctreeScene.TOLERANCE);
-
-		// Subir por el octree hasta encontrar un nodo que lo contenga
-		current = parent;
-		while (!current.contains(nextPos)) {
-			current = current.parent;
-			if (current == null)
-				return null;
-		}
-
-		// Ahora volver a bajar por el octree hasta encontrar un nodo terminal
-		while (current.obj == null) {
-			if (nextPos.x > current.midx) {
-				if (nextPos.y > current.midy) {
-					if (nextPos.z > current.midz)
-						current = current.child[7];
-					else
-						current = current.child[6];
-				} else {
-					if (nextPos.z > current.midz)
-						current = current.child[5];
-					else
-						current = current.child[4];
-				}
-			} else {
-				if (nextPos.y > current.midy) {
-					if (nextPos.z > current.midz)
-						current = current.child[3];
-					else
-						current = current.child[2];
-				} else {
-					if (nextPos.z > current.midz)
-						current = current.child[1];
-					else
-						current = current.child[0];
-				}
-			}
-		}
-		return current;
+	/** @return Franja (0 a BINS - 1) en la que cae la coordenada x. */
+	private static int bin(double x, double min, double scale) {
+		int b = (int) ((x - min) * scale);
+		return b < 0 ? 0 : (b >= BINS ? BINS - 1 : b);
 	}
 
 	/**
-	 * Este método debería ser invocado sobre la raíz del octree.
+	 * Estima, según la SAH, el costo de dividir el nodo en los planos
+	 * elegidos: el de recorrerlo más el de los hijos, con la cantidad de
+	 * objetos de cada hijo estimada a partir de sus BoundingBoxes.
 	 * 
-	 * @return Nodo terminal que contiene el punto por donde pasa un rayo
-	 *         proveniente desde afuera de este nodo. (Sino null)
+	 * @return Costo relativo al de un test de intersección, comparable con
+	 *         la cantidad de objetos del nodo (el costo de no dividirlo).
 	 */
-	public OctreeNode findFirstNode(Ray r) {
-		double t1, t2, tmin = -Double.MAX_VALUE, tmax = Double.MAX_VALUE;
-		Vector3d orig = r.position, dir = r.direction;
-
-		// Encontrar (si existe) el punto donde el rayo ingresa al nodo
-		if (dir.x == 0.0) {
-			if (orig.x < xmin || orig.x > xmax)
-				return null;
-		} else {
-			t1 = (xmin - orig.x) / dir.x;
-			t2 = (xmax - orig.x) / dir.x;
-			if (t1 < t2) {
-				if (t1 > tmin)
-					tmin = t1;
-				if (t2 < tmax)
-					tmax = t2;
-			} else {
-				if (t2 > tmin)
-					tmin = t2;
-				if (t1 < tmax)
-					tmax = t1;
+	private double splitCost(boolean splitx, boolean splity, boolean splitz) {
+		int counts[] = new int[8];
+		for (int i : obj) {
+			BoundingBox b = bounds[i];
+			int xs = sides(splitx, b.xmin, b.xmax, midx);
+			int ys = sides(splity, b.ymin, b.ymax, midy);
+			int zs = sides(splitz, b.zmin, b.zmax, midz);
+			for (int c = 0; c < 8; c++) {
+				if ((xs & (1 << (c >> 2))) != 0
+						&& (ys & (1 << ((c >> 1) & 1))) != 0
+						&& (zs & (1 << (c & 1))) != 0)
+					counts[c]++;
 			}
-			if (tmin > tmax || tmax < 0.0)
-				return null;
 		}
-		if (dir.y == 0.0) {
-			if (orig.y < ymin || orig.y > ymax)
-				return null;
-		} else {
-			t1 = (ymin - orig.y) / dir.y;
-			t2 = (ymax - orig.y) / dir.y;
-			if (t1 < t2) {
-				if (t1 > tmin)
-					tmin = t1;
-				if (t2 < tmax)
-					tmax = t2;
-			} else {
-				if (t2 > tmin)
-					tmin = t2;
-				if (t1 < tmax)
-					tmax = t1;
-			}
-			if (tmin > tmax || tmax < 0.0)
-				return null;
+		double area = area(xmax - xmin, ymax - ymin, zmax - zmin);
+		if (!(area > 0)) {
+			return Double.MAX_VALUE;
 		}
-		if (dir.z == 0.0) {
-			if (orig.z < zmin || orig.z > zmax)
-				return null;
-		} else {
-			t1 = (zmin - orig.z) / dir.z;
-			t2 = (zmax - orig.z) / dir.z;
-			if (t1 < t2) {
-				if (t1 > tmin)
-					tmin = t1;
-				if (t2 < tmax)
-					tmax = t2;
-			} else {
-				if (t2 > tmin)
-					tmin = t2;
-				if (t1 < tmax)
-					tmax = t1;
-			}
-			if (tmin > tmax || tmax < 0.0)
-				return null;
+		double cost = 0;
+		for (int c = 0; c < 8; c++) {
+			if (counts[c] == 0)
+				continue;
+			double dx = (c & 4) == 0 ? midx - xmin : xmax - midx;
+			double dy = (c & 2) == 0 ? midy - ymin : ymax - midy;
+			double dz = (c & 1) == 0 ? midz - zmin : zmax - midz;
+			cost += area(dx, dy, dz) / area * (TRAVERSAL_COST + counts[c]);
+		}
+		return cost;
+	}
+
+	/**
+	 * @return Lados del plano que ocupa el intervalo [lo, hi]: bit 0 si ocupa
+	 *         el lado menor, bit 1 si ocupa el mayor.
+	 */
+	private static int sides(boolean split, double lo, double hi, double mid) {
+		if (!split) {
+			return 1;
 		}
+		return (lo <= mid ? 1 : 0) | (hi >= mid ? 2 : 0);
+	}
 
-		// Meterlo dentro del nodo
-		tmin += OctreeScene.TOLERANCE;
-		Vector3d nextPos = new Vector3d(orig.x + dir.x * tmin, orig.y + dir.y
-				* tmin, orig.z + dir.z * tmin);
+	/** @return Área de la superficie de una caja (a menos de un factor 2). */
+	private static double area(double dx, double dy, double dz) {
+		return dx * dy + dy * dz + dz * dx;
+	}
 
-		// Devolver el nodo terminal que contiene el punto
-		return findNode(nextPos);
+	/** @return Si el nodo es terminal (contiene objetos y no hijos). */
+	boolean isLeaf() {
+		return obj != null;
 	}
 
-	/** Setea los puntos medios del nodo. */
-	private void findMidpoints(BoundingBox objBounds[]) {
-		// TODO: La eficiencia del octree se puede mejorar si estos puntos
-		// medios no se setean por la mitad de la BoundingBox sino en planos
-		// otros planos tomados convenientemente.
-		Vector3d size = getSize();
-		midx = size.x / 2;
-		midy = size.y / 2;
-		midz = size.z / 2;
+	/** @return El i-ésimo hijo del nodo (null si no existe o si es terminal). */
+	OctreeNode getChild(int i) {
+		return child == null ? null : child[i];
+	}
+
+	/** @return Coordenada del plano de división en el eje dado (0: x, 1: y, 2: z). */
+	double getMidpoint(int axis) {
+		return axis == 0 ? midx : (axis == 1 ? midy : midz);
+	}
+
+	/** Tarea que construye un hijo del nodo. */
+	private class ChildBuildTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private int index;
+		private BoundingBox box;
+
+		public ChildBuildTask(int index, BoundingBox box) {
+			this.index = index;
+			this.box = box;
+		}
+
+		@Override
+		protected void compute() {
+			buildChild(index, box);
+		}
 	}
 
-}
\ No newline at end of file
+}
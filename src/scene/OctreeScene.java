@@ -1,29 +1,96 @@
 package scene;
 
-import java.util.Arrays;
-import java.util.Collection;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import objects.SceneObject;
 
 import raytracer.Ray;
 
+/**
+ * Escena que organiza sus objetos en un octree. El árbol de OctreeNodes se
+ * usa sólo durante la construcción; las consultas se hacen sobre su forma
+ * compilada (ver LinearOctree).
+ */
 public class OctreeScene extends Scene {
 
-	private OctreeNode rootNode;
+	private LinearOctree octree;
 
 	public static final double TOLERANCE = 1e-12;
 
 	public OctreeScene(Scene s) {
+		this(s, 1, null);
+	}
+
+	/**
+	 * @param threads Cantidad de threads con los que se construye el octree.
+	 */
+	public OctreeScene(Scene s, int threads) {
+		this(s, threads, null);
+	}
+
+	/**
+	 * @param threads Cantidad de threads con los que se construye el octree.
+	 * @param cache Caché de la que se lee el octree si ya fue construido, y
+	 *            en la que se guarda si no (puede ser null).
+	 */
+	public OctreeScene(Scene s, int threads, AccelerationCache cache) {
 		super(s.getObjects(), s.getLights(), s.getCamera());
-		buildTree();
+		if (threads < 1) {
+			throw new IllegalArgumentException("Invalid number of threads: " + threads);
+		}
+		SceneObject[] obj = getAllLeafObjects();
+		if (cache == null) {
+			buildTree(obj, threads);
+			return;
+		}
+		String key = cache.getKey(OctreeNode.getParameters(), obj);
+		ByteBuffer in = cache.load(key, obj.length);
+		if (in != null) {
+			try {
+				octree = new LinearOctree(in, obj);
+				return;
+			} catch (RuntimeException e) {
+				System.err.println("Ignoring invalid cached octree: " + e.getMessage());
+			}
+		}
+		buildTree(obj, threads);
+		cache.store(key, obj.length, octree);
 	}
 
-	private void buildTree() {
+	/**
+	 * Construye el octree. Con más de un thread, la construcción se hace
+	 * dentro de un ForkJoinPool para que OctreeNode construya los subárboles
+	 * grandes en paralelo.
+	 */
+	private void buildTree(final SceneObject[] obj, int threads) {
 		// Crear el Octree
-		SceneObject[] obj = getAllLeafObjects();
-		BoundingBox objBounds[] = new BoundingBox[obj.length];
-		BoundingBox sceneBounds = getBounds(obj, objBounds);
-		rootNode = new OctreeNode(sceneBounds, obj, objBounds);
+		final BoundingBox objBounds[] = new BoundingBox[obj.length];
+		final BoundingBox sceneBounds = getBounds(obj, objBounds);
+		OctreeNode rootNode;
+		if (threads > 1) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				rootNode = pool.invoke(new RecursiveTask<OctreeNode>() {
+					private static final long serialVersionUID = 1L;
+
+					@Override
+					protected OctreeNode compute() {
+						return new OctreeNode(sceneBounds, obj, objBounds);
+					}
+				});
+			} finally {
+				pool.shutdown();
+			}
+		} else {
+			rootNode = new OctreeNode(sceneBounds, obj, objBounds);
+		}
+		octree = new LinearOctree(rootNode, obj);
+	}
+
+	public LinearOctree getOctree() {
+		return octree;
 	}
 
 	/** Encuentra las BoundingBoxes de cada objeto y de toda al escena. */
@@ -56,16 +123,14 @@ public class OctreeScene extends Scene {
 	@Override
 	public SceneObject getFirstIntersectedObject(Ray ray,
 			Intersection intersection) {
-		OctreeNode node = rootNode.findFirstNode(ray);
-		while (node != null) {
-			Collection<SceneObject> objects = Arrays.asList(node.getObjects());
-			SceneObject obj = super.getFirstIntersectedObject(ray,
-					intersection, objects);
-			if (obj != null)
-				return obj;
-			node = node.findNextNode(ray);
-		}
-		return null;
+		intersection.reset();
+		intersection.object = octree.intersect(ray, intersection);
+		return intersection.object;
+	}
+
+	@Override
+	public boolean isOccluded(Ray ray, double tMax) {
+		return octree.occludes(ray, tMax);
 	}
 
 }
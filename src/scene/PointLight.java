@@ -31,6 +31,14 @@ public class PointLight {
 		this.attenuation = attenuation;
 	}
 
+	public float[] getAttenuation() {
+		return attenuation;
+	}
+
+	public Vector3d getColor() {
+		return color;
+	}
+
 	public Vector3d getColor(Vector3d currentPosition) {
 		double r = Math.sqrt(Math.pow(position.x - currentPosition.x, 2.0)
 				+ Math.pow(position.y - currentPosition.y, 2.0)
@@ -44,6 +52,17 @@ public class PointLight {
 		return new Vector3d(color);
 	}
 
+	/**
+	 * Versión de getColor que deja el color en un vector dado en lugar de
+	 * alocar uno nuevo.
+	 * 
+	 * @param currentPosition Punto iluminado.
+	 * @param result Parámetro de salida con el color de la luz en ese punto.
+	 */
+	public void getColor(Vector3d currentPosition, Vector3d result) {
+		result.set(color);
+	}
+
 	public void transform(Matrix4d transformationMatrix) {
 		Vector4d aux = new Vector4d(position.getX(), position.getY(), position
 				.getZ(), 1);
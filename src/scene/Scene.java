@@ -2,6 +2,7 @@ package scene;
 
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 import javax.vecmath.AxisAngle4d;
@@ -11,24 +12,29 @@ import objects.SceneObject;
 
 import raytracer.Camera;
 import raytracer.Ray;
-import raytracer.Util;
 
 /**
  * Representación de una escena. Contiene todos los objetos, las luces y la
  * cámara. Para utilizarla primero cargar todas las luces y objetos, setear la
  * cámara, y finalmente invocar al método organizeObjectsAndCamera.
+ * 
+ * Los objetos y las luces se mantienen en el orden en que fueron agregados, para
+ * que dos corridas sobre la misma escena generen exactamente la misma imagen.
+ * Una vez cargada, la escena no se modifica, por lo que las consultas de
+ * intersección pueden invocarse desde varios threads a la vez.
  */
 public class Scene {
 
 	private Collection<SceneObject> objects;
 	private Collection<PointLight> lights;
 	private Camera camera;
+	private volatile SceneObject[] objectArray;
 
 	public Scene() {
 		camera = new Camera(new Vector3d(0, 0, 10),
 				new AxisAngle4d(0, 0, -1, 0), (float) (Math.PI / 4));
-		objects = new HashSet<SceneObject>();
-		lights = new HashSet<PointLight>();
+		objects = new LinkedHashSet<SceneObject>();
+		lights = new LinkedHashSet<PointLight>();
 	}
 
 	protected Scene(Collection<SceneObject> objects,
@@ -55,7 +61,7 @@ public class Scene {
 	}
 
 	public SceneObject[] getAllLeafObjects() {
-		HashSet<SceneObject> set = new HashSet<SceneObject>();
+		HashSet<SceneObject> set = new LinkedHashSet<SceneObject>();
 		for (SceneObject o : objects) {
 			gatherLeafObjects(o, set);
 		}
@@ -83,7 +89,7 @@ public class Scene {
 
 	public Intersection getFirstIntersectedObject(Ray ray) {
 		Intersection ret = new Intersection();
-		getFirstIntersectedObject(ray, ret, objects);
+		getFirstIntersectedObject(ray, ret);
 		return ret;
 	}
 
@@ -92,43 +98,82 @@ public class Scene {
 	 * intersección en dicho objeto. Si no intersecta con ninguno, retorna null.
 	 * 
 	 * @param ray Rayo que se quiere analizar.
-	 * @param intersection Parámetro de salida con el punto de intersección.
+	 * @param intersection Parámetro de salida con la intersección encontrada
+	 *            (objeto, distancia, punto, normal y primitiva).
 	 * @return El objeto intersectado.
 	 */
 	public SceneObject getFirstIntersectedObject(Ray ray,
 			Intersection intersection) {
-		return getFirstIntersectedObject(ray, intersection, objects);
+		return getFirstIntersectedObject(ray, intersection, getObjectArray());
 	}
 
+	/**
+	 * Busca el objeto más cercano entre los dados, sin alocar memoria. La
+	 * intersección encontrada (con su distancia, que calcula el propio objeto)
+	 * queda en intersection.
+	 * 
+	 * @param ray Rayo que se quiere analizar.
+	 * @param intersection Parámetro de salida con el punto de intersección.
+	 * @param objs Objetos contra los que se intersecta el rayo.
+	 * @return El objeto intersectado, o null si no intersecta con ninguno.
+	 */
 	public SceneObject getFirstIntersectedObject(Ray ray,
-			Intersection intersection, Collection<SceneObject> objs) {
+			Intersection intersection, SceneObject[] objs) {
 		SceneObject nearest = null;
-		Intersection currentIntersection, nearestIntersection = null;
-		double nearestDistance = Double.MAX_VALUE;
-
-		for (SceneObject o : objs) {
-			if ((currentIntersection = o.intersectsRay(ray)) == null)
-				continue;
-
-			Vector3d aux = new Vector3d(currentIntersection.point);
-			double currentDistance;
-			aux.sub(ray.position);
-			currentDistance = Util.Norm(aux);
-
-			if (nearestIntersection == null
-					|| currentDistance < nearestDistance) {
-				nearest = o;
-				nearestIntersection = currentIntersection;
-				nearestDistance = currentDistance;
+
+		intersection.reset();
+		for (int i = 0; i < objs.length; i++) {
+			if (objs[i].intersectsRay(ray, intersection)) {
+				nearest = objs[i];
 			}
 		}
-		if (nearestIntersection == null)
-			return null;
-		intersection.point = nearestIntersection.point;
-		intersection.normal = nearestIntersection.normal;
+		intersection.object = nearest;
 		return nearest;
 	}
 
+	/**
+	 * Determina si algún objeto de la escena se interpone en el rayo antes de
+	 * una distancia dada. Termina en cuanto encuentra un objeto que lo haga,
+	 * por lo que es más barato que getFirstIntersectedObject para los rayos de
+	 * sombra.
+	 * 
+	 * @param ray Rayo que se quiere analizar.
+	 * @param tMax Distancia máxima (excluida), e.g. la distancia a la luz.
+	 * @return Si el rayo está obstruido antes de tMax.
+	 */
+	public boolean isOccluded(Ray ray, double tMax) {
+		return isOccluded(ray, tMax, getObjectArray());
+	}
+
+	/** Versión de isOccluded que considera sólo los objetos dados. */
+	public boolean isOccluded(Ray ray, double tMax, SceneObject[] objs) {
+		for (int i = 0; i < objs.length; i++) {
+			if (objs[i].occludes(ray, tMax)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public SceneObject getFirstIntersectedObject(Ray ray,
+			Intersection intersection, Collection<SceneObject> objs) {
+		return getFirstIntersectedObject(ray, intersection, objs
+				.toArray(new SceneObject[objs.size()]));
+	}
+
+	/**
+	 * @return Arreglo con los objetos de la escena, para recorrerlos sin
+	 *         alocar iteradores. Se reconstruye si se agregaron objetos.
+	 */
+	private SceneObject[] getObjectArray() {
+		SceneObject[] array = objectArray;
+		if (array == null || array.length != objects.size()) {
+			array = objects.toArray(new SceneObject[objects.size()]);
+			objectArray = array;
+		}
+		return array;
+	}
+
 	public void dumpScene() {
 		System.out.println("SCENE");
 		System.out.println("Objects:");
@@ -0,0 +1,139 @@
+package objects;
+
+import javax.vecmath.Vector3d;
+
+import scene.BoundingBox;
+import scene.OctreeScene;
+
+/**
+ * Copia de los tests de intersección originales de Triangle (plano del
+ * triángulo y un test de lado por arista para los rayos; vértices, aristas y
+ * diagonales de la caja para las cajas), que se usa como referencia para
+ * verificar y medir TriangleIntersector. No forma parte del ray tracer.
+ */
+public class ReferenceTriangle {
+
+	public final Vector3d p1, p2, p3;
+	private final Vector3d normal = new Vector3d();
+	private final Vector3d p2mp1 = new Vector3d(), p3mp2 = new Vector3d(),
+			p1mp3 = new Vector3d();
+
+	public ReferenceTriangle(Vector3d p1, Vector3d p2, Vector3d p3) {
+		this.p1 = new Vector3d(p1);
+		this.p2 = new Vector3d(p2);
+		this.p3 = new Vector3d(p3);
+		Vector3d v1 = new Vector3d(p2);
+		v1.sub(p1);
+		Vector3d v2 = new Vector3d(p3);
+		v2.sub(p1);
+		normal.cross(v1, v2);
+		normal.normalize();
+		p2mp1.sub(p2, p1);
+		p3mp2.sub(p3, p2);
+		p1mp3.sub(p1, p3);
+	}
+
+	/**
+	 * Intersecta un rayo con el triángulo: primero con su plano, y luego
+	 * verifica que el punto esté dentro de los lados.
+	 *
+	 * @return Distancia a la intersección, o -1 si no hay intersección en
+	 *         [0, withinDistance).
+	 */
+	public double intersect(Vector3d orig, Vector3d dir, double withinDistance) {
+		double nx = normal.x, ny = normal.y, nz = normal.z;
+		double auxDot = nx * dir.x + ny * dir.y + nz * dir.z;
+		if (auxDot < 0) {
+			nx = -nx;
+			ny = -ny;
+			nz = -nz;
+			auxDot = -auxDot;
+		}
+		if (auxDot < OctreeScene.TOLERANCE) {
+			return -1;
+		}
+		double t = ((p1.x - orig.x) * nx + (p1.y - orig.y) * ny + (p1.z - orig.z)
+				* nz) / auxDot;
+		if (!(t >= 0 && t < withinDistance)) {
+			return -1;
+		}
+		if (!pointBelongs(dir.x * t + orig.x, dir.y * t + orig.y, dir.z * t
+				+ orig.z)) {
+			return -1;
+		}
+		return t;
+	}
+
+	/** @return Si el punto está en el plano del triángulo y dentro de sus lados. */
+	public boolean pointBelongs(double x, double y, double z) {
+		double dot = (x - p1.x) * normal.x + (y - p1.y) * normal.y + (z - p1.z) * normal.z;
+		if (Math.abs(dot) > OctreeScene.TOLERANCE) {
+			return false;
+		}
+		return isLeftOfEdge(p2mp1, p1, x, y, z) && isLeftOfEdge(p3mp2, p2, x, y, z)
+				&& isLeftOfEdge(p1mp3, p3, x, y, z);
+	}
+
+	private boolean isLeftOfEdge(Vector3d edge, Vector3d origin, double x,
+			double y, double z) {
+		double ax = x - origin.x, ay = y - origin.y, az = z - origin.z;
+		double cx = edge.y * az - edge.z * ay;
+		double cy = ax * edge.z - az * edge.x;
+		double cz = edge.x * ay - edge.y * ax;
+		return cx * normal.x + cy * normal.y + cz * normal.z >= 0;
+	}
+
+	/**
+	 * Test de superposición con una caja: algún vértice dentro de la caja,
+	 * alguna arista que la atraviesa, o alguna diagonal de la caja que
+	 * atraviesa el triángulo.
+	 */
+	public boolean intersectsBox(BoundingBox bb) {
+		if (bb.contains(p1) || bb.contains(p2) || bb.contains(p3))
+			return true;
+		if (edgeIntersectsBox(p1, p2, bb) || edgeIntersectsBox(p2, p3, bb)
+				|| edgeIntersectsBox(p3, p1, bb))
+			return true;
+		Vector3d orig = new Vector3d(), dir = new Vector3d();
+		double[][] diagonals = {
+				{ bb.xmin, bb.ymin, bb.zmin, bb.xmax, bb.ymax, bb.zmax },
+				{ bb.xmax, bb.ymin, bb.zmin, bb.xmin, bb.ymax, bb.zmax },
+				{ bb.xmin, bb.ymax, bb.zmin, bb.xmax, bb.ymin, bb.zmax },
+				{ bb.xmin, bb.ymin, bb.zmax, bb.xmax, bb.ymax, bb.zmin } };
+		for (double[] d : diagonals) {
+			orig.set(d[0], d[1], d[2]);
+			dir.set(d[3] - d[0], d[4] - d[1], d[5] - d[2]);
+			double len = dir.length();
+			dir.scale(1.0 / len);
+			if (intersect(orig, dir, len) >= 0)
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean edgeIntersectsBox(Vector3d p1, Vector3d p2, BoundingBox bb) {
+		double dirx = p2.x - p1.x, diry = p2.y - p1.y, dirz = p2.z - p1.z;
+		double len = Math.sqrt(dirx * dirx + diry * diry + dirz * dirz);
+		double[] range = { -Double.MAX_VALUE, Double.MAX_VALUE };
+		return clip(p1.x, dirx, len, bb.xmin, bb.xmax, range)
+				&& clip(p1.y, diry, len, bb.ymin, bb.ymax, range)
+				&& clip(p1.z, dirz, len, bb.zmin, bb.zmax, range);
+	}
+
+	/**
+	 * Recorta el intervalo range del segmento contra la franja [min, max] de
+	 * un eje.
+	 *
+	 * @return Si el segmento todavía atraviesa la caja.
+	 */
+	private static boolean clip(double p, double dir, double len, double min,
+			double max, double[] range) {
+		if (dir == 0.0) {
+			return !(p < min || p > max);
+		}
+		double t1 = (min - p) * len / dir, t2 = (max - p) * len / dir;
+		range[0] = Math.max(range[0], Math.min(t1, t2));
+		range[1] = Math.min(range[1], Math.max(t1, t2));
+		return !(range[0] > range[1] || range[0] > len || range[1] < 0.0);
+	}
+}
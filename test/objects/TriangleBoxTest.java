@@ -0,0 +1,156 @@
+package objects;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.vecmath.Vector3d;
+
+import scene.BoundingBox;
+
+/**
+ * Verifica TriangleIntersector.overlapsBox contra un test exacto que recorta
+ * el triángulo con los seis planos de la caja (Sutherland-Hodgman). Se
+ * prueban pares triángulo-caja aleatorios y pares en los que la caja sólo
+ * toca el triángulo: una cara de la caja pasa por el vértice extremo del
+ * triángulo en un eje, como pasa con los planos de división del octree en
+ * una malla.
+ *
+ * overlapsBox nunca puede descartar un triángulo que toca la caja (el
+ * octree perdería intersecciones); eso es un error, y el programa termina
+ * con código 1. Sí puede aceptar triángulos que quedan a menos de
+ * OctreeScene.TOLERANCE de la caja. Las discrepancias de ReferenceTriangle
+ * (el test original) sólo se informan.
+ *
+ * Uso: TriangleBoxTest [casos] [semilla]
+ */
+public class TriangleBoxTest {
+
+	/** Cantidad máxima de errores que se imprimen. */
+	private static final int MAX_REPORTED = 10;
+
+	public static void main(String[] args) {
+		int cases = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		Random random = new Random(seed);
+		int overlapping = 0, failures = 0, referenceWrong = 0;
+
+		for (int k = 0; k < cases; k++) {
+			double[][] t = new double[3][3];
+			for (int i = 0; i < 3; i++)
+				for (int j = 0; j < 3; j++)
+					t[i][j] = (random.nextDouble() - 0.5) * 4;
+			BoundingBox box;
+			if (random.nextBoolean()) {
+				box = randomBox(random);
+			} else {
+				box = touchingBox(t, random);
+			}
+
+			boolean exact = clippedOverlap(t, box);
+			boolean sat = TriangleIntersector.overlapsBox(t[0][0], t[0][1],
+					t[0][2], t[1][0] - t[0][0], t[1][1] - t[0][1], t[1][2]
+							- t[0][2], t[2][0] - t[0][0], t[2][1] - t[0][1],
+					t[2][2] - t[0][2], box.xmin, box.xmax, box.ymin, box.ymax,
+					box.zmin, box.zmax);
+			boolean reference = new ReferenceTriangle(new Vector3d(t[0]),
+					new Vector3d(t[1]), new Vector3d(t[2])).intersectsBox(box);
+			if (exact) {
+				overlapping++;
+			}
+			if (reference != exact) {
+				referenceWrong++;
+			}
+			if (exact && !sat) {
+				if (++failures <= MAX_REPORTED)
+					System.out.println("FAIL missed overlap: box=" + box
+							+ " triangle=" + format(t));
+			} else if (!exact && sat) {
+				BoundingBox grown = new BoundingBox(box);
+				grown.outset(1e-9);
+				if (!clippedOverlap(t, grown) && ++failures <= MAX_REPORTED)
+					System.out.println("FAIL false overlap: box=" + box
+							+ " triangle=" + format(t));
+			}
+		}
+
+		System.out.println("cases=" + cases + " overlapping=" + overlapping
+				+ " failures=" + failures + " reference wrong=" + referenceWrong);
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static BoundingBox randomBox(Random random) {
+		double x = random.nextDouble() * 2 - 1, y = random.nextDouble() * 2 - 1;
+		double z = random.nextDouble() * 2 - 1;
+		return new BoundingBox(x, x + random.nextDouble(), y, y
+				+ random.nextDouble(), z, z + random.nextDouble());
+	}
+
+	/**
+	 * @return Una caja que toca al triángulo desde afuera: en un eje al
+	 *         azar, su cara inferior pasa por el vértice de coordenada máxima
+	 *         del triángulo, y en los otros ejes contiene a ese vértice.
+	 */
+	private static BoundingBox touchingBox(double[][] t, Random random) {
+		int axis = random.nextInt(3);
+		int top = 0;
+		for (int i = 1; i < 3; i++)
+			if (t[i][axis] > t[top][axis])
+				top = i;
+		double[] min = new double[3], max = new double[3];
+		for (int j = 0; j < 3; j++) {
+			if (j == axis) {
+				min[j] = t[top][j];
+				max[j] = min[j] + random.nextDouble() + 0.01;
+			} else {
+				min[j] = t[top][j] - random.nextDouble() - 0.01;
+				max[j] = t[top][j] + random.nextDouble() + 0.01;
+			}
+		}
+		return new BoundingBox(min[0], max[0], min[1], max[1], min[2], max[2]);
+	}
+
+	/**
+	 * Recorta el triángulo con los seis semiespacios de la caja. Un vértice
+	 * sobre un plano de la caja se conserva, así que los contactos cuentan
+	 * como superposición.
+	 *
+	 * @return Si queda algún punto del triángulo dentro de la caja.
+	 */
+	static boolean clippedOverlap(double[][] triangle, BoundingBox box) {
+		List<double[]> polygon = new ArrayList<double[]>();
+		for (double[] p : triangle)
+			polygon.add(p);
+		double[] lo = { box.xmin, box.ymin, box.zmin };
+		double[] hi = { box.xmax, box.ymax, box.zmax };
+		for (int axis = 0; axis < 3; axis++) {
+			for (int side = 0; side < 2; side++) {
+				List<double[]> clipped = new ArrayList<double[]>();
+				for (int i = 0; i < polygon.size(); i++) {
+					double[] a = polygon.get(i);
+					double[] b = polygon.get((i + 1) % polygon.size());
+					double da = side == 0 ? a[axis] - lo[axis] : hi[axis] - a[axis];
+					double db = side == 0 ? b[axis] - lo[axis] : hi[axis] - b[axis];
+					if (da >= 0)
+						clipped.add(a);
+					if ((da >= 0) != (db >= 0)) {
+						double s = da / (da - db);
+						clipped.add(new double[] { a[0] + s * (b[0] - a[0]),
+								a[1] + s * (b[1] - a[1]), a[2] + s * (b[2] - a[2]) });
+					}
+				}
+				polygon = clipped;
+				if (polygon.isEmpty())
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private static String format(double[][] t) {
+		return "(" + new Vector3d(t[0]) + ", " + new Vector3d(t[1]) + ", "
+				+ new Vector3d(t[2]) + ")";
+	}
+}
@@ -0,0 +1,83 @@
+package objects;
+
+import java.util.Random;
+
+import javax.vecmath.Vector3d;
+
+/**
+ * Mide cuántos tests rayo-triángulo por segundo hacen TriangleIntersector
+ * (Möller-Trumbore) y ReferenceTriangle (plano y lados) sobre los mismos
+ * triángulos y rayos aleatorios. Cada medición se repite varias veces para
+ * que la primera sirva de calentamiento del JIT.
+ *
+ * Uso: TriangleIntersectorBenchmark [triángulos] [rayos] [repeticiones]
+ */
+public class TriangleIntersectorBenchmark {
+
+	public static void main(String[] args) {
+		int triangles = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		int rays = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		Random random = new Random(1);
+
+		double[] t = new double[9 * triangles];
+		ReferenceTriangle[] reference = new ReferenceTriangle[triangles];
+		for (int i = 0; i < triangles; i++) {
+			Vector3d p1 = randomPoint(random), p2 = randomPoint(random);
+			Vector3d p3 = randomPoint(random);
+			reference[i] = new ReferenceTriangle(p1, p2, p3);
+			t[9 * i] = p1.x;
+			t[9 * i + 1] = p1.y;
+			t[9 * i + 2] = p1.z;
+			t[9 * i + 3] = p2.x - p1.x;
+			t[9 * i + 4] = p2.y - p1.y;
+			t[9 * i + 5] = p2.z - p1.z;
+			t[9 * i + 6] = p3.x - p1.x;
+			t[9 * i + 7] = p3.y - p1.y;
+			t[9 * i + 8] = p3.z - p1.z;
+		}
+		Vector3d[] origins = new Vector3d[rays], directions = new Vector3d[rays];
+		for (int j = 0; j < rays; j++) {
+			origins[j] = randomPoint(random);
+			origins[j].scale(4);
+			directions[j] = randomPoint(random);
+			directions[j].sub(origins[j]);
+			directions[j].normalize();
+		}
+
+		double tests = (double) triangles * rays;
+		for (int r = 0; r < rounds; r++) {
+			long start = System.nanoTime();
+			int hits = 0;
+			for (int j = 0; j < rays; j++) {
+				Vector3d o = origins[j], d = directions[j];
+				for (int i = 0; i < triangles; i++) {
+					int k = 9 * i;
+					if (TriangleIntersector.intersect(o, d, t[k], t[k + 1], t[k + 2],
+							t[k + 3], t[k + 4], t[k + 5], t[k + 6], t[k + 7],
+							t[k + 8], Double.MAX_VALUE, null) >= 0)
+						hits++;
+				}
+			}
+			long middle = System.nanoTime();
+			int referenceHits = 0;
+			for (int j = 0; j < rays; j++) {
+				Vector3d o = origins[j], d = directions[j];
+				for (int i = 0; i < triangles; i++) {
+					if (reference[i].intersect(o, d, Double.MAX_VALUE) >= 0)
+						referenceHits++;
+				}
+			}
+			long end = System.nanoTime();
+			System.out.printf("TriangleIntersector %.1f Mtests/s (%d hits), "
+					+ "ReferenceTriangle %.1f Mtests/s (%d hits)%n", tests
+					/ ((middle - start) / 1e3), hits, tests / ((end - middle) / 1e3),
+					referenceHits);
+		}
+	}
+
+	private static Vector3d randomPoint(Random random) {
+		return new Vector3d(random.nextDouble() * 4 - 2,
+				random.nextDouble() * 4 - 2, random.nextDouble() * 4 - 2);
+	}
+}
@@ -0,0 +1,156 @@
+package objects;
+
+import java.util.Random;
+
+import javax.vecmath.Vector3d;
+
+import scene.Intersection;
+
+/**
+ * Verifica TriangleIntersector.intersect y TriangleIntersector.contains
+ * contra ReferenceTriangle con triángulos y rayos aleatorios. Los rayos
+ * apuntan a puntos del plano del triángulo dentro y alrededor de él
+ * (algunos justo sobre un lado), para que haya tanto aciertos como fallos
+ * cerca de los lados. Uno de cada cuatro casos se escala (triángulo y
+ * origen del rayo) por SMALL_SCALE, para verificar que los triángulos muy
+ * chicos se intersectan igual que los grandes.
+ *
+ * Los dos métodos pueden discrepar legítimamente en puntos que están a
+ * menos de EDGE_TOLERANCE (en coordenadas baricéntricas) de un lado, porque
+ * el redondeo de cada uno es distinto; esas discrepancias se cuentan aparte
+ * y no son errores. Cualquier otra discrepancia, o una distancia distinta,
+ * es un error y el programa termina con código 1.
+ *
+ * Uso: TriangleIntersectorTest [casos] [semilla]
+ */
+public class TriangleIntersectorTest {
+
+	/** Distancia baricéntrica a un lado en la que se admiten discrepancias. */
+	private static final double EDGE_TOLERANCE = 1e-9;
+
+	/**
+	 * Error relativo admitido entre las distancias de los dos métodos, para
+	 * un rayo perpendicular al triángulo. El error de t crece como 1 / coseno
+	 * del ángulo con la normal, así que se lo divide por ese coseno.
+	 */
+	private static final double DISTANCE_TOLERANCE = 1e-9;
+
+	/** Escala de los casos chicos: lados del orden de 1e-6. */
+	private static final double SMALL_SCALE = 1e-7;
+
+	/** Cantidad máxima de errores que se imprimen. */
+	private static final int MAX_REPORTED = 10;
+
+	public static void main(String[] args) {
+		int cases = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+		Random random = new Random(seed);
+		Vector3d orig = new Vector3d(), dir = new Vector3d();
+		Vector3d target = new Vector3d(), normal = new Vector3d();
+		Intersection uv = new Intersection();
+		int hits = 0, smallHits = 0, boundary = 0, failures = 0;
+
+		for (int k = 0; k < cases; k++) {
+			double scale = random.nextInt(4) == 0 ? SMALL_SCALE : 1;
+			Vector3d p1 = randomPoint(random, 10 * scale);
+			Vector3d p2 = randomPoint(random, 10 * scale);
+			Vector3d p3 = randomPoint(random, 10 * scale);
+			Vector3d e1 = new Vector3d(), e2 = new Vector3d();
+			e1.sub(p2, p1);
+			e2.sub(p3, p1);
+			normal.cross(e1, e2);
+			if (normal.length() < 1e-6 * scale * scale) {
+				continue; // Triángulo degenerado
+			}
+			normal.normalize();
+			ReferenceTriangle reference = new ReferenceTriangle(p1, p2, p3);
+
+			// Punto del plano con coordenadas baricéntricas en [-0.25, 1.25]
+			double a = random.nextDouble() * 1.5 - 0.25;
+			double b = random.nextDouble() * 1.5 - 0.25;
+			// Uno de cada ocho puntos cae justo sobre un lado
+			switch (random.nextInt(8)) {
+			case 0:
+				a = 0;
+				break;
+			case 1:
+				b = 0;
+				break;
+			case 2:
+				b = 1 - a;
+				break;
+			}
+			target.set(p1);
+			target.scaleAdd(a, e1, target);
+			target.scaleAdd(b, e2, target);
+			orig.set(randomPoint(random, 20 * scale));
+			dir.sub(target, orig);
+			double length = dir.length();
+			dir.scale(1.0 / length);
+			// La mitad de los rayos terminan antes del triángulo
+			double tMax = random.nextBoolean() ? Double.MAX_VALUE : length
+					* random.nextDouble() * 2;
+
+			double expected = reference.intersect(orig, dir, tMax);
+			double actual = TriangleIntersector.intersect(orig, dir, p1.x, p1.y,
+					p1.z, e1.x, e1.y, e1.z, e2.x, e2.y, e2.z, tMax, uv);
+			if (expected >= 0) {
+				hits++;
+				if (scale != 1)
+					smallHits++;
+			}
+			boolean nearEdge = Math.min(Math.min(a, b), 1 - a - b) > -EDGE_TOLERANCE
+					&& Math.min(Math.min(Math.abs(a), Math.abs(b)),
+							Math.abs(1 - a - b)) < EDGE_TOLERANCE;
+			boolean nearEnd = Math.abs(length - tMax) < DISTANCE_TOLERANCE * length;
+			if ((expected >= 0) != (actual >= 0)) {
+				if (nearEdge || nearEnd) {
+					boundary++;
+				} else if (++failures <= MAX_REPORTED) {
+					report("intersect", p1, p2, p3, orig, dir, tMax, expected, actual);
+				}
+			} else if (expected >= 0
+					&& Math.abs(expected - actual) > DISTANCE_TOLERANCE * expected
+							/ Math.abs(normal.dot(dir))) {
+				if (++failures <= MAX_REPORTED)
+					report("intersect distance", p1, p2, p3, orig, dir, tMax,
+							expected, actual);
+			}
+
+			// contains con el mismo punto objetivo, que está en el plano
+			boolean expectedContains = reference.pointBelongs(target.x, target.y,
+					target.z);
+			boolean actualContains = TriangleIntersector.contains(target.x,
+					target.y, target.z, p1.x, p1.y, p1.z, e1.x, e1.y, e1.z, e2.x,
+					e2.y, e2.z, normal);
+			if (expectedContains != actualContains) {
+				if (nearEdge) {
+					boundary++;
+				} else if (++failures <= MAX_REPORTED) {
+					report("contains", p1, p2, p3, target, dir, 0,
+							expectedContains ? 1 : -1, actualContains ? 1 : -1);
+				}
+			}
+		}
+
+		System.out.println("cases=" + cases + " hits=" + hits + " (small "
+				+ smallHits + ") boundary=" + boundary + " failures=" + failures);
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+
+	private static Vector3d randomPoint(Random random, double size) {
+		return new Vector3d((random.nextDouble() - 0.5) * size,
+				(random.nextDouble() - 0.5) * size, (random.nextDouble() - 0.5)
+						* size);
+	}
+
+	private static void report(String test, Vector3d p1, Vector3d p2,
+			Vector3d p3, Vector3d orig, Vector3d dir, double tMax,
+			double expected, double actual) {
+		System.out.println("FAIL " + test + ": triangle=" + p1 + " " + p2 + " "
+				+ p3 + " orig=" + orig + " dir=" + dir + " tMax=" + tMax
+				+ " expected=" + expected + " actual=" + actual);
+	}
+}
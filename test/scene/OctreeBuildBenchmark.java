@@ -0,0 +1,119 @@
+package scene;
+
+import java.lang.management.ManagementFactory;
+
+import objects.SceneObject;
+import objects.TriangleMesh;
+
+/**
+ * Mide la construcción del octree sobre una malla de grid x grid celdas (dos
+ * triángulos por celda) que ondula en y, como el piso de las escenas de
+ * prueba: tiempo de construcción, memoria alocada por el thread que
+ * construye (sólo en JVMs con com.sun.management) y ocupación de los nodos
+ * terminales. Las referencias cuentan cuántas veces aparece cada triángulo
+ * en un nodo terminal; dependen del test de superposición triángulo-caja
+ * (ver TriangleIntersector.overlapsBox).
+ *
+ * Uso: OctreeBuildBenchmark [grid] [threads] [repeticiones]
+ */
+public class OctreeBuildBenchmark {
+
+	public static void main(String[] args) {
+		int grid = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+		Scene scene = new Scene();
+		scene.addSceneObject(createFloor(grid));
+		SceneObject[] objects = scene.getAllLeafObjects();
+		System.out.println("triangles=" + objects.length + " threads=" + threads);
+
+		for (int r = 0; r < rounds; r++) {
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			new OctreeScene(scene, threads);
+			long end = System.nanoTime();
+			// Con más de un thread, parte de la memoria la alocan los del pool
+			String memory = "";
+			if (allocated >= 0 && threads == 1) {
+				memory = String.format(", %.0f MB allocated",
+						(allocatedBytes() - allocated) / 1048576.0);
+			}
+			System.out.printf("build %.0f ms%s%n", (end - start) / 1e6, memory);
+		}
+
+		// Ocupación: se construye el árbol de OctreeNodes igual que OctreeScene
+		BoundingBox bounds[] = new BoundingBox[objects.length];
+		BoundingBox root = null;
+		for (int i = 0; i < objects.length; i++) {
+			bounds[i] = objects[i].getBounds();
+			root = root == null ? new BoundingBox(bounds[i]) : root.merge(bounds[i]);
+		}
+		root.outset(OctreeScene.TOLERANCE);
+		long[] stats = new long[5];
+		gatherLeafStats(new OctreeNode(root, objects, bounds), stats);
+		System.out.printf("nodes=%d leaves=%d non-empty=%d refs=%d "
+				+ "refs/non-empty=%.2f max=%d%n", stats[0], stats[1], stats[2],
+				stats[3], stats[3] / (double) stats[2], stats[4]);
+	}
+
+	/** @return Malla del plano y = 2 sin(x) cos(z), con x, z en [-10, 10]. */
+	private static TriangleMesh createFloor(int grid) {
+		float vertices[] = new float[3 * (grid + 1) * (grid + 1)];
+		int indices[] = new int[6 * grid * grid];
+		for (int i = 0; i <= grid; i++) {
+			for (int j = 0; j <= grid; j++) {
+				int k = 3 * (i * (grid + 1) + j);
+				double x = -10 + 20.0 * i / grid, z = -10 + 20.0 * j / grid;
+				vertices[k] = (float) x;
+				vertices[k + 1] = (float) (2 * Math.sin(x) * Math.cos(z));
+				vertices[k + 2] = (float) z;
+			}
+		}
+		int c = 0;
+		for (int i = 0; i < grid; i++) {
+			for (int j = 0; j < grid; j++) {
+				int p00 = i * (grid + 1) + j, p10 = p00 + grid + 1;
+				indices[c++] = p00;
+				indices[c++] = p10;
+				indices[c++] = p00 + 1;
+				indices[c++] = p10;
+				indices[c++] = p10 + 1;
+				indices[c++] = p00 + 1;
+			}
+		}
+		return new TriangleMesh(vertices, indices);
+	}
+
+	/**
+	 * Acumula en stats: nodos, nodos terminales, nodos terminales no vacíos,
+	 * referencias a objetos y máximo de objetos en un nodo terminal.
+	 */
+	private static void gatherLeafStats(OctreeNode node, long[] stats) {
+		stats[0]++;
+		if (node.isLeaf()) {
+			int count = node.getObjectIndices().length;
+			stats[1]++;
+			if (count > 0)
+				stats[2]++;
+			stats[3] += count;
+			stats[4] = Math.max(stats[4], count);
+			return;
+		}
+		for (int i = 0; i < 8; i++) {
+			OctreeNode child = node.getChild(i);
+			if (child != null)
+				gatherLeafStats(child, stats);
+		}
+	}
+
+	/** @return Bytes alocados por el thread actual, o -1 si no se sabe. */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}